@@ -0,0 +1,164 @@
+import java.util.*;
+
+/**
+ * The AccumulatorRecursion class turns linear recursion into a loop.  In
+ * an int function whose returns include "return a * f(args);" (with the
+ * call on either side), the recursive call needs no frame of its own:
+ * since * is associative, the function can keep an accumulator, start
+ * it at 1, and for such a return multiply a into it, store the args in
+ * the params and jump back to its start.  Every other return gives the
+ * accumulator times its value.  A plain tail call, "return f(args);",
+ * jumps back the same way, leaving the accumulator alone.  + is left
+ * alone: the add traps on overflow, so summing in another order could
+ * trap where the program doesn't (mul wraps, in any order).  So
+ *
+ *     int fact(int n) {                    acc = 1
+ *         if (n <= 1) {               top: if (n <= 1) return acc * 1;
+ *             return 1;                    else {
+ *         } else {                             acc = acc * n;
+ *             return n * fact(n - 1);          n = n - 1;
+ *         }                                    goto top;
+ *     }                                    }
+ *
+ * The operand a must be computed the same before and after the call, so
+ * it may only use literals, int locals and params, and the arithmetic
+ * operators, and the args may assign nothing (a is folded in before
+ * they are computed); the params must be ints or bools.  The returns of
+ * the function are marked here (see ReturnStmtNode.accumulate), the
+ * accumulator gets a slot in the frame, and codeGen does the rest.
+ */
+public class AccumulatorRecursion implements AstPass {
+    public void run(ProgramNode root) {
+        CallGraph graph = new CallGraph(root);
+        for (FnDeclNode fn : graph.getFunctions()) {
+            if (canLoop(fn)) {
+                transform(fn);
+            }
+        }
+    }
+
+    /**
+     * Return true if fn may be looped: it returns an int, isn't main or
+     * memoized (the memo table would miss the values of the calls that
+     * become jumps), and has only int and bool params.
+     */
+    private static boolean canLoop(FnDeclNode fn) {
+        FnSym sym = fn.sym();
+        if (!sym.getReturnType().isIntType() || fn.name().equals("main")
+            || sym.isMemoized()) {
+            return false;
+        }
+        for (Sym param : fn.formalSyms()) {
+            Type type = param.getType();
+            if (!type.isIntType() && !type.isBoolType()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * transform
+     * Mark the returns of fn if some of them can jump back to its start:
+     * the ones that return a recursive call, alone or times an operand.
+     */
+    private void transform(FnDeclNode fn) {
+        List<ReturnStmtNode> returns = new ArrayList<ReturnStmtNode>();
+        findReturns(fn, returns);
+        String accumulator = null;
+        Map<ReturnStmtNode, CallExpNode> calls =
+            new HashMap<ReturnStmtNode, CallExpNode>();
+        Map<ReturnStmtNode, ExpNode> operands =
+            new HashMap<ReturnStmtNode, ExpNode>();
+        for (ReturnStmtNode ret : returns) {
+            ExpNode exp = ret.exp();
+            if (isCallOf(exp, fn)) {
+                calls.put(ret, (CallExpNode)exp);
+                continue;
+            }
+            if (!(exp instanceof TimesNode)) {
+                continue;
+            }
+            BinaryExpNode bin = (BinaryExpNode)exp;
+            ExpNode call = bin.myExp1;
+            ExpNode operand = bin.myExp2;
+            if (!isCallOf(call, fn)) {
+                call = bin.myExp2;
+                operand = bin.myExp1;
+            }
+            if (isCallOf(call, fn) && isOperand(operand)
+                && !assigns(call)) {
+                calls.put(ret, (CallExpNode)call);
+                operands.put(ret, operand);
+                accumulator = "mul";
+            }
+        }
+        if (calls.isEmpty()) {
+            return;
+        }
+
+        FnSym sym = fn.sym();
+        int offset = 0;
+        if (accumulator != null) {
+            // the slot below the locals
+            offset = -8 - sym.getTotalLocalSize();
+            sym.setTotalLocalSize(sym.getTotalLocalSize() + 4);
+        }
+        sym.setLooped(accumulator, offset);
+        for (ReturnStmtNode ret : returns) {
+            ret.accumulate(fn, calls.get(ret), operands.get(ret));
+        }
+        PassManager.remark("accumulate", fn.name() + ": made "
+                           + calls.size() + " recursive calls jumps");
+    }
+
+    private static boolean assigns(ASTnode node) {
+        if (node instanceof AssignNode) {
+            return true;
+        }
+        for (ASTnode kid : node.children()) {
+            if (assigns(kid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void findReturns(ASTnode node, List<ReturnStmtNode> returns) {
+        if (node instanceof ReturnStmtNode) {
+            returns.add((ReturnStmtNode)node);
+        }
+        for (ASTnode kid : node.children()) {
+            findReturns(kid, returns);
+        }
+    }
+
+    private static boolean isCallOf(ExpNode exp, FnDeclNode fn) {
+        return exp instanceof CallExpNode
+               && ((CallExpNode)exp).fnSym() == fn.sym();
+    }
+
+    /**
+     * Return true if exp has the same value after a call as before it:
+     * it uses only literals, int locals and params, and +, -, * and
+     * unary minus.
+     */
+    private static boolean isOperand(ExpNode exp) {
+        if (exp instanceof IntLitNode) {
+            return true;
+        }
+        if (exp instanceof IdNode) {
+            Sym sym = ((IdNode)exp).sym();
+            return !sym.isGlobal() && sym.getType().isIntType();
+        }
+        if (exp instanceof UnaryMinusNode) {
+            return isOperand(((UnaryExpNode)exp).myExp);
+        }
+        if (exp instanceof PlusNode || exp instanceof MinusNode
+            || exp instanceof TimesNode) {
+            BinaryExpNode bin = (BinaryExpNode)exp;
+            return isOperand(bin.myExp1) && isOperand(bin.myExp2);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * An AsmPass is an optimization pass over the generated code.  The
+ * PassManager decides which passes run, and in what order.
+ */
+public interface AsmPass {
+    void run(AsmProgram prog);
+}
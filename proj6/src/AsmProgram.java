@@ -0,0 +1,597 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * The AsmProgram class holds the MIPS code produced by codeGen so that the
+ * optimization passes can rewrite it before it is written to the output
+ * file.  The program is a list of AsmFunctions; the data items (globals and
+ * string literals) that codeGen interleaves with the text are attached to
+ * the function they were emitted in, and are written out just before it.
+ */
+public class AsmProgram {
+    private List<AsmFunction> functions = new ArrayList<AsmFunction>();
+
+    // the registers a call to each function may change, by label, for
+    // the functions that have a summary (see RegisterSummaries)
+    private Map<String, Set<String>> callSummaries;
+
+    public List<AsmFunction> getFunctions() {
+        return functions;
+    }
+
+    /**
+     * Return the register summaries of the functions, by label, for
+     * AsmInstr.getDefs.  Passes that let a function change more registers
+     * must update them (see RegisterSummaries.claim).
+     */
+    public Map<String, Set<String>> getCallSummaries() {
+        return callSummaries;
+    }
+
+    public AsmFunction getFunction(String name) {
+        for (AsmFunction fn : functions) {
+            if (fn.getName().equals(name)) {
+                return fn;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * parse
+     * Split the text written by codeGen into functions.  A function starts
+     * at the first label after a .text directive (an optional .globl may
+     * come in between); .data lines are moved to the data list of the
+     * function being parsed.  summaries are the register summaries made
+     * while the text was generated (see ProgramNode.getCallSummaries).
+     */
+    public static AsmProgram parse(String text,
+                                   Map<String, Set<String>> summaries) {
+        AsmProgram prog = new AsmProgram();
+        prog.callSummaries = new HashMap<String, Set<String>>(summaries);
+        List<AsmInstr> data = new ArrayList<AsmInstr>();
+        List<AsmInstr> header = new ArrayList<AsmInstr>();
+        AsmFunction current = null;
+        boolean inData = false;
+        boolean afterText = false;
+
+        for (String line : text.split("\n")) {
+            for (AsmInstr instr : AsmInstr.parseLine(line)) {
+                String op = instr.getOpcode();
+                if (".data".equals(op)) {
+                    inData = true;
+                } else if (".text".equals(op)) {
+                    inData = false;
+                    afterText = true;
+                } else if (inData) {
+                    if (current == null) {
+                        data.add(instr);
+                    } else {
+                        current.getData().add(instr);
+                    }
+                } else if (afterText && ".globl".equals(op)) {
+                    header.add(instr);
+                } else if (afterText && instr.isLabel()) {
+                    current = new AsmFunction(instr.getLabel());
+                    current.getData().addAll(data);
+                    current.getHeader().addAll(header);
+                    current.getCode().add(instr);
+                    data.clear();
+                    header.clear();
+                    prog.functions.add(current);
+                    afterText = false;
+                } else {
+                    afterText = false;
+                    current.getCode().add(instr);
+                }
+            }
+        }
+
+        // data declared after the last function
+        if (current != null) {
+            current.getData().addAll(data);
+        }
+        return prog;
+    }
+
+    /**
+     * labelRefs
+     * Return the set of all names used as operands anywhere in the program
+     * (branch targets, jal targets, la operands and data words).
+     */
+    public Set<String> labelRefs() {
+        Set<String> refs = new HashSet<String>();
+        for (AsmFunction fn : functions) {
+            fn.addLabelRefs(refs);
+        }
+        return refs;
+    }
+
+    /**
+     * removeUnusedLabels
+     * Drop the labels no instruction refers to.  The labels at the start of
+     * a function and the labels of data items are always kept.
+     */
+    public void removeUnusedLabels() {
+        Set<String> refs = labelRefs();
+        for (AsmFunction fn : functions) {
+            List<AsmInstr> code = fn.getCode();
+            int k = 0;
+            while (k < code.size() && code.get(k).isLabel()) {
+                k++;   // entry labels
+            }
+            for (Iterator<AsmInstr> it = code.listIterator(k); it.hasNext(); ) {
+                AsmInstr instr = it.next();
+                if (instr.isLabel() && !refs.contains(instr.getLabel())) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * emit
+     * Write the program using the formatting routines of Codegen.
+     */
+    public void emit() {
+        for (AsmFunction fn : functions) {
+            fn.emit();
+        }
+    }
+}
+
+/**
+ * The AsmFunction class is the code of one function: the .globl directives
+ * that precede its entry label, its instructions and labels (in layout
+ * order) and the data items that are written out in front of it.
+ */
+class AsmFunction {
+    private String name;
+    private List<AsmInstr> header = new ArrayList<AsmInstr>();
+    private List<AsmInstr> code = new ArrayList<AsmInstr>();
+    private List<AsmInstr> data = new ArrayList<AsmInstr>();
+
+    public AsmFunction(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<AsmInstr> getHeader() {
+        return header;
+    }
+
+    public List<AsmInstr> getCode() {
+        return code;
+    }
+
+    public void setCode(List<AsmInstr> code) {
+        this.code = code;
+    }
+
+    public List<AsmInstr> getData() {
+        return data;
+    }
+
+    public void addLabelRefs(Set<String> refs) {
+        for (AsmInstr instr : code) {
+            instr.addLabelRefs(refs);
+        }
+        for (AsmInstr instr : data) {
+            instr.addLabelRefs(refs);
+        }
+    }
+
+    public void emit() {
+        if (!data.isEmpty()) {
+            Codegen.generate(".data");
+            for (AsmInstr instr : data) {
+                instr.emit();
+            }
+        }
+        Codegen.generate(".text");
+        for (AsmInstr instr : header) {
+            instr.emit();
+        }
+        for (AsmInstr instr : code) {
+            instr.emit();
+        }
+    }
+}
+
+/**
+ * The AsmInstr class is one line of assembly: either a label, or an
+ * instruction or directive with its operands and an optional comment.
+ */
+class AsmInstr {
+    private String label;
+    private String opcode;
+    private List<String> args;
+    private String comment;
+    private String jumpTable;   // for a table jump, the table's label
+
+    private static final Set<String> COND_BRANCHES = new HashSet<String>(
+        Arrays.asList("beq", "bne", "blt", "bgt", "ble", "bge",
+                      "bltu", "bgtu", "bleu", "bgeu",
+                      "beqz", "bnez", "bltz", "bgtz", "blez", "bgez"));
+
+    private static final Set<String> NO_DEF = new HashSet<String>(
+        Arrays.asList("sw", "sb", "j", "b", "jr", "jal", "syscall", "mult",
+                      "div", "nop"));
+
+    // the comment that marks a table jump in the output of codeGen, in
+    // front of the table's label; parseLine makes it the jumpTable field
+    static final String TABLE_COMMENT = "table ";
+
+    // ALU instructions the assembler also takes as "op d, k" (d = d op k)
+    private static final Set<String> SHORT_FORM = new HashSet<String>(
+        Arrays.asList("add", "addu", "addi", "addiu", "sub", "subu", "and",
+                      "andi", "or", "ori", "xor", "xori", "sll", "srl", "sra",
+                      "mul"));
+
+    private AsmInstr(String label, String opcode, List<String> args,
+                     String comment) {
+        this.label = label;
+        this.opcode = opcode;
+        this.args = args;
+        this.comment = comment;
+    }
+
+    public static AsmInstr label(String name) {
+        return new AsmInstr(name, null, new ArrayList<String>(), "");
+    }
+
+    public static AsmInstr instr(String opcode, String... args) {
+        return new AsmInstr(null, opcode,
+                            new ArrayList<String>(Arrays.asList(args)), "");
+    }
+
+    /**
+     * parseLine
+     * Turn one line of codeGen output into its labels and instruction.
+     */
+    public static List<AsmInstr> parseLine(String line) {
+        List<AsmInstr> result = new ArrayList<AsmInstr>();
+        String comment = "";
+        int hash = commentStart(line);
+        if (hash >= 0) {
+            comment = line.substring(hash + 1).trim();
+            if (comment.length() == 0) {
+                comment = "";   // Codegen compares against the "" literal
+            }
+            line = line.substring(0, hash);
+        }
+        line = line.trim();
+
+        // leading labels
+        int colon = labelEnd(line);
+        while (colon > 0) {
+            result.add(label(line.substring(0, colon)));
+            line = line.substring(colon + 1).trim();
+            colon = labelEnd(line);
+        }
+        if (line.length() == 0) {
+            return result;
+        }
+
+        String[] parts = line.split("\\s+", 2);
+        List<String> args = new ArrayList<String>();
+        if (parts.length > 1) {
+            args = splitArgs(parts[1]);
+        }
+        AsmInstr instr = new AsmInstr(null, parts[0], args, comment);
+        if (instr.is("jr") && comment.startsWith(TABLE_COMMENT)) {
+            instr.jumpTable = comment.substring(TABLE_COMMENT.length());
+            instr.comment = "";
+        }
+        result.add(instr);
+        return result;
+    }
+
+    private static int commentStart(String line) {
+        boolean quoted = false;
+        for (int k = 0; k < line.length(); k++) {
+            char c = line.charAt(k);
+            if (c == '\\' && quoted) {
+                k++;
+            } else if (c == '"') {
+                quoted = !quoted;
+            } else if (c == '#' && !quoted) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    private static int labelEnd(String line) {
+        for (int k = 0; k < line.length(); k++) {
+            char c = line.charAt(k);
+            if (c == ':') {
+                return k;
+            }
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '.'
+                && c != '$') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static List<String> splitArgs(String s) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false;
+        for (int k = 0; k < s.length(); k++) {
+            char c = s.charAt(k);
+            if (c == '\\' && quoted && k + 1 < s.length()) {
+                cur.append(c).append(s.charAt(++k));
+                continue;
+            }
+            if (c == '"') {
+                quoted = !quoted;
+            }
+            if (c == ',' && !quoted) {
+                args.add(cur.toString().trim());
+                cur.setLength(0);
+            } else {
+                cur.append(c);
+            }
+        }
+        if (cur.toString().trim().length() > 0) {
+            args.add(cur.toString().trim());
+        }
+        return args;
+    }
+
+    public boolean isLabel() {
+        return label != null;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public String getOpcode() {
+        return opcode;
+    }
+
+    public List<String> getArgs() {
+        return args;
+    }
+
+    public String getArg(int k) {
+        return k < args.size() ? args.get(k) : null;
+    }
+
+    public void setArg(int k, String arg) {
+        args.set(k, arg);
+    }
+
+    public String getComment() {
+        return comment;
+    }
+
+    public void setComment(String comment) {
+        this.comment = comment;
+    }
+
+    public boolean is(String op) {
+        return op.equals(opcode);
+    }
+
+    public boolean isJump() {
+        return "j".equals(opcode) || "b".equals(opcode);
+    }
+
+    public boolean isCondBranch() {
+        return opcode != null && COND_BRANCHES.contains(opcode);
+    }
+
+    public boolean isReturn() {
+        return "jr".equals(opcode) && getJumpTable() == null;
+    }
+
+    /**
+     * Return the label of the jump table this "jr" jumps through, or null
+     * if it isn't a table jump.  The table is a list of ".word label"
+     * items in the data of the function.
+     */
+    public String getJumpTable() {
+        return jumpTable;
+    }
+
+    public void setJumpTable(String table) {
+        jumpTable = table;
+    }
+
+    public boolean isCall() {
+        return "jal".equals(opcode);
+    }
+
+    /**
+     * Return the target label of a jump or conditional branch.
+     */
+    public String getTarget() {
+        return args.get(args.size() - 1);
+    }
+
+    public void setTarget(String target) {
+        args.set(args.size() - 1, target);
+    }
+
+    /**
+     * Return the register written by this instruction, or null.
+     */
+    public String getDef() {
+        if (opcode == null || opcode.startsWith(".") || NO_DEF.contains(opcode)
+            || isCondBranch() || args.isEmpty()) {
+            return null;
+        }
+        String first = args.get(0);
+        return first.startsWith("$") ? first : null;
+    }
+
+    // registers a call may change
+    static final List<String> CALLER_SAVED = Arrays.asList(
+        "$v0", "$v1", "$a0", "$a1", "$a2", "$a3",
+        "$t0", "$t1", "$t2", "$t3", "$t4", "$t5", "$t6", "$t7", "$t8", "$t9",
+        "$ra", "$lo", "$hi");
+
+    // registers that are still needed when a function returns
+    static final List<String> LIVE_AT_RETURN = Arrays.asList(
+        "$v0", "$sp", "$fp", "$ra",
+        "$s0", "$s1", "$s2", "$s3", "$s4", "$s5", "$s6", "$s7");
+
+    /**
+     * Return true if this is the two-operand form of an ALU instruction
+     * ("addi $t0, 1"), whose first operand is both read and written.
+     */
+    public boolean readsDef() {
+        return args.size() == 2 && isImmediate(args.get(1))
+               && SHORT_FORM.contains(opcode);
+    }
+
+    /**
+     * Return the registers this instruction reads.
+     */
+    public Set<String> getUses() {
+        Set<String> uses = new HashSet<String>();
+        if (opcode == null || opcode.startsWith(".")) {
+            return uses;
+        }
+        if (isReturn()) {
+            uses.addAll(LIVE_AT_RETURN);
+        } else if (isCall()) {
+            uses.add(Codegen.SP);
+            uses.add(Codegen.FP);
+        } else if (is("syscall")) {
+            uses.add(Codegen.V0);
+            uses.add(Codegen.A0);
+        } else if (is("mflo") || is("mfhi")) {
+            uses.add(is("mflo") ? "$lo" : "$hi");
+        } else {
+            String def = getDef();
+            for (int k = 0; k < args.size(); k++) {
+                String arg = args.get(k);
+                String base = baseOf(arg);
+                if (base != null) {
+                    uses.add(base);
+                } else if (arg.startsWith("$")
+                           && !(k == 0 && arg.equals(def) && !readsDef())) {
+                    uses.add(arg);
+                }
+            }
+        }
+        uses.remove("$zero");
+        uses.remove("$0");
+        return uses;
+    }
+
+    /**
+     * Return the registers this instruction writes.  A call writes what
+     * the callee's register summary in summaries says (see
+     * RegisterSummaries), or every caller-saved register if it has none.
+     */
+    public Set<String> getDefs(Map<String, Set<String>> summaries) {
+        Set<String> defs = new HashSet<String>();
+        if (isCall()) {
+            Set<String> summary = summaries.get(getTarget());
+            defs.addAll(summary != null ? summary : CALLER_SAVED);
+        } else if (is("syscall")) {
+            defs.add(Codegen.V0);
+        } else if (is("mult") || is("multu") || is("div") && args.size() == 2
+                   || is("divu") && args.size() == 2) {
+            defs.add("$lo");
+            defs.add("$hi");
+        } else if (getDef() != null) {
+            defs.add(getDef());
+        }
+        return defs;
+    }
+
+    /**
+     * Return the base register of an indexed operand "k($reg)", or null.
+     */
+    public static String baseOf(String arg) {
+        int open = arg.indexOf('(');
+        if (open < 0 || !arg.endsWith(")")) {
+            return null;
+        }
+        return arg.substring(open + 1, arg.length() - 1);
+    }
+
+    /**
+     * Return the offset of an indexed operand "k($reg)".
+     */
+    public static int offsetOf(String arg) {
+        int open = arg.indexOf('(');
+        String k = arg.substring(0, open).trim();
+        if (k.length() == 0) {
+            return 0;
+        }
+        return Integer.parseInt(k);
+    }
+
+    public static boolean isImmediate(String arg) {
+        return arg != null && arg.matches("-?[0-9]+");
+    }
+
+    public AsmInstr copy() {
+        AsmInstr instr = new AsmInstr(label, opcode,
+                                      new ArrayList<String>(args), comment);
+        instr.jumpTable = jumpTable;
+        return instr;
+    }
+
+    void addLabelRefs(Set<String> refs) {
+        if (opcode == null) {
+            return;
+        }
+        for (String arg : args) {
+            if (arg.length() > 0 && !arg.startsWith("$")
+                && !arg.startsWith("\"") && !isImmediate(arg)
+                && arg.indexOf('(') < 0) {
+                refs.add(arg);
+            }
+        }
+    }
+
+    public void emit() {
+        if (isLabel()) {
+            Codegen.genLabel(label);
+            return;
+        }
+        if (opcode.startsWith(".")) {
+            // directives are written the way codeGen writes them,
+            // operands included in the opcode
+            String line = args.isEmpty() ? opcode : opcode + " " + join(args);
+            Codegen.generateWithComment(line, comment);
+            return;
+        }
+        String a1 = args.size() > 0 ? args.get(0) : "";
+        String a2 = args.size() > 1 ? args.get(1) : "";
+        String a3 = args.size() > 2 ? join(args.subList(2, args.size())) : "";
+        String note = jumpTable != null ? TABLE_COMMENT + jumpTable : comment;
+        Codegen.generateWithComment(opcode, note, a1, a2, a3);
+    }
+
+    private static String join(List<String> parts) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : parts) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    public String toString() {
+        if (isLabel()) {
+            return label + ":";
+        }
+        return opcode + " " + join(args);
+    }
+}
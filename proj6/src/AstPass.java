@@ -0,0 +1,8 @@
+/**
+ * An AstPass is an optimization pass over the checked AST, run before
+ * code generation.  The PassManager decides which passes run, and in what
+ * order.
+ */
+public interface AstPass {
+    void run(ProgramNode root);
+}
@@ -0,0 +1,153 @@
+import java.util.*;
+
+/**
+ * The BlockPlacement class moves the cold blocks of each function to its
+ * end, after the return, so that the code that does run is laid out in
+ * one piece and its branches fall through (see Cfg.linearize).
+ *
+ * There is no profile to go by, so coldness is guessed from the code.
+ * A block is cold if
+ *
+ *   - it ends the program (the exit syscall);
+ *   - it is an early exit from a loop: a branch in the body of a loop
+ *     (not its header or a latch, whose tests are the normal way out)
+ *     goes to it, and it goes straight on to the return.  Such a branch
+ *     goes the other way on every iteration but the last;
+ *   - it is an error path: a conditional branch goes to it, and it writes
+ *     a string and goes straight on to the return;
+ *   - all the blocks that lead to it are cold.
+ *
+ * A block that the other way from its branch joins on the way to the
+ * return is not an early exit or error path, just the body of an if at
+ * the end of the function.
+ *
+ * Cold blocks keep their order, as do the others.
+ */
+public class BlockPlacement implements AsmPass {
+    // syscall codes
+    private static final int PRINT_STRING = 4;
+    private static final int EXIT = 10;
+
+    public void run(AsmProgram prog) {
+        for (AsmFunction fn : prog.getFunctions()) {
+            Cfg cfg = new Cfg(fn);
+            int moved = place(cfg, prog.getCallSummaries());
+            if (moved > 0) {
+                cfg.linearize();
+                PassManager.remark("block-placement", fn.getName()
+                                   + ": moved " + moved + " cold blocks");
+            }
+        }
+    }
+
+    /**
+     * place
+     * Move the cold blocks of cfg to its end; return how many there are.
+     */
+    private int place(Cfg cfg, Map<String, Set<String>> summaries) {
+        cfg.removeUnreachable();
+        Loops loops = new Loops(cfg);
+        List<BasicBlock> blocks = cfg.getBlocks();
+        Set<BasicBlock> cold = new LinkedHashSet<BasicBlock>();
+        for (BasicBlock b : blocks) {
+            if (b != cfg.getEntry() && isCold(b, loops, summaries)) {
+                cold.add(b);
+            }
+        }
+
+        // what only cold blocks lead to is cold as well
+        boolean changed = !cold.isEmpty();
+        while (changed) {
+            changed = false;
+            for (BasicBlock b : blocks) {
+                if (b != cfg.getEntry() && !cold.contains(b)
+                    && !b.getPreds().isEmpty()
+                    && cold.containsAll(b.getPreds())) {
+                    cold.add(b);
+                    changed = true;
+                }
+            }
+        }
+
+        // nothing to do if they are at the end already
+        int firstCold = blocks.size() - cold.size();
+        if (cold.containsAll(blocks.subList(firstCold, blocks.size()))) {
+            return 0;
+        }
+        List<BasicBlock> order = new ArrayList<BasicBlock>();
+        for (BasicBlock b : blocks) {
+            if (!cold.contains(b)) {
+                order.add(b);
+            }
+        }
+        order.addAll(cold);
+        blocks.clear();
+        blocks.addAll(order);
+        return cold.size();
+    }
+
+    private static boolean isCold(BasicBlock b, Loops loops,
+                                  Map<String, Set<String>> summaries) {
+        if (syscalls(b, summaries).contains(EXIT)) {
+            return true;
+        }
+        Set<BasicBlock> path = pathToReturn(b);
+        if (path == null) {
+            return false;
+        }
+        for (BasicBlock p : b.getPreds()) {
+            // the other way from p must not just join the path
+            if (!p.endsInBranch() || path.containsAll(p.getSuccs())) {
+                continue;
+            }
+            if (syscalls(b, summaries).contains(PRINT_STRING)) {
+                return true;
+            }
+            for (Loop loop : loops.getLoops()) {
+                if (loop.contains(p) && !loop.contains(b)
+                    && p != loop.getHeader()
+                    && !loop.getLatches().contains(p)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the blocks the code from b runs through when it goes
+     * straight (without a branch) to a return, or null if it doesn't.
+     */
+    private static Set<BasicBlock> pathToReturn(BasicBlock b) {
+        Set<BasicBlock> path = new HashSet<BasicBlock>();
+        while (b != null && b.getTaken() == null && b.getTable() == null
+               && path.add(b)) {
+            AsmInstr last = b.getLast();
+            if (last != null && last.isReturn()) {
+                return path;
+            }
+            b = b.getNext();
+        }
+        return null;
+    }
+
+    /**
+     * Return the codes of the syscalls in b (the value put in $v0 before
+     * each).
+     */
+    private static Set<Integer> syscalls(BasicBlock b,
+                                         Map<String, Set<String>> summaries) {
+        Set<Integer> codes = new HashSet<Integer>();
+        String code = null;
+        for (AsmInstr instr : b.getInstrs()) {
+            if (instr.is("syscall")) {
+                if (code != null && AsmInstr.isImmediate(code)) {
+                    codes.add(Integer.parseInt(code));
+                }
+            } else if (instr.getDefs(summaries).contains(Codegen.V0)) {
+                code = instr.is("li") ? instr.getArg(1) : null;
+            }
+        }
+        return codes;
+    }
+}
@@ -0,0 +1,166 @@
+import java.util.*;
+
+/**
+ * The CallGraph class records, for a whole program, every function and
+ * every call site in it, with the loop nesting depth of each call.  Since
+ * Carrot has no function values, every call names its callee, so the
+ * graph is exact.
+ */
+public class CallGraph {
+    // functions in source order
+    private Map<FnSym, FnDeclNode> myFns = new LinkedHashMap<FnSym, FnDeclNode>();
+    // the calls made by each function
+    private Map<FnSym, List<CallExpNode>> myCalls =
+        new HashMap<FnSym, List<CallExpNode>>();
+    // the calls made to each function
+    private Map<FnSym, List<CallExpNode>> myCallers =
+        new HashMap<FnSym, List<CallExpNode>>();
+    private Map<CallExpNode, FnSym> myCallerOf =
+        new HashMap<CallExpNode, FnSym>();
+    private Map<CallExpNode, Integer> myDepth =
+        new HashMap<CallExpNode, Integer>();
+
+    // Tarjan's algorithm state, for getSccs
+    private List<List<FnSym>> mySccs;
+    private Map<FnSym, Integer> myIndex;
+    private Map<FnSym, Integer> myLow;
+    private Deque<FnSym> myStack;
+
+    public CallGraph(ProgramNode root) {
+        for (ASTnode decl : root.children().get(0).children()) {
+            if (decl instanceof FnDeclNode) {
+                FnDeclNode fn = (FnDeclNode)decl;
+                myFns.put(fn.sym(), fn);
+                myCalls.put(fn.sym(), new ArrayList<CallExpNode>());
+                myCallers.put(fn.sym(), new ArrayList<CallExpNode>());
+            }
+        }
+        for (FnDeclNode fn : myFns.values()) {
+            findCalls(fn, fn.sym(), 0);
+        }
+    }
+
+    private void findCalls(ASTnode node, FnSym caller, int depth) {
+        if (node instanceof CallExpNode) {
+            CallExpNode call = (CallExpNode)node;
+            myCalls.get(caller).add(call);
+            myCallers.get(call.fnSym()).add(call);
+            myCallerOf.put(call, caller);
+            myDepth.put(call, depth);
+        }
+        if (node instanceof WhileStmtNode || node instanceof RepeatStmtNode) {
+            depth++;
+        }
+        for (ASTnode kid : node.children()) {
+            findCalls(kid, caller, depth);
+        }
+    }
+
+    public Collection<FnDeclNode> getFunctions() {
+        return myFns.values();
+    }
+
+    public FnDeclNode getDecl(FnSym fn) {
+        return myFns.get(fn);
+    }
+
+    public FnDeclNode getMain() {
+        for (FnDeclNode fn : myFns.values()) {
+            if (fn.name().equals("main")) {
+                return fn;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the calls made in the body of fn.
+     */
+    public List<CallExpNode> getCalls(FnSym fn) {
+        return myCalls.get(fn);
+    }
+
+    /**
+     * Return the calls of fn.
+     */
+    public List<CallExpNode> getCallers(FnSym fn) {
+        return myCallers.get(fn);
+    }
+
+    /**
+     * Return the function that contains call.
+     */
+    public FnSym getCaller(CallExpNode call) {
+        return myCallerOf.get(call);
+    }
+
+    /**
+     * Return the number of loops call is nested in.
+     */
+    public int getLoopDepth(CallExpNode call) {
+        return myDepth.get(call);
+    }
+
+    /**
+     * getSccs
+     * Return the strongly connected components of the graph, callees
+     * before their callers: a function comes after every function it
+     * calls, except the ones in its own component (which call each other).
+     */
+    public List<List<FnSym>> getSccs() {
+        if (mySccs == null) {
+            mySccs = new ArrayList<List<FnSym>>();
+            myIndex = new HashMap<FnSym, Integer>();
+            myLow = new HashMap<FnSym, Integer>();
+            myStack = new ArrayDeque<FnSym>();
+            for (FnSym fn : myFns.keySet()) {
+                if (!myIndex.containsKey(fn)) {
+                    visit(fn);
+                }
+            }
+        }
+        return mySccs;
+    }
+
+    private void visit(FnSym fn) {
+        int index = myIndex.size();
+        myIndex.put(fn, index);
+        myLow.put(fn, index);
+        myStack.push(fn);
+        for (CallExpNode call : myCalls.get(fn)) {
+            FnSym callee = call.fnSym();
+            if (!myIndex.containsKey(callee)) {
+                visit(callee);
+                myLow.put(fn, Math.min(myLow.get(fn), myLow.get(callee)));
+            } else if (myStack.contains(callee)) {
+                myLow.put(fn, Math.min(myLow.get(fn), myIndex.get(callee)));
+            }
+        }
+        if (myLow.get(fn) == index) {
+            List<FnSym> scc = new ArrayList<FnSym>();
+            FnSym member;
+            do {
+                member = myStack.pop();
+                scc.add(member);
+            } while (member != fn);
+            mySccs.add(scc);
+        }
+    }
+
+    /**
+     * Return true if fn can call itself, directly or through others.
+     */
+    public boolean isRecursive(FnSym fn) {
+        for (List<FnSym> scc : getSccs()) {
+            if (scc.size() > 1 && scc.contains(fn)) {
+                return true;
+            }
+        }
+        for (CallExpNode call : myCalls.get(fn)) {
+            if (call.fnSym() == fn) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
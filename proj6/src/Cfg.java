@@ -0,0 +1,366 @@
+import java.util.*;
+
+/**
+ * The Cfg class is the control-flow graph of one AsmFunction.
+ *
+ * The code is split into BasicBlocks (kept in layout order).  Unconditional
+ * jumps are not kept as instructions: a block simply records the block that
+ * runs after it (next), and a block that ends in a conditional branch also
+ * records the block the branch goes to (taken).  A block that ends in a
+ * jump through a table (see AsmInstr.getJumpTable) records the blocks the
+ * table entries go to instead.  linearize() turns the graph back into
+ * code, adding the jumps that the layout requires.
+ */
+public class Cfg {
+    private AsmFunction myFn;
+    private List<BasicBlock> myBlocks = new ArrayList<BasicBlock>();
+
+    private static final Map<String, String> INVERSE =
+        new HashMap<String, String>();
+    static {
+        String[][] pairs = { {"beq", "bne"}, {"blt", "bge"}, {"bgt", "ble"},
+                             {"bltu", "bgeu"}, {"bgtu", "bleu"},
+                             {"beqz", "bnez"}, {"bltz", "bgez"},
+                             {"bgtz", "blez"} };
+        for (String[] pair : pairs) {
+            INVERSE.put(pair[0], pair[1]);
+            INVERSE.put(pair[1], pair[0]);
+        }
+    }
+
+    public Cfg(AsmFunction fn) {
+        myFn = fn;
+        build();
+    }
+
+    public AsmFunction getFunction() {
+        return myFn;
+    }
+
+    public List<BasicBlock> getBlocks() {
+        return myBlocks;
+    }
+
+    public BasicBlock getEntry() {
+        return myBlocks.get(0);
+    }
+
+    /**
+     * build
+     * A new block starts at every label and after every jump, branch and
+     * return.
+     */
+    private void build() {
+        Map<String, BasicBlock> byLabel = new HashMap<String, BasicBlock>();
+        Map<BasicBlock, String> jumpTo = new HashMap<BasicBlock, String>();
+        BasicBlock cur = new BasicBlock();
+        myBlocks.add(cur);
+        boolean closed = false;
+
+        for (AsmInstr instr : myFn.getCode()) {
+            if (instr.isLabel()) {
+                if (closed || !cur.getInstrs().isEmpty()) {
+                    cur = new BasicBlock();
+                    myBlocks.add(cur);
+                    closed = false;
+                }
+                cur.getLabels().add(instr.getLabel());
+                byLabel.put(instr.getLabel(), cur);
+                continue;
+            }
+            if (closed) {
+                cur = new BasicBlock();
+                myBlocks.add(cur);
+                closed = false;
+            }
+            if (instr.isJump()) {
+                jumpTo.put(cur, instr.getTarget());
+                closed = true;
+            } else {
+                cur.getInstrs().add(instr);
+                closed = instr.isCondBranch() || instr.isReturn()
+                         || instr.getJumpTable() != null;
+            }
+        }
+
+        for (int k = 0; k < myBlocks.size(); k++) {
+            BasicBlock b = myBlocks.get(k);
+            BasicBlock layoutNext =
+                k + 1 < myBlocks.size() ? myBlocks.get(k + 1) : null;
+            AsmInstr last = b.getLast();
+            if (jumpTo.containsKey(b)) {
+                b.setNext(byLabel.get(jumpTo.get(b)));
+            } else if (last != null && last.isReturn()) {
+                b.setNext(null);
+            } else if (last != null && last.getJumpTable() != null) {
+                b.setNext(null);
+                List<BasicBlock> table = new ArrayList<BasicBlock>();
+                for (AsmInstr word : tableWords(last.getJumpTable())) {
+                    table.add(byLabel.get(word.getArg(0)));
+                }
+                b.setTable(table);
+            } else {
+                b.setNext(layoutNext);
+            }
+            if (last != null && last.isCondBranch()) {
+                b.setTaken(byLabel.get(last.getTarget()));
+            }
+        }
+        computePreds();
+    }
+
+    /**
+     * Return the ".word" items of the jump table with the given label, in
+     * the data of the function.
+     */
+    private List<AsmInstr> tableWords(String table) {
+        List<AsmInstr> data = myFn.getData();
+        List<AsmInstr> words = new ArrayList<AsmInstr>();
+        int k = 0;
+        while (k < data.size() && !table.equals(data.get(k).getLabel())) {
+            k++;
+        }
+        for (k++; k < data.size() && data.get(k).is(".word"); k++) {
+            words.add(data.get(k));
+        }
+        return words;
+    }
+
+    /**
+     * computePreds
+     * Recompute the predecessor lists from the successor links.
+     */
+    public void computePreds() {
+        for (BasicBlock b : myBlocks) {
+            b.getPreds().clear();
+        }
+        for (BasicBlock b : myBlocks) {
+            for (BasicBlock s : b.getSuccs()) {
+                s.getPreds().add(b);
+            }
+        }
+    }
+
+    /**
+     * removeUnreachable
+     * Delete the blocks that cannot be reached from the entry block, and
+     * the jump tables of the deleted blocks (whose words would otherwise
+     * name labels that are gone).  Returns true if anything was removed.
+     */
+    public boolean removeUnreachable() {
+        Set<BasicBlock> seen = new HashSet<BasicBlock>();
+        Deque<BasicBlock> work = new ArrayDeque<BasicBlock>();
+        work.push(getEntry());
+        while (!work.isEmpty()) {
+            BasicBlock b = work.pop();
+            if (seen.add(b)) {
+                for (BasicBlock s : b.getSuccs()) {
+                    work.push(s);
+                }
+            }
+        }
+        for (BasicBlock b : myBlocks) {
+            if (!seen.contains(b) && b.getTable() != null) {
+                removeTable(b.getLast().getJumpTable());
+            }
+        }
+        boolean changed = myBlocks.retainAll(seen);
+        computePreds();
+        return changed;
+    }
+
+    /**
+     * removeTable
+     * Delete the jump table with the given label from the data of the
+     * function: the .align before it, the label and its .word items.
+     */
+    private void removeTable(String table) {
+        List<AsmInstr> data = myFn.getData();
+        int k = 0;
+        while (k < data.size() && !table.equals(data.get(k).getLabel())) {
+            k++;
+        }
+        if (k == data.size()) {
+            return;
+        }
+        int end = k + 1;
+        while (end < data.size() && data.get(end).is(".word")) {
+            end++;
+        }
+        if (k > 0 && data.get(k - 1).is(".align")) {
+            k--;
+        }
+        data.subList(k, end).clear();
+    }
+
+    /**
+     * linearize
+     * Write the blocks back into the function in their current order.
+     * A jump is added wherever the successor of a block is not the block
+     * laid out after it, and a branch whose target is the next block is
+     * inverted so that it falls through instead.
+     */
+    public void linearize() {
+        for (int k = 0; k < myBlocks.size(); k++) {
+            BasicBlock b = myBlocks.get(k);
+            BasicBlock layoutNext =
+                k + 1 < myBlocks.size() ? myBlocks.get(k + 1) : null;
+            AsmInstr last = b.getLast();
+            if (last == null || !last.isCondBranch()) {
+                continue;
+            }
+            if (b.getTaken() != null && b.getTaken() == b.getNext()) {
+                b.getInstrs().remove(b.getInstrs().size() - 1);
+                b.setTaken(null);
+            } else if (b.getTaken() == layoutNext
+                       && INVERSE.containsKey(last.getOpcode())) {
+                AsmInstr inv = AsmInstr.instr(INVERSE.get(last.getOpcode()));
+                inv.getArgs().addAll(last.getArgs());
+                b.getInstrs().set(b.getInstrs().size() - 1, inv);
+                b.setTaken(b.getNext());
+                b.setNext(layoutNext);
+            }
+        }
+
+        // every target needs a label before any code is written out
+        for (int k = 0; k < myBlocks.size(); k++) {
+            BasicBlock b = myBlocks.get(k);
+            BasicBlock layoutNext =
+                k + 1 < myBlocks.size() ? myBlocks.get(k + 1) : null;
+            if (b.getTaken() != null) {
+                b.getLast().setTarget(b.getTaken().getLabel());
+            }
+            if (b.getNext() != null && b.getNext() != layoutNext) {
+                b.getNext().getLabel();
+            }
+            if (b.getTable() != null) {
+                List<AsmInstr> words = tableWords(b.getLast().getJumpTable());
+                for (int e = 0; e < words.size(); e++) {
+                    words.get(e).setArg(0, b.getTable().get(e).getLabel());
+                }
+            }
+        }
+
+        List<AsmInstr> code = new ArrayList<AsmInstr>();
+        for (int k = 0; k < myBlocks.size(); k++) {
+            BasicBlock b = myBlocks.get(k);
+            BasicBlock layoutNext =
+                k + 1 < myBlocks.size() ? myBlocks.get(k + 1) : null;
+            for (String label : b.getLabels()) {
+                code.add(AsmInstr.label(label));
+            }
+            code.addAll(b.getInstrs());
+            if (b.getNext() != null && b.getNext() != layoutNext) {
+                code.add(AsmInstr.instr("j", b.getNext().getLabel()));
+            }
+        }
+        myFn.setCode(code);
+    }
+}
+
+/**
+ * The BasicBlock class is a straight-line piece of code with the labels
+ * that start it.  The last instruction may be a conditional branch (to
+ * taken), a jump through a table (to the blocks of the table) or a
+ * return; otherwise control continues at next.
+ */
+class BasicBlock {
+    private List<String> myLabels = new ArrayList<String>();
+    private List<AsmInstr> myInstrs = new ArrayList<AsmInstr>();
+    private List<BasicBlock> myPreds = new ArrayList<BasicBlock>();
+    private BasicBlock myNext;
+    private BasicBlock myTaken;
+    private List<BasicBlock> myTable;   // by entry, for a table jump
+
+    public List<String> getLabels() {
+        return myLabels;
+    }
+
+    /**
+     * Return the first label of this block, creating one if there is none.
+     */
+    public String getLabel() {
+        if (myLabels.isEmpty()) {
+            myLabels.add(Codegen.nextLabel());
+        }
+        return myLabels.get(0);
+    }
+
+    public List<AsmInstr> getInstrs() {
+        return myInstrs;
+    }
+
+    public AsmInstr getLast() {
+        return myInstrs.isEmpty() ? null : myInstrs.get(myInstrs.size() - 1);
+    }
+
+    /**
+     * Return true if this block ends in a conditional branch.
+     */
+    public boolean endsInBranch() {
+        AsmInstr last = getLast();
+        return last != null && last.isCondBranch();
+    }
+
+    public BasicBlock getNext() {
+        return myNext;
+    }
+
+    public void setNext(BasicBlock next) {
+        myNext = next;
+    }
+
+    public BasicBlock getTaken() {
+        return myTaken;
+    }
+
+    public void setTaken(BasicBlock taken) {
+        myTaken = taken;
+    }
+
+    public List<BasicBlock> getTable() {
+        return myTable;
+    }
+
+    public void setTable(List<BasicBlock> table) {
+        myTable = table;
+    }
+
+    /**
+     * replaceSucc
+     * Make the edges from this block to from go to to instead.
+     */
+    public void replaceSucc(BasicBlock from, BasicBlock to) {
+        if (myTaken == from) {
+            myTaken = to;
+        }
+        if (myNext == from) {
+            myNext = to;
+        }
+        if (myTable != null) {
+            Collections.replaceAll(myTable, from, to);
+        }
+    }
+
+    public List<BasicBlock> getPreds() {
+        return myPreds;
+    }
+
+    public List<BasicBlock> getSuccs() {
+        List<BasicBlock> succs = new ArrayList<BasicBlock>(2);
+        if (myTaken != null) {
+            succs.add(myTaken);
+        }
+        if (myNext != null && myNext != myTaken) {
+            succs.add(myNext);
+        }
+        if (myTable != null) {
+            for (BasicBlock b : myTable) {
+                if (!succs.contains(b)) {
+                    succs.add(b);
+                }
+            }
+        }
+        return succs;
+    }
+}
@@ -0,0 +1,354 @@
+import java.util.*;
+
+/**
+ * The ConstantPropagation class is an interprocedural pass over the call
+ * graph.  It finds the params that are never assigned in their function
+ * and whose value is the same constant at every call (for example a flag
+ * that every caller passes as true), and records that value in the
+ * param's Sym; codeGen then treats the param as that constant, so
+ * branches on it disappear.  An argument counts as constant if it is an
+ * expression over literals and params that are constant themselves, so a
+ * value passed down a recursion is found too.
+ *
+ * For hot functions whose callers pass different constants, specialized
+ * copies are made instead: the calls are grouped by the constants they
+ * pass, and each group (up to MAX_CLONES per function, within
+ * CLONE_BUDGET for the program) gets a copy generated with those values.
+ * The copies aren't separate trees: FnDeclNode.codeGen generates the body
+ * again with the values set, and callTarget picks the copy at each call.
+ */
+public class ConstantPropagation implements AstPass {
+    // the most specialized copies made of one function
+    private static final int MAX_CLONES = 4;
+
+    // the largest function (in AST nodes) that is copied
+    private static final int MAX_CLONE_SIZE = 300;
+
+    // the most AST nodes the copies may add to the program
+    private static final int CLONE_BUDGET = 1500;
+
+    // a function is hot if its calls weigh this much (a call weighs 1,
+    // times 10 for each enclosing loop) or if it calls itself
+    private static final int HOT_WEIGHT = 10;
+
+    private CallGraph myGraph;
+    private Set<Sym> myCandidates = new HashSet<Sym>();    // read-only params
+    private Set<Sym> myUsed = new HashSet<Sym>();          // params read
+    // lattice value of each candidate: in myValues if it is constant, in
+    // myNotConst if not, neither if no call has been seen yet
+    private Map<Sym, Integer> myValues = new HashMap<Sym, Integer>();
+    private Set<Sym> myNotConst = new HashSet<Sym>();
+
+    public void run(ProgramNode root) {
+        myGraph = new CallGraph(root);
+        for (FnDeclNode fn : myGraph.getFunctions()) {
+            findCandidates(fn);
+        }
+        propagate();
+        for (Map.Entry<Sym, Integer> e : myValues.entrySet()) {
+            e.getKey().setConstValue(e.getValue());
+        }
+        specialize();
+    }
+
+    /**
+     * findCandidates
+     * Add the int and bool params of fn that are never written to
+     * myCandidates, and the params that are read to myUsed.
+     */
+    private void findCandidates(FnDeclNode fn) {
+        Set<Sym> written = new HashSet<Sym>();
+        Set<Sym> read = new HashSet<Sym>();
+        findUses(fn, written, read);
+        for (Sym param : fn.formalSyms()) {
+            Type type = param.getType();
+            if ((type.isIntType() || type.isBoolType())
+                && !written.contains(param)) {
+                myCandidates.add(param);
+            }
+            if (read.contains(param)) {
+                myUsed.add(param);
+            }
+        }
+    }
+
+    static void findUses(ASTnode node, Set<Sym> written, Set<Sym> read) {
+        ExpNode target = null;
+        if (node instanceof AssignNode) {
+            target = ((AssignNode)node).lhs();
+        } else if (node instanceof PostIncStmtNode) {
+            target = ((PostIncStmtNode)node).exp();
+        } else if (node instanceof PostDecStmtNode) {
+            target = ((PostDecStmtNode)node).exp();
+        } else if (node instanceof ReadStmtNode) {
+            target = ((ReadStmtNode)node).exp();
+        }
+        if (target instanceof IdNode) {
+            written.add(((IdNode)target).sym());
+        }
+        if (node instanceof IdNode) {
+            read.add(((IdNode)node).sym());
+        }
+        for (ASTnode kid : node.children()) {
+            findUses(kid, written, read);
+        }
+    }
+
+    // **********************************************************************
+    // propagation
+    // **********************************************************************
+
+    /**
+     * propagate
+     * Lower the value of each candidate to the meet of its arguments at
+     * all calls, until nothing changes.  Arguments that depend on a param
+     * with no value yet are skipped until it gets one.
+     */
+    private void propagate() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (FnDeclNode fn : myGraph.getFunctions()) {
+                for (CallExpNode call : myGraph.getCalls(fn.sym())) {
+                    changed |= meetArgs(call);
+                }
+            }
+        }
+    }
+
+    private boolean meetArgs(CallExpNode call) {
+        boolean changed = false;
+        List<Sym> params = myGraph.getDecl(call.fnSym()).formalSyms();
+        List<ExpNode> args = call.args();
+        for (int k = 0; k < params.size(); k++) {
+            Sym param = params.get(k);
+            if (!myCandidates.contains(param) || myNotConst.contains(param)) {
+                continue;
+            }
+            if (dependsOnUnknown(args.get(k))) {
+                continue;
+            }
+            Integer value = valueOf(args.get(k), myValues);
+            Integer old = myValues.get(param);
+            if (value == null || (old != null && !old.equals(value))) {
+                myValues.remove(param);
+                myNotConst.add(param);
+                changed = true;
+            } else if (old == null) {
+                myValues.put(param, value);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Return true if exp uses a candidate that has no value yet.
+     */
+    private boolean dependsOnUnknown(ASTnode exp) {
+        if (exp instanceof IdNode) {
+            Sym sym = ((IdNode)exp).sym();
+            return myCandidates.contains(sym) && !myValues.containsKey(sym)
+                   && !myNotConst.contains(sym);
+        }
+        for (ASTnode kid : exp.children()) {
+            if (dependsOnUnknown(kid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * valueOf
+     * Return the value of exp if it is an expression over literals and
+     * variables with known values (from env, or set in their Sym), or
+     * null if it isn't one or would trap.
+     */
+    static Integer valueOf(ExpNode exp, Map<Sym, Integer> env) {
+        if (exp instanceof IntLitNode) {
+            return ((IntLitNode)exp).intVal();
+        }
+        if (exp instanceof TrueNode) {
+            return 1;
+        }
+        if (exp instanceof FalseNode) {
+            return 0;
+        }
+        if (exp instanceof IdNode) {
+            Sym sym = ((IdNode)exp).sym();
+            return env.containsKey(sym) ? env.get(sym) : sym.getConstValue();
+        }
+        if (exp instanceof UnaryMinusNode) {
+            Integer x = valueOf(((UnaryExpNode)exp).myExp, env);
+            return x == null || x == Integer.MIN_VALUE ? null : Integer.valueOf(-x);
+        }
+        if (exp instanceof NotNode) {
+            Integer x = valueOf(((UnaryExpNode)exp).myExp, env);
+            return x == null ? null : Integer.valueOf(x == 0 ? 1 : 0);
+        }
+        if (exp instanceof BinaryExpNode) {
+            BinaryExpNode bin = (BinaryExpNode)exp;
+            if (bin.myExp1 instanceof StringLitNode
+                || bin.myExp2 instanceof StringLitNode) {
+                return null;
+            }
+            Integer x = valueOf(bin.myExp1, env);
+            if (x != null && exp instanceof AndNode && x == 0) {
+                return 0;
+            }
+            if (x != null && exp instanceof OrNode && x != 0) {
+                return 1;
+            }
+            Integer y = valueOf(bin.myExp2, env);
+            if (x == null || y == null) {
+                return null;
+            }
+            return InstrSelector.fold(bin, x, y);
+        }
+        return null;
+    }
+
+    // **********************************************************************
+    // specialization
+    // **********************************************************************
+
+    private void specialize() {
+        int budget = CLONE_BUDGET;
+        for (FnDeclNode fn : myGraph.getFunctions()) {
+            if (fn.name().equals("main")) {
+                continue;
+            }
+            FnSym sym = fn.sym();
+            int size = size(fn);
+            if (size > MAX_CLONE_SIZE || !isHot(sym) || sym.isMemoized()) {
+                continue;
+            }
+
+            // group the calls from other functions by the constants they
+            // pass for params not already known (for a recursive function,
+            // only params the recursion passes on unchanged, so that the
+            // recursive calls stay in the copy)
+            List<Sym> params = fn.formalSyms();
+            Set<Integer> fixed = passedOn(fn);
+            Map<Map<Integer, Integer>, Integer> weights =
+                new HashMap<Map<Integer, Integer>, Integer>();
+            for (CallExpNode call : myGraph.getCallers(sym)) {
+                if (myGraph.getCaller(call) == sym) {
+                    continue;
+                }
+                Map<Integer, Integer> consts = new TreeMap<Integer, Integer>();
+                for (int k = 0; k < params.size(); k++) {
+                    Sym param = params.get(k);
+                    if (!myCandidates.contains(param) || !myUsed.contains(param)
+                        || param.getConstValue() != null || !fixed.contains(k)) {
+                        continue;
+                    }
+                    Integer value = valueOf(call.args().get(k),
+                                            new HashMap<Sym, Integer>());
+                    if (value != null) {
+                        consts.put(k, value);
+                    }
+                }
+                if (!consts.isEmpty()) {
+                    Integer w = weights.get(consts);
+                    weights.put(consts, (w == null ? 0 : w) + weight(call));
+                }
+            }
+
+            List<Map<Integer, Integer>> groups =
+                new ArrayList<Map<Integer, Integer>>(weights.keySet());
+            Collections.sort(groups, new Comparator<Map<Integer, Integer>>() {
+                public int compare(Map<Integer, Integer> a, Map<Integer, Integer> b) {
+                    return weights.get(b) - weights.get(a);
+                }
+            });
+            int made = 0;
+            for (Map<Integer, Integer> consts : groups) {
+                if (made == MAX_CLONES || size > budget) {
+                    break;
+                }
+                made++;
+                budget -= size;
+                sym.addSpecialization(fn.name() + "__spec" + made, consts);
+            }
+        }
+    }
+
+    /**
+     * Return the positions of the params of fn that every call fn makes to
+     * itself passes on unchanged.
+     */
+    private Set<Integer> passedOn(FnDeclNode fn) {
+        Set<Integer> result = new HashSet<Integer>();
+        List<Sym> params = fn.formalSyms();
+        for (int k = 0; k < params.size(); k++) {
+            result.add(k);
+        }
+        for (CallExpNode call : myGraph.getCalls(fn.sym())) {
+            if (call.fnSym() != fn.sym()) {
+                continue;
+            }
+            for (int k = 0; k < params.size(); k++) {
+                ExpNode arg = call.args().get(k);
+                if (!(arg instanceof IdNode)
+                    || ((IdNode)arg).sym() != params.get(k)) {
+                    result.remove(k);
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean isHot(FnSym fn) {
+        int weight = 0;
+        for (CallExpNode call : myGraph.getCallers(fn)) {
+            if (myGraph.getCaller(call) == fn) {
+                return true;
+            }
+            weight += weight(call);
+        }
+        return weight >= HOT_WEIGHT;
+    }
+
+    private int weight(CallExpNode call) {
+        int weight = 1;
+        for (int k = 0; k < myGraph.getLoopDepth(call) && k < 3; k++) {
+            weight *= 10;
+        }
+        return weight;
+    }
+
+    static int size(ASTnode node) {
+        int size = 1;
+        for (ASTnode kid : node.children()) {
+            size += size(kid);
+        }
+        return size;
+    }
+
+    /**
+     * callTarget
+     * Return the label to call for call: the specialized copy of the
+     * callee that agrees with the most of its constant arguments (with
+     * the param values of the code being generated), or the callee.
+     */
+    static String callTarget(CallExpNode call) {
+        String target = call.fnName();
+        int matched = 0;
+        Map<Sym, Integer> none = new HashMap<Sym, Integer>();
+        for (Map.Entry<String, Map<Integer, Integer>> spec
+                 : call.fnSym().getSpecializations().entrySet()) {
+            boolean agrees = true;
+            for (Map.Entry<Integer, Integer> c : spec.getValue().entrySet()) {
+                Integer value = valueOf(call.args().get(c.getKey()), none);
+                agrees &= c.getValue().equals(value);
+            }
+            if (agrees && spec.getValue().size() > matched) {
+                target = spec.getKey();
+                matched = spec.getValue().size();
+            }
+        }
+        return target;
+    }
+}
@@ -0,0 +1,274 @@
+import java.util.*;
+
+/**
+ * The CopyPropagation class removes the register copies left by code
+ * generation, inside each basic block:
+ *
+ *   - A push of a register followed by a pop, with nothing in between
+ *     that touches the stack or changes the pushed register, is a copy
+ *     made through memory; it becomes a move (or nothing).
+ *
+ *   - After "move d, s", later reads of d read s instead, until d or s
+ *     changes; the move is then dropped if d is no longer needed.
+ *
+ *   - A "move d, s" whose s was computed earlier in the block and isn't
+ *     needed afterwards is coalesced: the instruction that computes s
+ *     writes d directly, and the move is dropped.
+ *
+ * Only registers that are already written are written, so the register
+ * summaries (see RegisterSummaries) stay valid.  The number of copies
+ * removed from each function is reported with -pass-remarks.
+ */
+public class CopyPropagation implements AsmPass {
+    public void run(AsmProgram prog) {
+        for (AsmFunction fn : prog.getFunctions()) {
+            Cfg cfg = new Cfg(fn);
+            int count = simplify(cfg, prog.getCallSummaries());
+            if (count > 0) {
+                cfg.linearize();
+                PassManager.remark("copy-prop", fn.getName() + ": coalesced "
+                                   + count + " moves");
+            }
+        }
+    }
+
+    /**
+     * simplify
+     * Remove the copies in the blocks of cfg (without linearizing it);
+     * return how many went away.  Other passes that make copies use this
+     * to clean up after themselves.  summaries are the register summaries
+     * of the program (see AsmProgram.getCallSummaries).
+     */
+    static int simplify(Cfg cfg, Map<String, Set<String>> summaries) {
+        Liveness live = new Liveness(cfg, summaries);
+        int count = 0;
+        for (BasicBlock b : cfg.getBlocks()) {
+            count += pushPops(b.getInstrs(), live);
+            count += coalesce(b, live);
+            count += propagate(b, live);
+            count += coalesce(b, live);
+        }
+        return count;
+    }
+
+    /**
+     * pushPops
+     * Replace each push that is popped with nothing in between using $sp
+     * or changing the pushed register by a move; return how many copies
+     * went away.
+     */
+    private static int pushPops(List<AsmInstr> instrs, Liveness live) {
+        int count = 0;
+        for (int j = 0; j + 1 < instrs.size(); j++) {
+            if (!isPop(instrs, j)) {
+                continue;
+            }
+            int k = j - 1;
+            while (k >= 0 && !usesStack(instrs.get(k), live)) {
+                k--;
+            }
+            if (k < 1 || !isPush(instrs, k - 1)) {
+                continue;
+            }
+            String src = instrs.get(k - 1).getArg(0);
+            String dest = instrs.get(j).getArg(0);
+            if (changesBetween(instrs, k + 1, j, src, live)) {
+                continue;
+            }
+            instrs.subList(j, j + 2).clear();
+            if (!dest.equals(src)) {
+                instrs.add(j, AsmInstr.instr("move", dest, src));
+            }
+            instrs.subList(k - 1, k + 1).clear();
+            count++;
+            j = Math.max(k - 2, -1);
+        }
+        return count;
+    }
+
+    private static boolean isPush(List<AsmInstr> instrs, int k) {
+        AsmInstr sw = instrs.get(k);
+        AsmInstr sub = instrs.get(k + 1);
+        return sw.is("sw") && sw.getArgs().size() == 2
+               && sw.getArg(1).equals("0(" + Codegen.SP + ")")
+               && isAdjust(sub, "subu");
+    }
+
+    private static boolean isPop(List<AsmInstr> instrs, int k) {
+        AsmInstr lw = instrs.get(k);
+        AsmInstr add = instrs.get(k + 1);
+        return lw.is("lw") && lw.getArgs().size() == 2
+               && lw.getArg(0).startsWith("$")
+               && !lw.getArg(0).equals(Codegen.SP)
+               && lw.getArg(1).equals("4(" + Codegen.SP + ")")
+               && isAdjust(add, "addu");
+    }
+
+    private static boolean isAdjust(AsmInstr instr, String op) {
+        return instr.is(op) && instr.getArgs().size() == 3
+               && instr.getArg(0).equals(Codegen.SP)
+               && instr.getArg(1).equals(Codegen.SP)
+               && instr.getArg(2).equals("4");
+    }
+
+    /**
+     * Return true if instr reads or writes $sp, or the memory it points
+     * to.
+     */
+    private static boolean usesStack(AsmInstr instr, Liveness live) {
+        return instr.isCall() || instr.getUses().contains(Codegen.SP)
+               || live.defs(instr).contains(Codegen.SP);
+    }
+
+    private static boolean changesBetween(List<AsmInstr> instrs, int from,
+                                          int to, String reg, Liveness live) {
+        for (int k = from; k < to; k++) {
+            if (live.defs(instrs.get(k)).contains(reg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * propagate
+     * Make the reads after each "move d, s" in b read s, and drop the
+     * moves whose d is no longer needed; return how many were dropped.
+     */
+    private static int propagate(BasicBlock b, Liveness live) {
+        List<AsmInstr> instrs = b.getInstrs();
+        int count = 0;
+        int i = 0;
+        while (i < instrs.size()) {
+            AsmInstr move = instrs.get(i);
+            if (!isMove(move)) {
+                i++;
+                continue;
+            }
+            String dest = move.getArg(0);
+            String src = move.getArg(1);
+            if (!dest.equals(src)) {
+                for (int k = i + 1; k < instrs.size(); k++) {
+                    AsmInstr instr = instrs.get(k);
+                    if (!rename(instr, dest, src)) {
+                        break;
+                    }
+                    Set<String> defs = live.defs(instr);
+                    if (defs.contains(dest) || defs.contains(src)) {
+                        break;
+                    }
+                }
+            }
+            if (dest.equals(src) || !live.liveAfter(b).get(i).contains(dest)) {
+                instrs.remove(i);
+                count++;
+            } else {
+                i++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * coalesce
+     * For each "move d, s" in b where s was last written by an earlier
+     * instruction of b and isn't needed after the move, have that
+     * instruction write d and drop the move; return how many were
+     * dropped.
+     */
+    private static int coalesce(BasicBlock b, Liveness live) {
+        List<AsmInstr> instrs = b.getInstrs();
+        int count = 0;
+        int i = 0;
+        while (i < instrs.size()) {
+            AsmInstr move = instrs.get(i);
+            if (!isMove(move)
+                || live.liveAfter(b).get(i).contains(move.getArg(1))) {
+                i++;
+                continue;
+            }
+            String dest = move.getArg(0);
+            String src = move.getArg(1);
+            int k = i - 1;
+            while (k >= 0 && !live.defs(instrs.get(k)).contains(src)) {
+                k--;
+            }
+            if (k < 0 || !canCoalesce(instrs, k, i, dest, src, live)) {
+                i++;
+                continue;
+            }
+            instrs.get(k).setArg(0, dest);
+            for (int j = k + 1; j < i; j++) {
+                rename(instrs.get(j), src, dest);
+            }
+            instrs.remove(i);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Return true if the instruction at def writes only src, as its first
+     * operand, and the instructions from there to the move at end neither
+     * read nor write dest and read src only as an operand.
+     */
+    private static boolean canCoalesce(List<AsmInstr> instrs, int def, int end,
+                                       String dest, String src, Liveness live) {
+        AsmInstr instr = instrs.get(def);
+        if (instr.isCall() || instr.readsDef() || !src.equals(instr.getDef())
+            || live.defs(instr).size() != 1) {
+            return false;
+        }
+        for (int k = def + 1; k < end; k++) {
+            instr = instrs.get(k);
+            if (instr.getUses().contains(dest)
+                || live.defs(instr).contains(dest)
+                || instr.getUses().contains(src) && !readsOperands(instr)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isMove(AsmInstr instr) {
+        return instr.is("move") && instr.getArgs().size() == 2
+               && instr.getArg(0).startsWith("$")
+               && instr.getArg(1).startsWith("$");
+    }
+
+    /**
+     * Return true if instr reads its registers only through its operands
+     * (not implied, as by a call or syscall).
+     */
+    private static boolean readsOperands(AsmInstr instr) {
+        return !instr.isCall() && !instr.isReturn() && !instr.is("syscall")
+               && !instr.is("mflo") && !instr.is("mfhi");
+    }
+
+    /**
+     * rename
+     * Make instr read to instead of from; return false (and change
+     * nothing) if it can't, because it reads from other than through an
+     * operand.
+     */
+    private static boolean rename(AsmInstr instr, String from, String to) {
+        if (!instr.getUses().contains(from)) {
+            return true;
+        }
+        if (!readsOperands(instr) || instr.readsDef()
+                                       && instr.getArg(0).equals(from)) {
+            return false;
+        }
+        String def = instr.getDef();
+        List<String> args = instr.getArgs();
+        for (int k = 0; k < args.size(); k++) {
+            String arg = args.get(k);
+            if (from.equals(AsmInstr.baseOf(arg))) {
+                args.set(k, arg.substring(0, arg.indexOf('(')) + "(" + to + ")");
+            } else if (arg.equals(from) && !(k == 0 && arg.equals(def))) {
+                args.set(k, to);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,161 @@
+import java.util.*;
+
+/**
+ * The DataLayout class collects the global variables, which codeGen writes
+ * out one at a time (each in its own .data section with its own .align),
+ * into a single block at the start of the program.  The globals are
+ * ordered by how often the code refers to them, counting a reference
+ * inside a loop as more frequent than one outside, so that the most used
+ * globals are next to each other.  Each one is a zero-filled .space.
+ */
+public class DataLayout implements AsmPass {
+    // weight of a reference for each level of loop nesting
+    private static final int LOOP_WEIGHT = 10;
+    private static final int MAX_DEPTH = 3;
+
+    public void run(AsmProgram prog) {
+        if (prog.getFunctions().isEmpty()) {
+            return;
+        }
+
+        // take the globals out of the data of each function
+        List<String> names = new ArrayList<String>();
+        Map<String, Integer> sizes = new HashMap<String, Integer>();
+        for (AsmFunction fn : prog.getFunctions()) {
+            removeGlobals(fn.getData(), names, sizes);
+        }
+        if (names.isEmpty()) {
+            return;
+        }
+
+        // estimate how often each is used
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String name : names) {
+            counts.put(name, 0);
+        }
+        for (AsmFunction fn : prog.getFunctions()) {
+            countRefs(fn.getCode(), counts);
+        }
+
+        // most used first; a stable sort keeps declaration order on ties
+        List<String> order = new ArrayList<String>(names);
+        Collections.sort(order, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return counts.get(b) - counts.get(a);
+            }
+        });
+
+        List<AsmInstr> block = new ArrayList<AsmInstr>();
+        block.add(AsmInstr.instr(".align", "2"));
+        for (String name : order) {
+            block.add(AsmInstr.label(name));
+            block.add(AsmInstr.instr(".space", "" + sizes.get(name)));
+        }
+        prog.getFunctions().get(0).getData().addAll(0, block);
+    }
+
+    /**
+     * removeGlobals
+     * Remove the ".align; name: .word 0" (or ".space n") groups from data,
+     * recording the names in order and the size of each.
+     */
+    private void removeGlobals(List<AsmInstr> data, List<String> names,
+                               Map<String, Integer> sizes) {
+        List<AsmInstr> kept = new ArrayList<AsmInstr>();
+        for (int k = 0; k < data.size(); k++) {
+            AsmInstr instr = data.get(k);
+            int size = -1;
+            if (instr.isLabel() && k + 1 < data.size()) {
+                size = zeroSize(data.get(k + 1));
+            }
+            if (size < 0) {
+                kept.add(instr);
+                continue;
+            }
+
+            // the .align in front of it is only there for this global
+            AsmInstr prev = kept.isEmpty() ? null : kept.get(kept.size() - 1);
+            if (prev != null && prev.is(".align")) {
+                kept.remove(kept.size() - 1);
+            }
+            names.add(instr.getLabel());
+            sizes.put(instr.getLabel(), size);
+            k++;
+        }
+        data.clear();
+        data.addAll(kept);
+    }
+
+    /**
+     * Return the number of zero bytes a data item reserves, or -1 if it is
+     * not a zero-filled word area.
+     */
+    private int zeroSize(AsmInstr instr) {
+        List<String> args = instr.getArgs();
+        if (instr.is(".word") && !args.isEmpty()) {
+            for (String arg : args) {
+                if (!arg.equals("0")) {
+                    return -1;
+                }
+            }
+            return 4 * args.size();
+        }
+        if (instr.is(".space") && args.size() == 1
+            && AsmInstr.isImmediate(args.get(0))
+            && Integer.parseInt(args.get(0)) % 4 == 0) {
+            return Integer.parseInt(args.get(0));
+        }
+        return -1;
+    }
+
+    /**
+     * countRefs
+     * Add the weighted number of references to each global in code.  An
+     * instruction is taken to be in a loop when it lies between a label
+     * and a later jump or branch back to that label.
+     */
+    private void countRefs(List<AsmInstr> code, Map<String, Integer> counts) {
+        Map<String, Integer> labelAt = new HashMap<String, Integer>();
+        int[] depth = new int[code.size() + 1];
+        for (int k = 0; k < code.size(); k++) {
+            AsmInstr instr = code.get(k);
+            if (instr.isLabel()) {
+                labelAt.put(instr.getLabel(), k);
+            } else if (instr.isJump() || instr.isCondBranch()) {
+                Integer start = labelAt.get(instr.getTarget());
+                if (start != null) {
+                    depth[start]++;
+                    depth[k + 1]--;
+                }
+            }
+        }
+
+        int level = 0;
+        for (int k = 0; k < code.size(); k++) {
+            level += depth[k];
+            AsmInstr instr = code.get(k);
+            if (instr.isLabel()) {
+                continue;
+            }
+            int weight = 1;
+            for (int d = 0; d < Math.min(level, MAX_DEPTH); d++) {
+                weight *= LOOP_WEIGHT;
+            }
+            for (String arg : instr.getArgs()) {
+                String name = arg;
+                int open = arg.indexOf('(');
+                if (open > 0) {
+                    name = arg.substring(0, open);   // e.g. "g+4($t0)"
+                }
+                int plus = name.indexOf('+');
+                if (plus > 0) {
+                    name = name.substring(0, plus);
+                }
+                Integer count = counts.get(name);
+                if (count != null) {
+                    counts.put(name, count + weight);
+                }
+            }
+        }
+    }
+}
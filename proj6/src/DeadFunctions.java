@@ -0,0 +1,163 @@
+import java.util.*;
+
+/**
+ * The DeadFunctions class removes the code that can't run.  Before code
+ * generation it walks the call graph from main and takes the functions it
+ * doesn't reach out of the program, then the globals that no remaining
+ * function uses; the strcmp helper is generated only if some remaining
+ * code compares strings.
+ *
+ * After code generation it does the same over the asm, following the jal
+ * (and other label) references from main: a function whose callers all
+ * call its specialized copies instead (see ConstantPropagation), or a
+ * copy that no call picked, is dropped there.
+ *
+ * What is dropped is reported with -pass-remarks.
+ */
+public class DeadFunctions implements AstPass, AsmPass {
+    private static final String NAME = "dead-functions";
+
+    public void run(ProgramNode root) {
+        CallGraph graph = new CallGraph(root);
+        FnDeclNode main = graph.getMain();
+        if (main == null) {
+            return;
+        }
+
+        // the functions reachable from main
+        Set<FnSym> live = new HashSet<FnSym>();
+        Deque<FnSym> work = new ArrayDeque<FnSym>();
+        live.add(main.sym());
+        work.push(main.sym());
+        while (!work.isEmpty()) {
+            for (CallExpNode call : graph.getCalls(work.pop())) {
+                if (live.add(call.fnSym())) {
+                    work.push(call.fnSym());
+                }
+            }
+        }
+
+        // the globals and helpers the live functions use
+        Set<Sym> used = new HashSet<Sym>();
+        boolean strcmp = false;
+        for (FnDeclNode fn : graph.getFunctions()) {
+            if (live.contains(fn.sym())) {
+                strcmp |= findUses(fn, used);
+            }
+        }
+
+        List<DeclNode> dead = new ArrayList<DeclNode>();
+        for (ASTnode decl : root.declList().children()) {
+            if (decl instanceof FnDeclNode
+                && !live.contains(((FnDeclNode)decl).sym())) {
+                dead.add((DeclNode)decl);
+                PassManager.remark(NAME, "removed function "
+                                   + ((FnDeclNode)decl).name());
+            } else if (decl instanceof VarDeclNode
+                       && !used.contains(((VarDeclNode)decl).sym())) {
+                dead.add((DeclNode)decl);
+                PassManager.remark(NAME, "removed global "
+                                   + ((VarDeclNode)decl).name());
+            }
+        }
+        root.declList().removeDecls(dead);
+        root.setNeedsStrcmp(strcmp);
+        if (!strcmp) {
+            PassManager.remark(NAME, "removed helper strcmp");
+        }
+    }
+
+    /**
+     * findUses
+     * Add the variables node refers to to used, and return true if it
+     * compares strings (and so needs strcmp).
+     */
+    private static boolean findUses(ASTnode node, Set<Sym> used) {
+        boolean strcmp = false;
+        if (node instanceof IdNode) {
+            used.add(((IdNode)node).sym());
+        } else if (node instanceof EqualityExpNode) {
+            BinaryExpNode bin = (BinaryExpNode)node;
+            strcmp = bin.myExp1 instanceof StringLitNode
+                     || bin.myExp2 instanceof StringLitNode;
+        }
+        for (ASTnode kid : node.children()) {
+            strcmp |= findUses(kid, used);
+        }
+        return strcmp;
+    }
+
+    public void run(AsmProgram prog) {
+        List<AsmFunction> fns = prog.getFunctions();
+        Map<String, AsmFunction> byName = new HashMap<String, AsmFunction>();
+        for (AsmFunction fn : fns) {
+            byName.put(fn.getName(), fn);
+        }
+        if (!byName.containsKey("main")) {
+            return;
+        }
+
+        Set<AsmFunction> live = new HashSet<AsmFunction>();
+        Deque<AsmFunction> work = new ArrayDeque<AsmFunction>();
+        live.add(byName.get("main"));
+        work.push(byName.get("main"));
+        while (!work.isEmpty()) {
+            Set<String> refs = new HashSet<String>();
+            work.pop().addLabelRefs(refs);
+            for (String ref : refs) {
+                AsmFunction fn = byName.get(ref);
+                if (fn != null && live.add(fn)) {
+                    work.push(fn);
+                }
+            }
+        }
+
+        // the data in front of a dropped function (globals declared
+        // before it) moves to the next function that stays
+        List<AsmInstr> data = new ArrayList<AsmInstr>();
+        for (Iterator<AsmFunction> it = fns.iterator(); it.hasNext(); ) {
+            AsmFunction fn = it.next();
+            if (live.contains(fn)) {
+                fn.getData().addAll(0, data);
+                data.clear();
+            } else {
+                data.addAll(withoutTables(fn));
+                it.remove();
+                PassManager.remark(NAME, "removed unused code " + fn.getName());
+            }
+        }
+        if (!data.isEmpty()) {
+            fns.get(fns.size() - 1).getData().addAll(data);
+        }
+    }
+
+    /**
+     * Return the data of fn without its jump tables (the labels followed
+     * by ".word" items that name labels of its code), which go away with
+     * the code.
+     */
+    private static List<AsmInstr> withoutTables(AsmFunction fn) {
+        Set<String> labels = new HashSet<String>();
+        for (AsmInstr instr : fn.getCode()) {
+            if (instr.isLabel()) {
+                labels.add(instr.getLabel());
+            }
+        }
+        List<AsmInstr> data = fn.getData();
+        List<AsmInstr> kept = new ArrayList<AsmInstr>();
+        for (int k = 0; k < data.size(); k++) {
+            AsmInstr instr = data.get(k);
+            AsmInstr next = k + 1 < data.size() ? data.get(k + 1) : null;
+            if (!isEntry(instr, labels)
+                && !(instr.isLabel() && isEntry(next, labels))) {
+                kept.add(instr);
+            }
+        }
+        return kept;
+    }
+
+    private static boolean isEntry(AsmInstr instr, Set<String> labels) {
+        return instr != null && instr.is(".word")
+               && labels.contains(instr.getArg(0));
+    }
+}
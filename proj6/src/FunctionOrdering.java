@@ -0,0 +1,170 @@
+import java.util.*;
+
+/**
+ * The FunctionOrdering class lays out the functions of the program so
+ * that callers and callees that call each other most are next to each
+ * other in .text (Pettis and Hansen's "closest is best"), which keeps the
+ * code that runs together in fewer cache lines and pages.
+ *
+ * The weight of a caller/callee pair is the number of jal sites between
+ * them, each counting LOOP_WEIGHT times more for each loop around it (up
+ * to MAX_DEPTH).  Every function starts as a chain of its own; the pairs
+ * are taken heaviest first, and each joins the chains of its two
+ * functions (unless they are in one already), turning them around as
+ * needed to put the two functions as close as possible.  The chains are
+ * then written out in the order of their first function in the source.
+ *
+ * A function whose code doesn't end in a jump or return runs on into the
+ * one after it, so the two are kept together.
+ */
+public class FunctionOrdering implements AsmPass {
+    // weight of a call for each level of loop nesting
+    private static final int LOOP_WEIGHT = 10;
+    private static final int MAX_DEPTH = 3;
+
+    public void run(AsmProgram prog) {
+        List<AsmFunction> fns = prog.getFunctions();
+
+        // the pieces that can be moved, and the piece of each label
+        List<List<AsmFunction>> units = new ArrayList<List<AsmFunction>>();
+        Map<String, Integer> unitOf = new HashMap<String, Integer>();
+        List<AsmFunction> unit = null;
+        for (AsmFunction fn : fns) {
+            if (unit == null) {
+                unit = new ArrayList<AsmFunction>();
+                units.add(unit);
+            }
+            unit.add(fn);
+            for (AsmInstr instr : fn.getCode()) {
+                if (instr.isLabel()) {
+                    unitOf.put(instr.getLabel(), units.size() - 1);
+                }
+            }
+            if (endsFlow(fn)) {
+                unit = null;
+            }
+        }
+        if (units.size() < 3) {
+            return;
+        }
+
+        // the weight of each pair of units, by the lower index
+        final Map<List<Integer>, Integer> weights =
+            new LinkedHashMap<List<Integer>, Integer>();
+        for (int u = 0; u < units.size(); u++) {
+            for (AsmFunction fn : units.get(u)) {
+                addCalls(fn, u, unitOf, weights);
+            }
+        }
+        List<List<Integer>> pairs =
+            new ArrayList<List<Integer>>(weights.keySet());
+        Collections.sort(pairs, new Comparator<List<Integer>>() {
+            public int compare(List<Integer> a, List<Integer> b) {
+                return weights.get(b) - weights.get(a);
+            }
+        });
+
+        // join the chains, heaviest pair first
+        Map<Integer, List<Integer>> chainOf =
+            new HashMap<Integer, List<Integer>>();
+        for (int u = 0; u < units.size(); u++) {
+            chainOf.put(u, new ArrayList<Integer>(Arrays.asList(u)));
+        }
+        for (List<Integer> pair : pairs) {
+            List<Integer> left = chainOf.get(pair.get(0));
+            List<Integer> right = chainOf.get(pair.get(1));
+            if (left == right) {
+                continue;
+            }
+            List<Integer> chain = join(left, right, pair.get(0), pair.get(1));
+            for (int u : chain) {
+                chainOf.put(u, chain);
+            }
+        }
+
+        // the chains, each where its first unit was
+        List<AsmFunction> order = new ArrayList<AsmFunction>();
+        Set<List<Integer>> done = new HashSet<List<Integer>>();
+        for (int u = 0; u < units.size(); u++) {
+            List<Integer> chain = chainOf.get(u);
+            if (done.add(chain)) {
+                for (int v : chain) {
+                    order.addAll(units.get(v));
+                }
+            }
+        }
+        if (!order.equals(fns)) {
+            fns.clear();
+            fns.addAll(order);
+            PassManager.remark("function-order", "placed " + units.size()
+                               + " functions in " + done.size() + " chains");
+        }
+    }
+
+    /**
+     * Return true if control can't run off the end of fn into the next
+     * function: its last instruction is a jump, a return, or the exit
+     * syscall.
+     */
+    private static boolean endsFlow(AsmFunction fn) {
+        List<AsmInstr> code = fn.getCode();
+        AsmInstr last = code.get(code.size() - 1);
+        if (last.isJump() || last.is("jr")) {
+            return true;
+        }
+        AsmInstr prev = code.size() > 1 ? code.get(code.size() - 2) : null;
+        return last.is("syscall") && prev != null && prev.is("li")
+               && prev.getArg(0).equals(Codegen.V0)
+               && prev.getArg(1).equals("10");
+    }
+
+    /**
+     * addCalls
+     * Add the weights of the calls in fn, which is in unit u, to weights.
+     */
+    private static void addCalls(AsmFunction fn, int u,
+                                 Map<String, Integer> unitOf,
+                                 Map<List<Integer>, Integer> weights) {
+        Cfg cfg = new Cfg(fn);
+        Loops loops = new Loops(cfg);
+        for (BasicBlock b : cfg.getBlocks()) {
+            int weight = 1;
+            int depth = 0;
+            for (Loop loop : loops.getLoops()) {
+                if (loop.contains(b) && depth++ < MAX_DEPTH) {
+                    weight *= LOOP_WEIGHT;
+                }
+            }
+            for (AsmInstr instr : b.getInstrs()) {
+                Integer v = instr.isCall() ? unitOf.get(instr.getTarget())
+                                           : null;
+                if (v == null || v == u) {
+                    continue;
+                }
+                List<Integer> pair = Arrays.asList(Math.min(u, v),
+                                                   Math.max(u, v));
+                Integer old = weights.get(pair);
+                weights.put(pair, (old == null ? 0 : old) + weight);
+            }
+        }
+    }
+
+    /**
+     * join
+     * Return the chain made of left and right, one of them turned around
+     * if that puts a (in left) and b (in right) closer together.
+     */
+    private static List<Integer> join(List<Integer> left, List<Integer> right,
+                                      int a, int b) {
+        // a at the end of left and b at the start of right is best
+        if (left.indexOf(a) < left.size() - 1 - left.indexOf(a)) {
+            Collections.reverse(left);
+        }
+        if (right.indexOf(b) > right.size() - 1 - right.indexOf(b)) {
+            Collections.reverse(right);
+        }
+        List<Integer> chain = new ArrayList<Integer>(left);
+        chain.addAll(right);
+        return chain;
+    }
+}
@@ -0,0 +1,715 @@
+import java.util.*;
+
+/**
+ * The InductionVariables class keeps loop variables in registers and
+ * simplifies the arithmetic on loop counters, on the natural loops of
+ * each function (see Loops), inner loops first.
+ *
+ * Promotion: a local or param that a loop only loads and stores with lw
+ * and sw (and whose address is never taken, as cin takes it) is loaded
+ * into a free register before the loop, in a new preheader block, and
+ * stored back on the edges that leave the loop if it may be read later.
+ * The loads and stores in the loop become moves, which CopyPropagation
+ * then removes, so a counter "i++" becomes one addi and the test
+ * "i < n" a single compare-and-branch on registers.  A free register is
+ * one the loop doesn't touch (calls count by their register summaries),
+ * that isn't live into the loop, and that the function may change (see
+ * RegisterSummaries).
+ *
+ * Strength reduction: in an inner loop, a promoted variable i whose only
+ * change is "addi i, i, c" is a basic induction variable, and i * k
+ * computed as "mul d, i, k" or "sll d, i, s" is a derived one.  It is
+ * kept in its own register j, set before the loop and bumped by c * k
+ * right after i is, so the multiply leaves the loop.
+ *
+ * Linear-function test replacement: if i is then used only by the loop
+ * test ("slti t, i, n" and a branch, or a branch comparing i with 0, at
+ * the end of the loop), isn't read after the loop, and starts at a known
+ * value, the test becomes "slti t, j, n * k" (or compares j with 0) and
+ * i is no longer kept at all.  This is only done
+ * when the values j takes can be shown not to overflow.
+ */
+public class InductionVariables implements AsmPass {
+    private static final String NAME = "iv";
+
+    // the branches that compare a register with 0
+    private static final Set<String> ZERO_BRANCHES = new HashSet<String>(
+        Arrays.asList("bltz", "blez", "bgtz", "bgez"));
+
+    // the registers a variable may be kept in, in order of preference
+    private static final List<String> REGS = Arrays.asList(
+        "$t0", "$t1", "$t2", "$t3", "$t4", "$t5", "$t6", "$t7", "$t8", "$t9",
+        "$v1", "$a1", "$a2", "$a3", "$v0", "$a0");
+
+    /**
+     * A loop whose variables were promoted.
+     */
+    private static class Promoted {
+        Loop loop;
+        BasicBlock preheader;
+        boolean inner;                  // contains no other loop
+        // the register of each promoted slot ("k($fp)")
+        Map<String, String> regs = new LinkedHashMap<String, String>();
+        // the slots stored back after the loop
+        Set<String> stored = new HashSet<String>();
+    }
+
+    private AsmProgram myProg;
+    private AsmFunction myFn;
+    private Cfg myCfg;
+    // slots whose address is taken somewhere in the function
+    private Set<String> myEscaped;
+    private int myReduced;
+    private int myReplaced;
+
+    public void run(AsmProgram prog) {
+        myProg = prog;
+        for (AsmFunction fn : prog.getFunctions()) {
+            myFn = fn;
+            myCfg = new Cfg(fn);
+            myEscaped = escapedSlots(fn);
+            myReduced = 0;
+            myReplaced = 0;
+
+            List<Promoted> done = new ArrayList<Promoted>();
+            Set<BasicBlock> seen = new HashSet<BasicBlock>();
+            Promoted p;
+            while ((p = promoteNext(seen)) != null) {
+                done.add(p);
+            }
+            if (done.isEmpty()) {
+                continue;
+            }
+            CopyPropagation.simplify(myCfg, prog.getCallSummaries());
+            for (Promoted q : done) {
+                if (q.inner) {
+                    reduce(q);
+                }
+            }
+            CopyPropagation.simplify(myCfg, prog.getCallSummaries());
+            myCfg.linearize();
+
+            int vars = 0;
+            for (Promoted q : done) {
+                vars += q.regs.size();
+            }
+            PassManager.remark(NAME, fn.getName() + ": kept " + vars
+                               + " variables in registers in " + done.size()
+                               + " loops, reduced " + myReduced
+                               + ", replaced " + myReplaced + " loop tests");
+        }
+    }
+
+    /**
+     * Return the slots whose address some instruction of fn takes, except
+     * for the address of a cin, which is only stored to right away.
+     */
+    private static Set<String> escapedSlots(AsmFunction fn) {
+        Set<String> escaped = new HashSet<String>();
+        List<AsmInstr> code = fn.getCode();
+        for (int i = 0; i < code.size(); i++) {
+            AsmInstr instr = code.get(i);
+            List<String> args = instr.getArgs();
+            for (int k = 0; k < args.size(); k++) {
+                if (Codegen.FP.equals(AsmInstr.baseOf(args.get(k)))
+                    && !isAccess(instr, k) && !isReadInto(code, i)) {
+                    escaped.add(slot(args.get(k)));
+                }
+            }
+        }
+        return escaped;
+    }
+
+    /**
+     * Return true if the instruction at i is "la r, k($fp)" and the next
+     * one "sw x, 0(r)", as for cin.
+     */
+    private static boolean isReadInto(List<AsmInstr> code, int i) {
+        AsmInstr la = code.get(i);
+        if (!la.is("la") || i + 1 >= code.size()) {
+            return false;
+        }
+        AsmInstr sw = code.get(i + 1);
+        return sw.is("sw") && sw.getArgs().size() == 2
+               && sw.getArg(1).equals("0(" + la.getArg(0) + ")");
+    }
+
+    /**
+     * Return true if operand k of instr is the frame slot it loads or
+     * stores (not a global, which has no base register).
+     */
+    private static boolean isAccess(AsmInstr instr, int k) {
+        return (instr.is("lw") || instr.is("sw")) && k == 1
+               && instr.getArgs().size() == 2
+               && Codegen.FP.equals(AsmInstr.baseOf(instr.getArg(1)));
+    }
+
+    /**
+     * Return the slot named by a "k($fp)" operand, in a standard form.
+     */
+    private static String slot(String arg) {
+        return AsmInstr.offsetOf(arg) + "(" + Codegen.FP + ")";
+    }
+
+    // **********************************************************************
+    // promotion
+    // **********************************************************************
+
+    /**
+     * promoteNext
+     * Find the innermost loop whose header isn't in seen, mark it seen and
+     * promote its variables.  Return what was done, or null when no loop
+     * is left.
+     */
+    private Promoted promoteNext(Set<BasicBlock> seen) {
+        while (true) {
+            Loops loops = new Loops(myCfg);
+            Loop loop = null;
+            for (Loop l : loops.getLoops()) {
+                if (!seen.contains(l.getHeader())) {
+                    loop = l;
+                    break;
+                }
+            }
+            if (loop == null) {
+                return null;
+            }
+            seen.add(loop.getHeader());
+            Promoted p = promote(loop, isInner(loop, loops));
+            if (p != null) {
+                return p;
+            }
+        }
+    }
+
+    private static boolean isInner(Loop loop, Loops loops) {
+        for (Loop other : loops.getLoops()) {
+            if (other != loop && loop.contains(other.getHeader())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * promote
+     * Keep the variables of loop in registers; return null if none could
+     * be.
+     */
+    private Promoted promote(Loop loop, boolean inner) {
+        // count the accesses to each slot
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        Set<String> bad = new HashSet<String>(myEscaped);
+        for (BasicBlock b : loop.getBlocks()) {
+            for (AsmInstr instr : b.getInstrs()) {
+                if (defs(instr).contains(Codegen.FP)) {
+                    return null;
+                }
+                List<String> args = instr.getArgs();
+                for (int k = 0; k < args.size(); k++) {
+                    String arg = args.get(k);
+                    if (Codegen.FP.equals(arg)) {
+                        return null;    // $fp used to compute an address
+                    }
+                    if (!Codegen.FP.equals(AsmInstr.baseOf(arg))) {
+                        continue;
+                    }
+                    String slot = slot(arg);
+                    int offset = AsmInstr.offsetOf(arg);
+                    if (!isAccess(instr, k) || offset == 0 || offset == -4) {
+                        bad.add(slot);  // not a variable
+                    }
+                    Integer n = counts.get(slot);
+                    counts.put(slot, n == null ? 1 : n + 1);
+                }
+            }
+        }
+        counts.keySet().removeAll(bad);
+        List<String> slots = new ArrayList<String>(counts.keySet());
+        Collections.sort(slots, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return counts.get(b) - counts.get(a);
+            }
+        });
+
+        Promoted p = new Promoted();
+        p.loop = loop;
+        p.inner = inner;
+        Set<String> taken = new HashSet<String>();
+        for (String slot : slots) {
+            String reg = freeRegister(loop, taken);
+            if (reg == null) {
+                break;
+            }
+            taken.add(reg);
+            p.regs.put(slot, reg);
+        }
+        if (p.regs.isEmpty()) {
+            return null;
+        }
+
+        // loads in the preheader, moves in the loop, stores on the exits
+        p.preheader = addPreheader(loop);
+        for (Map.Entry<String, String> e : p.regs.entrySet()) {
+            p.preheader.getInstrs().add(
+                AsmInstr.instr("lw", e.getValue(), e.getKey()));
+        }
+        Set<String> written = new HashSet<String>();
+        for (BasicBlock b : loop.getBlocks()) {
+            List<AsmInstr> instrs = b.getInstrs();
+            for (int k = 0; k < instrs.size(); k++) {
+                AsmInstr instr = instrs.get(k);
+                String reg = instr.getArgs().size() == 2
+                             && Codegen.FP.equals(AsmInstr.baseOf(instr.getArg(1)))
+                             ? p.regs.get(slot(instr.getArg(1))) : null;
+                if (reg == null) {
+                    continue;
+                }
+                if (instr.is("lw")) {
+                    instrs.set(k, AsmInstr.instr("move", instr.getArg(0), reg));
+                } else {
+                    instrs.set(k, AsmInstr.instr("move", reg, instr.getArg(0)));
+                    written.add(slot(instr.getArg(1)));
+                }
+            }
+        }
+        addStores(p, written);
+        return p;
+    }
+
+    /**
+     * freeRegister
+     * Return a register that loop doesn't use or change, that isn't live
+     * into it and that the function may change, and isn't in taken; or
+     * null.
+     */
+    private String freeRegister(Loop loop, Set<String> taken) {
+        Set<String> busy = new HashSet<String>(taken);
+        for (BasicBlock b : loop.getBlocks()) {
+            for (AsmInstr instr : b.getInstrs()) {
+                busy.addAll(instr.getUses());
+                busy.addAll(defs(instr));
+            }
+        }
+        busy.addAll(new Liveness(myCfg, myProg.getCallSummaries())
+                        .liveIn(loop.getHeader()));
+        for (String reg : REGS) {
+            if (!busy.contains(reg)
+                && RegisterSummaries.mayChange(myProg, myFn.getName(), reg)) {
+                return reg;
+            }
+        }
+        for (String reg : REGS) {
+            if (!busy.contains(reg)
+                && RegisterSummaries.claim(myProg, myFn, reg)) {
+                return reg;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * addPreheader
+     * Put a new block in front of the header of loop that all the edges
+     * from outside the loop go through, and return it.
+     */
+    private BasicBlock addPreheader(Loop loop) {
+        BasicBlock header = loop.getHeader();
+        BasicBlock pre = new BasicBlock();
+        pre.setNext(header);
+        for (BasicBlock b : new ArrayList<BasicBlock>(header.getPreds())) {
+            if (!loop.contains(b)) {
+                b.replaceSucc(header, pre);
+            }
+        }
+        List<BasicBlock> blocks = myCfg.getBlocks();
+        blocks.add(blocks.indexOf(header), pre);
+        myCfg.computePreds();
+        return pre;
+    }
+
+    /**
+     * addStores
+     * Store the registers of the written slots on each edge that leaves
+     * the loop, where the slot may still be read.
+     */
+    private void addStores(Promoted p, Set<String> written) {
+        Set<BasicBlock> exits = new LinkedHashSet<BasicBlock>();
+        for (BasicBlock b : p.loop.getBlocks()) {
+            for (BasicBlock s : b.getSuccs()) {
+                if (!p.loop.contains(s)) {
+                    exits.add(s);
+                }
+            }
+        }
+        for (BasicBlock s : exits) {
+            List<AsmInstr> stores = new ArrayList<AsmInstr>();
+            for (String slot : written) {
+                if (isSlotLive(s, slot)) {
+                    stores.add(AsmInstr.instr("sw", p.regs.get(slot), slot));
+                    p.stored.add(slot);
+                }
+            }
+            if (stores.isEmpty()) {
+                continue;
+            }
+            if (p.loop.getBlocks().containsAll(s.getPreds())) {
+                s.getInstrs().addAll(0, stores);
+                continue;
+            }
+            BasicBlock store = new BasicBlock();
+            store.getInstrs().addAll(stores);
+            store.setNext(s);
+            for (BasicBlock b : p.loop.getBlocks()) {
+                b.replaceSucc(s, store);
+            }
+            List<BasicBlock> blocks = myCfg.getBlocks();
+            blocks.add(blocks.indexOf(s), store);
+        }
+        myCfg.computePreds();
+    }
+
+    /**
+     * Return true if slot may be loaded, from the start of b on, before
+     * it is stored to.
+     */
+    private static boolean isSlotLive(BasicBlock start, String slot) {
+        Set<BasicBlock> seen = new HashSet<BasicBlock>();
+        Deque<BasicBlock> work = new ArrayDeque<BasicBlock>();
+        work.push(start);
+        while (!work.isEmpty()) {
+            BasicBlock b = work.pop();
+            if (!seen.add(b)) {
+                continue;
+            }
+            boolean killed = false;
+            for (AsmInstr instr : b.getInstrs()) {
+                List<String> args = instr.getArgs();
+                if (args.size() == 2 && Codegen.FP.equals(AsmInstr.baseOf(args.get(1)))
+                    && slot(args.get(1)).equals(slot)) {
+                    if (!instr.is("sw")) {
+                        return true;
+                    }
+                    killed = true;
+                    break;
+                }
+            }
+            if (!killed) {
+                for (BasicBlock s : b.getSuccs()) {
+                    work.push(s);
+                }
+            }
+        }
+        return false;
+    }
+
+    // **********************************************************************
+    // strength reduction and test replacement
+    // **********************************************************************
+
+    /**
+     * reduce
+     * Strength-reduce the derived induction variables of an inner loop,
+     * and replace the test of their basic one if possible.
+     */
+    private void reduce(Promoted p) {
+        for (Map.Entry<String, String> e : p.regs.entrySet()) {
+            String iv = e.getValue();
+            AsmInstr update = basicUpdate(p.loop, iv);
+            if (update == null) {
+                continue;
+            }
+            int step = Integer.parseInt(update.getArg(2));
+
+            // the derived variables, by instruction ("sll 2", "mul 3")
+            Map<String, List<AsmInstr>> derived =
+                new LinkedHashMap<String, List<AsmInstr>>();
+            List<AsmInstr> tests = new ArrayList<AsmInstr>();
+            boolean otherUses = false;
+            for (BasicBlock b : p.loop.getBlocks()) {
+                for (AsmInstr instr : b.getInstrs()) {
+                    if (instr == update || !instr.getUses().contains(iv)) {
+                        continue;
+                    }
+                    if (isDerived(instr, iv)) {
+                        String key = instr.getOpcode() + " " + instr.getArg(2);
+                        if (!derived.containsKey(key)) {
+                            derived.put(key, new ArrayList<AsmInstr>());
+                        }
+                        derived.get(key).add(instr);
+                    } else if (instr.is("slti") && instr.getArg(1).equals(iv)
+                               || ZERO_BRANCHES.contains(instr.getOpcode())) {
+                        tests.add(instr);
+                    } else {
+                        otherUses = true;
+                    }
+                }
+            }
+
+            Integer start = otherUses || p.stored.contains(e.getKey())
+                            ? null : startValue(p, e.getKey());
+            boolean replace = start != null && !derived.isEmpty()
+                              && isLoopTest(p.loop, tests);
+            String first = null;
+            for (Map.Entry<String, List<AsmInstr>> d : derived.entrySet()) {
+                List<AsmInstr> uses = d.getValue();
+                // iv can only go if every use of it is reduced
+                boolean pays = uses.get(0).is("mul") || uses.size() > 1
+                               || replace;
+                if (!pays) {
+                    continue;
+                }
+                String reg = strengthReduce(p, iv, update, step, uses);
+                if (reg == null) {
+                    replace = false;
+                    continue;
+                }
+                if (first == null) {
+                    first = reg;
+                }
+            }
+            if (replace && first != null) {
+                replaceTest(p, iv, update, step, start, first, tests);
+            }
+        }
+    }
+
+    /**
+     * Return the only instruction of loop that changes iv if it is
+     * "addi iv, iv, c" (or addiu), else null.
+     */
+    private AsmInstr basicUpdate(Loop loop, String iv) {
+        AsmInstr update = null;
+        for (BasicBlock b : loop.getBlocks()) {
+            for (AsmInstr instr : b.getInstrs()) {
+                if (!defs(instr).contains(iv)) {
+                    continue;
+                }
+                if (update != null || !(instr.is("addi") || instr.is("addiu"))
+                    || instr.getArgs().size() != 3
+                    || !instr.getArg(0).equals(iv) || !instr.getArg(1).equals(iv)
+                    || !AsmInstr.isImmediate(instr.getArg(2))) {
+                    return null;
+                }
+                update = instr;
+            }
+        }
+        return update;
+    }
+
+    private static boolean isDerived(AsmInstr instr, String iv) {
+        return (instr.is("sll") || instr.is("mul"))
+               && instr.getArgs().size() == 3 && instr.getArg(1).equals(iv)
+               && !instr.getArg(0).equals(iv)
+               && AsmInstr.isImmediate(instr.getArg(2));
+    }
+
+    private static long factor(AsmInstr derived) {
+        long k = Long.parseLong(derived.getArg(2));
+        return derived.is("sll") ? 1L << k : k;
+    }
+
+    /**
+     * strengthReduce
+     * Keep iv * k, computed by the instructions uses, in a new register
+     * that is bumped with iv; return the register, or null if there is
+     * none free or the bump doesn't fit an immediate.
+     */
+    private String strengthReduce(Promoted p, String iv, AsmInstr update,
+                                  int step, List<AsmInstr> uses) {
+        long bump = step * factor(uses.get(0));
+        String reg = freeRegister(p.loop, new HashSet<String>(p.regs.values()));
+        if (reg == null || !fits16(bump)) {
+            return null;
+        }
+        AsmInstr init = uses.get(0).copy();
+        init.setArg(0, reg);
+        p.preheader.getInstrs().add(init);
+        for (AsmInstr use : uses) {
+            replace(p.loop, use, AsmInstr.instr("move", use.getArg(0), reg));
+        }
+        insertAfter(p.loop, update, AsmInstr.instr("addiu", reg, reg, "" + bump));
+        myReduced++;
+        return reg;
+    }
+
+    /**
+     * Return true if tests is the loop's exit test: the branch that ends
+     * the only latch, comparing with 0, or an slti that only that branch
+     * uses.
+     */
+    private boolean isLoopTest(Loop loop, List<AsmInstr> tests) {
+        if (tests.size() != 1 || loop.getLatches().size() != 1) {
+            return false;
+        }
+        BasicBlock latch = loop.getLatches().get(0);
+        List<AsmInstr> instrs = latch.getInstrs();
+        AsmInstr branch = latch.getLast();
+        List<BasicBlock> succs = latch.getSuccs();
+        if (succs.size() != 2
+            || loop.contains(succs.get(0)) == loop.contains(succs.get(1))) {
+            return false;
+        }
+        if (tests.get(0) == branch) {
+            return true;
+        }
+        if (!instrs.contains(tests.get(0))
+            || !(branch.is("bnez") || branch.is("beqz"))) {
+            return false;
+        }
+        String t = tests.get(0).getArg(0);
+        if (!branch.getArg(0).equals(t)
+            || new Liveness(myCfg, myProg.getCallSummaries())
+                   .liveOut(latch).contains(t)) {
+            return false;
+        }
+        for (int k = instrs.indexOf(tests.get(0)) + 1; k < instrs.size() - 1; k++) {
+            if (instrs.get(k).getUses().contains(t)
+                || defs(instrs.get(k)).contains(t)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the value slot has when the loop of p starts, if the block
+     * before the preheader sets it to a constant; else null.
+     */
+    private Integer startValue(Promoted p, String slot) {
+        List<BasicBlock> preds = p.preheader.getPreds();
+        if (preds.size() != 1) {
+            return null;
+        }
+        List<AsmInstr> instrs = preds.get(0).getInstrs();
+        int k = instrs.size() - 1;
+        while (k >= 0 && !(instrs.get(k).is("sw") && isAccess(instrs.get(k), 1)
+                           && slot(instrs.get(k).getArg(1)).equals(slot))) {
+            k--;
+        }
+        if (k < 0) {
+            return null;
+        }
+        String reg = instrs.get(k).getArg(0);
+        for (k--; k >= 0; k--) {
+            AsmInstr instr = instrs.get(k);
+            if (defs(instr).contains(reg)) {
+                return instr.is("li") && AsmInstr.isImmediate(instr.getArg(1))
+                       ? Integer.valueOf(instr.getArg(1)) : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * replaceTest
+     * Make the loop test compare j (= iv * k) instead of iv, and drop iv,
+     * if the values j takes can't overflow.
+     */
+    private void replaceTest(Promoted p, String iv, AsmInstr update, int step,
+                             int start, String j, List<AsmInstr> tests) {
+        AsmInstr test = tests.get(0);
+        BasicBlock latch = p.loop.getLatches().get(0);
+        AsmInstr branch = latch.getLast();
+        long k = 0;
+        for (AsmInstr instr : p.preheader.getInstrs()) {
+            if (instr.getArgs().size() == 3 && instr.getArg(0).equals(j)) {
+                k = factor(instr);
+            }
+        }
+
+        // the loop goes on while iv < bound (rising) or iv >= bound
+        // (falling); find the range of iv
+        long bound;
+        boolean below;
+        if (test.is("slti")) {
+            bound = Long.parseLong(test.getArg(2));
+            below = branch.is("bnez");
+        } else {
+            bound = test.is("bltz") || test.is("bgez") ? 0 : 1;
+            below = test.is("bltz") || test.is("blez");
+        }
+        below = below == p.loop.contains(latch.getTaken());
+        long low;
+        long high;
+        if (below && step > 0) {
+            low = start;
+            high = Math.max(start, bound - 1 + step);
+        } else if (!below && step < 0) {
+            low = Math.min(start, bound + step);
+            high = start;
+        } else {
+            return;
+        }
+        if (k <= 0 || !fitsInt(low * k) || !fitsInt(high * k)
+            || test.is("slti") && !fits16(bound * k)) {
+            return;
+        }
+
+        if (test.is("slti")) {
+            test.setArg(1, j);
+            test.setArg(2, "" + bound * k);
+        } else {
+            test.setArg(0, j);      // iv * k has the sign of iv
+        }
+        remove(p.loop, update);
+
+        // iv is gone: the derived variables start from constants
+        List<AsmInstr> pre = p.preheader.getInstrs();
+        for (int n = pre.size() - 1; n >= 0; n--) {
+            AsmInstr instr = pre.get(n);
+            if (instr.getArg(0).equals(iv)) {
+                pre.remove(n);
+            } else if (instr.getArgs().size() == 3 && instr.getArg(1).equals(iv)) {
+                pre.set(n, AsmInstr.instr("li", instr.getArg(0),
+                                          "" + (int)(start * factor(instr))));
+            }
+        }
+        myReplaced++;
+    }
+
+    /**
+     * Return the registers instr writes, by the summaries of the program.
+     */
+    private Set<String> defs(AsmInstr instr) {
+        return instr.getDefs(myProg.getCallSummaries());
+    }
+
+    private static boolean fitsInt(long v) {
+        return v == (int)v;
+    }
+
+    private static boolean fits16(long v) {
+        return v >= -32768 && v <= 32767;
+    }
+
+    private static void replace(Loop loop, AsmInstr old, AsmInstr instr) {
+        for (BasicBlock b : loop.getBlocks()) {
+            List<AsmInstr> instrs = b.getInstrs();
+            int k = instrs.indexOf(old);
+            if (k >= 0) {
+                instrs.set(k, instr);
+                return;
+            }
+        }
+    }
+
+    private static void insertAfter(Loop loop, AsmInstr old, AsmInstr instr) {
+        for (BasicBlock b : loop.getBlocks()) {
+            List<AsmInstr> instrs = b.getInstrs();
+            int k = instrs.indexOf(old);
+            if (k >= 0) {
+                instrs.add(k + 1, instr);
+                return;
+            }
+        }
+    }
+
+    private static void remove(Loop loop, AsmInstr old) {
+        for (BasicBlock b : loop.getBlocks()) {
+            if (b.getInstrs().remove(old)) {
+                return;
+            }
+        }
+    }
+}
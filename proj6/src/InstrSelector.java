@@ -0,0 +1,699 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * The InstrSelector class chooses the instructions for int and bool
+ * expressions by tiling the expression tree, BURS style.
+ *
+ * label() works bottom-up and finds for every node the cheapest tile that
+ * leaves its value in a register, where the cost of a tile is the number
+ * of real MIPS instructions it turns into after the assembler expands the
+ * pseudo-ops (the Tile table below) plus the cost of the operands it
+ * needs in registers.  A constant operand that fits the immediate field
+ * costs nothing, so "x + 1" becomes one addi and "x < 10" one slti;
+ * constant subtrees are folded.  emit() then walks the chosen tiles
+ * top-down and writes the code.
+ *
+ * Values are computed in a small pool of registers instead of on the
+ * stack.  Subtrees that can't be tiled (calls, assignments, string
+ * comparisons) fall back to their own codeGen, which pushes the value;
+ * since that code (and the function it may call) overwrites the
+ * registers, any value still needed is pushed around it.  Operands are
+ * evaluated right to left, the same order the stack code uses.
+ */
+public class InstrSelector {
+    /**
+     * The tiles, each with its cost in real instructions.
+     */
+    private enum Tile {
+        CONST(1),       // li (2 if the value needs lui+ori)
+        LOAD(1),        // lw off($fp) (2 for a global: lui+lw)
+        FALLBACK(2),    // codeGen of the node, then pop (plus its own code)
+        ADD(1),         // add   d, a, b
+        ADDI(1),        // addi  d, a, k
+        ADDIL(1),       // addi  d, b, k  (constant on the left)
+        SUB(1),         // sub   d, a, b
+        SUBI(1),        // addi  d, a, -k
+        MUL(2),         // mult a, b; mflo d
+        MULI(2),        // mul   d, a, k  (li + mul; see Peephole)
+        SLL(1),         // sll   d, a, log2(k)
+        DIV(2),         // div a, b; mflo d
+        SRA(1),         // sra   d, a, log2(k)  (a known not negative)
+        NEG(1),         // sub   d, $zero, a
+        NOT(1),         // xori  d, a, 1
+        SLT(1),         // slt   d, a, b
+        SLTI(1),        // slti  d, a, k
+        SGT(1),         // slt   d, b, a
+        SGTI(2),        // slti  d, a, k+1; xori d, d, 1
+        SLE(2),         // slt   d, b, a; xori d, d, 1
+        SLEI(1),        // slti  d, a, k+1
+        SGE(2),         // slt   d, a, b; xori d, d, 1
+        SGEI(2),        // slti  d, a, k; xori d, d, 1
+        SEQ(2),         // xor   d, a, b; sltiu d, d, 1
+        SEQZ(1),        // sltiu d, a, 1
+        SEQI(2),        // xori  d, a, k; sltiu d, d, 1
+        SNE(2),         // xor   d, a, b; sltu d, $zero, d
+        SNEZ(1),        // sltu  d, $zero, a
+        SNEI(2),        // xori  d, a, k; sltu d, $zero, d
+        AND(1),         // a; beq d, $zero, done; b
+        OR(1);          // a; bne d, $zero, done; b
+
+        final int cost;
+
+        Tile(int cost) {
+            this.cost = cost;
+        }
+    }
+
+    // cost of saving a register around a subtree that overwrites it
+    private static final int SPILL_COST = 4;
+
+    // the registers expressions are computed in
+    private static final String[] POOL =
+        { "$t0", "$t1", "$t2", "$t3", "$t4" };
+
+    // register that a spilled operand is reloaded into
+    private static final String RELOAD = Codegen.V1;
+
+    /**
+     * The cheapest way found for one node: the tile, the total cost and,
+     * for a constant subtree, its value.
+     */
+    private static class Match {
+        Tile tile;
+        int cost = Integer.MAX_VALUE;
+        Integer value;
+        boolean clobbers;   // the code of the subtree uses fallback code
+        Set<String> written;    // registers its code changes (see survivor)
+        int writtenAt;          // ... when emitted into myRegs[writtenAt]
+
+        void consider(Tile t, int c) {
+            if (c < cost) {
+                tile = t;
+                cost = c;
+            }
+        }
+    }
+
+    private Map<ExpNode, Match> myMatches = new IdentityHashMap<ExpNode, Match>();
+    private String[] myRegs;
+
+    private InstrSelector(String target) {
+        List<String> regs = new ArrayList<String>();
+        regs.add(target);
+        for (String reg : POOL) {
+            if (!reg.equals(target)) {
+                regs.add(reg);
+            }
+        }
+        myRegs = regs.toArray(new String[0]);
+    }
+
+    /**
+     * gen
+     * Generate code that leaves the value of exp in the given register.
+     */
+    public static void gen(ExpNode exp, String target) {
+        new InstrSelector(target).emit(exp, 0);
+    }
+
+    /**
+     * genPush
+     * Generate code that pushes the value of exp, as codeGen(0) does.
+     */
+    public static void genPush(ExpNode exp) {
+        gen(exp, Codegen.T0);
+        Codegen.genPush(Codegen.T0);
+    }
+
+    /**
+     * genBranch
+     * Generate code that jumps to label if the bool exp has the value
+     * sense, and falls through otherwise.  && and || become control flow;
+     * == and != become a single beq/bne.
+     */
+    public static void genBranch(ExpNode exp, boolean sense, String label) {
+        new InstrSelector(Codegen.T0).branch(exp, sense, label);
+    }
+
+    // **********************************************************************
+    // label: find the cheapest tiling
+    // **********************************************************************
+
+    private Match label(ExpNode exp) {
+        Match m = myMatches.get(exp);
+        if (m != null) {
+            return m;
+        }
+        m = new Match();
+        myMatches.put(exp, m);
+
+        if (exp instanceof IntLitNode) {
+            m.value = ((IntLitNode)exp).intVal();
+        } else if (exp instanceof TrueNode) {
+            m.value = 1;
+        } else if (exp instanceof FalseNode) {
+            m.value = 0;
+        } else if (exp instanceof IdNode
+                   && ((IdNode)exp).sym().getConstValue() != null) {
+            m.value = ((IdNode)exp).sym().getConstValue();
+        } else if (exp instanceof IdNode && isScalar((IdNode)exp)) {
+            m.consider(Tile.LOAD,
+                       ((IdNode)exp).sym().isGlobal() ? 2 : Tile.LOAD.cost);
+        } else if (exp instanceof UnaryExpNode && !isFallback(exp)) {
+            labelUnary((UnaryExpNode)exp, m);
+        } else if (exp instanceof BinaryExpNode && !isFallback(exp)) {
+            labelBinary((BinaryExpNode)exp, m);
+        }
+
+        if (m.value != null) {
+            m.consider(Tile.CONST, liCost(m.value));
+            m.clobbers = false;
+        } else if (m.tile == null) {
+            m.consider(Tile.FALLBACK, Tile.FALLBACK.cost);
+            m.clobbers = true;
+        }
+        return m;
+    }
+
+    private void labelUnary(UnaryExpNode exp, Match m) {
+        Match a = label(exp.myExp);
+        m.clobbers = a.clobbers;
+        if (exp instanceof UnaryMinusNode) {
+            if (a.value != null && a.value != Integer.MIN_VALUE) {
+                m.value = -a.value;
+            }
+            m.consider(Tile.NEG, Tile.NEG.cost + a.cost);
+        } else if (exp instanceof NotNode) {
+            if (a.value != null) {
+                m.value = a.value == 0 ? 1 : 0;
+            }
+            m.consider(Tile.NOT, Tile.NOT.cost + a.cost);
+        }
+    }
+
+    private void labelBinary(BinaryExpNode exp, Match m) {
+        Match a = label(exp.myExp1);
+        Match b = label(exp.myExp2);
+        m.clobbers = a.clobbers || b.clobbers;
+        if (a.value != null && b.value != null) {
+            m.value = fold(exp, a.value, b.value);
+        }
+
+        // both operands in registers; the left one is pushed if the code
+        // for it overwrites the right one
+        int both = a.cost + b.cost + (a.clobbers ? SPILL_COST : 0);
+        Integer k = b.value;
+
+        if (exp instanceof PlusNode) {
+            m.consider(Tile.ADD, Tile.ADD.cost + both);
+            if (fitsSigned(k)) {
+                m.consider(Tile.ADDI, Tile.ADDI.cost + a.cost);
+            }
+            if (fitsSigned(a.value)) {
+                m.consider(Tile.ADDIL, Tile.ADDIL.cost + b.cost);
+            }
+        } else if (exp instanceof MinusNode) {
+            m.consider(Tile.SUB, Tile.SUB.cost + both);
+            if (k != null && fitsSigned(-(long)k)) {
+                m.consider(Tile.SUBI, Tile.SUBI.cost + a.cost);
+            }
+        } else if (exp instanceof TimesNode) {
+            m.consider(Tile.MUL, Tile.MUL.cost + both);
+            if (fitsSigned(k)) {
+                m.consider(Tile.MULI, Tile.MULI.cost + a.cost);
+            }
+            if (k != null && k > 0 && Integer.bitCount(k) == 1) {
+                m.consider(Tile.SLL, Tile.SLL.cost + a.cost);
+            }
+        } else if (exp instanceof DivideNode) {
+            m.consider(Tile.DIV, Tile.DIV.cost + both);
+            if (k != null && k > 0 && Integer.bitCount(k) == 1
+                && ((DivideNode)exp).isNonNegative()) {
+                m.consider(Tile.SRA, Tile.SRA.cost + a.cost);
+            }
+        } else if (exp instanceof LessNode) {
+            m.consider(Tile.SLT, Tile.SLT.cost + both);
+            if (fitsSigned(k)) {
+                m.consider(Tile.SLTI, Tile.SLTI.cost + a.cost);
+            }
+        } else if (exp instanceof GreaterNode) {
+            m.consider(Tile.SGT, Tile.SGT.cost + both);
+            if (k != null && fitsSigned((long)k + 1)) {
+                m.consider(Tile.SGTI, Tile.SGTI.cost + a.cost);
+            }
+        } else if (exp instanceof LessEqNode) {
+            m.consider(Tile.SLE, Tile.SLE.cost + both);
+            if (k != null && fitsSigned((long)k + 1)) {
+                m.consider(Tile.SLEI, Tile.SLEI.cost + a.cost);
+            }
+        } else if (exp instanceof GreaterEqNode) {
+            m.consider(Tile.SGE, Tile.SGE.cost + both);
+            if (fitsSigned(k)) {
+                m.consider(Tile.SGEI, Tile.SGEI.cost + a.cost);
+            }
+        } else if (exp instanceof EqualsNode) {
+            m.consider(Tile.SEQ, Tile.SEQ.cost + both);
+            if (k != null && k == 0) {
+                m.consider(Tile.SEQZ, Tile.SEQZ.cost + a.cost);
+            } else if (fitsUnsigned(k)) {
+                m.consider(Tile.SEQI, Tile.SEQI.cost + a.cost);
+            }
+        } else if (exp instanceof NotEqualsNode) {
+            m.consider(Tile.SNE, Tile.SNE.cost + both);
+            if (k != null && k == 0) {
+                m.consider(Tile.SNEZ, Tile.SNEZ.cost + a.cost);
+            } else if (fitsUnsigned(k)) {
+                m.consider(Tile.SNEI, Tile.SNEI.cost + a.cost);
+            }
+        } else if (exp instanceof AndNode) {
+            if (a.value != null && a.value == 0) {
+                m.value = 0;    // the right side is never evaluated
+            }
+            m.consider(Tile.AND, Tile.AND.cost + a.cost + b.cost);
+        } else if (exp instanceof OrNode) {
+            if (a.value != null && a.value != 0) {
+                m.value = 1;
+            }
+            m.consider(Tile.OR, Tile.OR.cost + a.cost + b.cost);
+        }
+    }
+
+    /**
+     * Return the value of a binary operator applied to two constants, or
+     * null if it is not safe to work out at compile time (the operation
+     * would trap).
+     */
+    static Integer fold(BinaryExpNode exp, int x, int y) {
+        if (exp instanceof PlusNode) {
+            long v = (long)x + y;
+            return v == (int)v ? Integer.valueOf((int)v) : null;
+        }
+        if (exp instanceof MinusNode) {
+            long v = (long)x - y;
+            return v == (int)v ? Integer.valueOf((int)v) : null;
+        }
+        if (exp instanceof TimesNode) return x * y;
+        if (exp instanceof DivideNode) {
+            return y == 0 || (x == Integer.MIN_VALUE && y == -1)
+                   ? null : Integer.valueOf(x / y);
+        }
+        if (exp instanceof LessNode) return x < y ? 1 : 0;
+        if (exp instanceof GreaterNode) return x > y ? 1 : 0;
+        if (exp instanceof LessEqNode) return x <= y ? 1 : 0;
+        if (exp instanceof GreaterEqNode) return x >= y ? 1 : 0;
+        if (exp instanceof EqualsNode) return x == y ? 1 : 0;
+        if (exp instanceof NotEqualsNode) return x != y ? 1 : 0;
+        if (exp instanceof AndNode) return x != 0 && y != 0 ? 1 : 0;
+        if (exp instanceof OrNode) return x != 0 || y != 0 ? 1 : 0;
+        return null;
+    }
+
+    /**
+     * Return true if exp is an operator that this class doesn't tile
+     * (comparison of strings).
+     */
+    private static boolean isFallback(ExpNode exp) {
+        if (exp instanceof EqualityExpNode) {
+            BinaryExpNode bin = (BinaryExpNode)exp;
+            return bin.myExp1 instanceof StringLitNode
+                   || bin.myExp2 instanceof StringLitNode;
+        }
+        return false;
+    }
+
+    private static boolean isScalar(IdNode id) {
+        Type type = id.sym().getType();
+        return type.isIntType() || type.isBoolType();
+    }
+
+    private static boolean fitsSigned(Integer k) {
+        return k != null && fitsSigned((long)k);
+    }
+
+    private static boolean fitsSigned(long k) {
+        return k >= -32768 && k <= 32767;
+    }
+
+    private static boolean fitsUnsigned(Integer k) {
+        return k != null && k >= 0 && k <= 65535;
+    }
+
+    private static int liCost(int value) {
+        boolean oneInstr = fitsSigned((long)value)
+                           || (value >= 0 && value <= 65535)
+                           || (value & 0xffff) == 0;
+        return oneInstr ? 1 : 2;
+    }
+
+    // **********************************************************************
+    // emit: write the code for the chosen tiles
+    // **********************************************************************
+
+    /**
+     * emit
+     * Write code that leaves the value of exp in myRegs[r], using only the
+     * registers after it as scratch.
+     */
+    private void emit(ExpNode exp, int r) {
+        Match m = label(exp);
+        String d = reg(r);
+
+        switch (m.tile) {
+        case CONST:
+            Codegen.generate("li", d, m.value);
+            return;
+        case LOAD:
+            Codegen.generate("lw", d, exp.directAddress());
+            return;
+        case FALLBACK:
+            exp.codeGen(0);
+            Codegen.genPop(d);
+            return;
+        case AND:
+        case OR: {
+            BinaryExpNode bin = (BinaryExpNode)exp;
+            String done = Codegen.nextLabel();
+            emit(bin.myExp1, r);
+            Codegen.generate(m.tile == Tile.AND ? "beq" : "bne", d, "$zero",
+                             done);
+            emit(bin.myExp2, r);
+            Codegen.genLabel(done);
+            return;
+        }
+        case NEG:
+            emit(((UnaryExpNode)exp).myExp, r);
+            Codegen.generate("sub", d, "$zero", d);
+            return;
+        case NOT:
+            emit(((UnaryExpNode)exp).myExp, r);
+            Codegen.generate("xori", d, d, 1);
+            return;
+        default:
+            break;
+        }
+
+        BinaryExpNode bin = (BinaryExpNode)exp;
+        Integer k = label(bin.myExp2).value;
+        switch (m.tile) {
+        case ADDI:
+            emit(bin.myExp1, r);
+            Codegen.generate("addi", d, d, k);
+            return;
+        case ADDIL:
+            emit(bin.myExp2, r);
+            Codegen.generate("addi", d, d, label(bin.myExp1).value);
+            return;
+        case SUBI:
+            emit(bin.myExp1, r);
+            Codegen.generate("addi", d, d, -k);
+            return;
+        case SLL:
+            emit(bin.myExp1, r);
+            Codegen.generate("sll", d, d, Integer.numberOfTrailingZeros(k));
+            return;
+        case SRA:
+            emit(bin.myExp1, r);
+            Codegen.generate("sra", d, d, Integer.numberOfTrailingZeros(k));
+            return;
+        case MULI:
+            emit(bin.myExp1, r);
+            Codegen.generate("mul", d, d, k);
+            return;
+        case SLTI:
+            emit(bin.myExp1, r);
+            Codegen.generate("slti", d, d, k);
+            return;
+        case SGTI:
+            emit(bin.myExp1, r);
+            Codegen.generate("slti", d, d, k + 1);
+            Codegen.generate("xori", d, d, 1);
+            return;
+        case SLEI:
+            emit(bin.myExp1, r);
+            Codegen.generate("slti", d, d, k + 1);
+            return;
+        case SGEI:
+            emit(bin.myExp1, r);
+            Codegen.generate("slti", d, d, k);
+            Codegen.generate("xori", d, d, 1);
+            return;
+        case SEQZ:
+            emit(bin.myExp1, r);
+            Codegen.generate("sltiu", d, d, 1);
+            return;
+        case SEQI:
+            emit(bin.myExp1, r);
+            Codegen.generate("xori", d, d, k);
+            Codegen.generate("sltiu", d, d, 1);
+            return;
+        case SNEZ:
+            emit(bin.myExp1, r);
+            Codegen.generate("sltu", d, "$zero", d);
+            return;
+        case SNEI:
+            emit(bin.myExp1, r);
+            Codegen.generate("xori", d, d, k);
+            Codegen.generate("sltu", d, "$zero", d);
+            return;
+        default:
+            break;
+        }
+
+        // both operands in registers
+        String[] ops = emitOperands(bin, r);
+        String a = ops[0];
+        String b = ops[1];
+        switch (m.tile) {
+        case ADD:
+            Codegen.generate("add", d, a, b);
+            break;
+        case SUB:
+            Codegen.generate("sub", d, a, b);
+            break;
+        case MUL:
+            Codegen.generate("mult", a, b);
+            Codegen.generate("mflo", d);
+            break;
+        case DIV:
+            Codegen.generate("div", a, b);
+            Codegen.generate("mflo", d);
+            break;
+        case SLT:
+            Codegen.generate("slt", d, a, b);
+            break;
+        case SGT:
+            Codegen.generate("slt", d, b, a);
+            break;
+        case SLE:
+            Codegen.generate("slt", d, b, a);
+            Codegen.generate("xori", d, d, 1);
+            break;
+        case SGE:
+            Codegen.generate("slt", d, a, b);
+            Codegen.generate("xori", d, d, 1);
+            break;
+        case SEQ:
+            Codegen.generate("xor", d, a, b);
+            Codegen.generate("sltiu", d, d, 1);
+            break;
+        case SNE:
+            Codegen.generate("xor", d, a, b);
+            Codegen.generate("sltu", d, "$zero", d);
+            break;
+        default:
+            System.err.println("Unexpected tile " + m.tile +
+                               " in InstrSelector.emit");
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * emitOperands
+     * Evaluate both operands of bin, right first, and return the registers
+     * holding the left and the right value.  The right value is in
+     * myRegs[r]; the left one is in the next register, or is pushed and
+     * reloaded if its code overwrites registers or there are none left.
+     * When the left code has calls that leave some register alone (by
+     * their register summaries), the right value is kept there instead.
+     */
+    private String[] emitOperands(BinaryExpNode bin, int r) {
+        if (label(bin.myExp1).clobbers) {
+            int k = survivor(bin.myExp1, r);
+            if (k >= 0) {
+                emit(bin.myExp2, k);
+                emit(bin.myExp1, r);
+                return new String[] { reg(r), reg(k) };
+            }
+        }
+        emit(bin.myExp2, r);
+        if (!label(bin.myExp1).clobbers && r + 1 < myRegs.length) {
+            emit(bin.myExp1, r + 1);
+            return new String[] { reg(r + 1), reg(r) };
+        }
+        Codegen.genPush(reg(r));
+        emit(bin.myExp1, r);
+        Codegen.genPop(RELOAD);
+        return new String[] { reg(r), RELOAD };
+    }
+
+    /**
+     * survivor
+     * Return the index of a register after myRegs[r] that the code for
+     * emit(exp, r) doesn't change, or -1 if there is none.  The code is
+     * generated into a scratch buffer to find out (once per node).
+     */
+    private int survivor(ExpNode exp, int r) {
+        Match m = label(exp);
+        if (m.written == null || m.writtenAt != r) {
+            PrintWriter out = Codegen.p;
+            StringWriter text = new StringWriter();
+            Codegen.p = new PrintWriter(text);
+            emit(exp, r);
+            Codegen.p.flush();
+            Codegen.p = out;
+            Map<String, Set<String>> summaries =
+                new HashMap<String, Set<String>>();
+            addCallSummaries(exp, summaries);
+            m.written = RegisterSummaries.writtenBy(text.toString(),
+                                                   summaries);
+            m.writtenAt = r;
+        }
+        for (int k = r + 1; k < myRegs.length; k++) {
+            if (!m.written.contains(reg(k))) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add to summaries the register summaries of the functions called in
+     * node (see FnSym.getCallSummary), under each label a call may jump
+     * to: the function's or a specialized copy's.
+     */
+    private static void addCallSummaries(ASTnode node,
+                                         Map<String, Set<String>> summaries) {
+        if (node instanceof CallExpNode) {
+            FnSym fn = ((CallExpNode)node).fnSym();
+            if (fn.getCallSummary() != null) {
+                summaries.put(((CallExpNode)node).fnName(),
+                              fn.getCallSummary());
+                for (String label : fn.getSpecializations().keySet()) {
+                    summaries.put(label, fn.getCallSummary());
+                }
+            }
+        }
+        for (ASTnode kid : node.children()) {
+            addCallSummaries(kid, summaries);
+        }
+    }
+
+    private String reg(int r) {
+        return myRegs[r];
+    }
+
+    // **********************************************************************
+    // branch: conditional jumps on bool expressions
+    // **********************************************************************
+
+    private void branch(ExpNode exp, boolean sense, String target) {
+        Match m = label(exp);
+        if (m.value != null) {
+            if ((m.value != 0) == sense) {
+                Codegen.generate("j", target);
+            }
+            return;
+        }
+
+        if (exp instanceof NotNode) {
+            branch(((UnaryExpNode)exp).myExp, !sense, target);
+        } else if (exp instanceof AndNode || exp instanceof OrNode) {
+            BinaryExpNode bin = (BinaryExpNode)exp;
+            // for &&, a false left side decides; for ||, a true one
+            boolean decides = exp instanceof OrNode;
+            if (sense == decides) {
+                branch(bin.myExp1, sense, target);
+                branch(bin.myExp2, sense, target);
+            } else {
+                String skip = Codegen.nextLabel();
+                branch(bin.myExp1, decides, skip);
+                branch(bin.myExp2, sense, target);
+                Codegen.genLabel(skip);
+            }
+        } else if (exp instanceof EqualityExpNode && !isFallback(exp)) {
+            BinaryExpNode bin = (BinaryExpNode)exp;
+            boolean equal = (exp instanceof EqualsNode) == sense;
+            Integer k = label(bin.myExp2).value;
+            if (k != null) {
+                emit(bin.myExp1, 0);
+                if (k == 0) {
+                    Codegen.generate(equal ? "beqz" : "bnez", reg(0), target);
+                } else {
+                    Codegen.generate(equal ? "beq" : "bne", reg(0), "" + k,
+                                     target);
+                }
+            } else {
+                String[] ops = emitOperands(bin, 0);
+                Codegen.generate(equal ? "beq" : "bne", ops[0], ops[1],
+                                 target);
+            }
+        } else if (EnumSet.range(Tile.SLT, Tile.SGEI).contains(m.tile)) {
+            compareBranch((BinaryExpNode)exp, m.tile, sense, target);
+        } else {
+            emit(exp, 0);
+            Codegen.generate(sense ? "bnez" : "beqz", reg(0), target);
+        }
+    }
+
+    /**
+     * compareBranch
+     * Branch on a <, >, <= or >= tiled as tile: a compare-and-branch if
+     * both operands are in registers or the constant is 0, else slti and
+     * a branch on its result (which takes care of the xori for > and >=).
+     */
+    private void compareBranch(BinaryExpNode bin, Tile tile, boolean sense,
+                               String target) {
+        Integer k = label(bin.myExp2).value;
+        String op;
+        switch (tile) {
+        case SLT:
+        case SLTI:
+            op = sense ? "blt" : "bge";
+            break;
+        case SGT:
+        case SGTI:
+            op = sense ? "bgt" : "ble";
+            break;
+        case SLE:
+        case SLEI:
+            op = sense ? "ble" : "bgt";
+            break;
+        default:
+            op = sense ? "bge" : "blt";
+            break;
+        }
+        if (k != null && k == 0) {
+            emit(bin.myExp1, 0);
+            Codegen.generate(op + "z", reg(0), target);
+            return;
+        }
+        if (tile == Tile.SLT || tile == Tile.SGT || tile == Tile.SLE
+            || tile == Tile.SGE) {
+            String[] ops = emitOperands(bin, 0);
+            Codegen.generate(op, ops[0], ops[1], target);
+            return;
+        }
+
+        emit(bin.myExp1, 0);
+        if (tile == Tile.SLTI || tile == Tile.SGEI) {
+            Codegen.generate("slti", reg(0), reg(0), k);
+            Codegen.generate((tile == Tile.SLTI) == sense ? "bnez" : "beqz",
+                             reg(0), target);
+        } else {
+            Codegen.generate("slti", reg(0), reg(0), k + 1);
+            Codegen.generate((tile == Tile.SLEI) == sense ? "bnez" : "beqz",
+                             reg(0), target);
+        }
+    }
+}
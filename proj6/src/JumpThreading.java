@@ -0,0 +1,441 @@
+import java.util.*;
+
+/**
+ * The JumpThreading class is an optimization pass over the Cfg of every
+ * function.  It does two things:
+ *
+ *   - a jump or branch to a block that does nothing but go on to another
+ *     block (for example the after-label of a nested if/else that is
+ *     immediately followed by the "j" of the enclosing one) is retargeted
+ *     to the final destination;
+ *   - when the conditional branch that ends a block has an outcome that is
+ *     known on one of the block's incoming edges (for example the
+ *     short-circuit exit of && or || feeding the test of an if), that edge
+ *     is sent straight to the right successor.  The instructions in front
+ *     of the branch are copied onto the edge so their effect is kept.
+ *
+ * Blocks that become unreachable and labels nobody refers to any more are
+ * removed.
+ */
+public class JumpThreading implements AsmPass {
+    // the most instructions copied onto an edge to thread it
+    private static final int MAX_COPY = 8;
+
+    // bound on the number of times a function is scanned
+    private static final int MAX_ROUNDS = 50;
+
+    public void run(AsmProgram prog) {
+        for (AsmFunction fn : prog.getFunctions()) {
+            Cfg cfg = new Cfg(fn);
+            run(cfg);
+            cfg.linearize();
+        }
+        prog.removeUnusedLabels();
+    }
+
+    private void run(Cfg cfg) {
+        boolean changed = true;
+        for (int round = 0; changed && round < MAX_ROUNDS; round++) {
+            changed = false;
+            for (BasicBlock b : new ArrayList<BasicBlock>(cfg.getBlocks())) {
+                changed |= skipEmpty(b);
+                changed |= threadKnown(cfg, b);
+            }
+            changed |= cfg.removeUnreachable();
+        }
+    }
+
+    /**
+     * skipEmpty
+     * Retarget the successors of b past blocks that have no instructions.
+     */
+    private boolean skipEmpty(BasicBlock b) {
+        boolean changed = false;
+        List<BasicBlock> table = b.getTable();
+        for (int k = 0; table != null && k < table.size(); k++) {
+            BasicBlock target = finalTarget(table.get(k));
+            if (target != table.get(k)) {
+                table.set(k, target);
+                changed = true;
+            }
+        }
+        BasicBlock taken = finalTarget(b.getTaken());
+        if (taken != b.getTaken()) {
+            b.setTaken(taken);
+            changed = true;
+        }
+        BasicBlock next = finalTarget(b.getNext());
+        if (next != b.getNext()) {
+            b.setNext(next);
+            changed = true;
+        }
+        return changed;
+    }
+
+    private BasicBlock finalTarget(BasicBlock b) {
+        Set<BasicBlock> seen = new HashSet<BasicBlock>();
+        while (b != null && b.getInstrs().isEmpty() && b.getNext() != null
+               && seen.add(b)) {
+            b = b.getNext();
+        }
+        return b;
+    }
+
+    /**
+     * threadKnown
+     * Try to thread each outgoing edge of b through a successor whose
+     * branch outcome is decided by what is known at the end of b.
+     */
+    private boolean threadKnown(Cfg cfg, BasicBlock b) {
+        if (b.endsInBranch() && b.getTaken() == b.getNext()) {
+            return false;
+        }
+
+        KnownState state = entryState(b);
+        List<AsmInstr> instrs = b.getInstrs();
+        int body = b.endsInBranch() ? instrs.size() - 1 : instrs.size();
+        for (int k = 0; k < body; k++) {
+            state.run(instrs.get(k));
+        }
+
+        boolean changed = false;
+        if (b.endsInBranch()) {
+            KnownState onTaken = state.copy();
+            onTaken.assume(b.getLast(), true);
+            BasicBlock dest = thread(cfg, b, b.getTaken(), onTaken, false);
+            if (dest != null) {
+                b.setTaken(dest);
+                changed = true;
+            }
+            state.assume(b.getLast(), false);
+            dest = thread(cfg, b, b.getNext(), state, false);
+            if (dest != null) {
+                b.setNext(dest);
+                changed = true;
+            }
+        } else {
+            BasicBlock dest = thread(cfg, b, b.getNext(), state, true);
+            if (dest != null) {
+                b.setNext(dest);
+                changed = true;
+            }
+        }
+        if (changed) {
+            cfg.computePreds();
+        }
+        return changed;
+    }
+
+    /**
+     * thread
+     * Given the state on the edge from b to c, return the block the edge
+     * should go to instead, or null if it can't be threaded.  If c has
+     * instructions in front of its branch they are appended to b (when
+     * the edge is b's only exit) or put into a new block placed after b.
+     */
+    private BasicBlock thread(Cfg cfg, BasicBlock b, BasicBlock c,
+                              KnownState state, boolean onlyExit) {
+        if (c == null || c == b || !c.endsInBranch()
+            || c.getInstrs().size() - 1 > MAX_COPY) {
+            return null;
+        }
+
+        List<AsmInstr> prefix = new ArrayList<AsmInstr>();
+        for (int k = 0; k < c.getInstrs().size() - 1; k++) {
+            AsmInstr instr = c.getInstrs().get(k);
+            if (instr.isCall()) {
+                return null;
+            }
+            state.run(instr);
+            prefix.add(instr.copy());
+        }
+
+        Boolean outcome = state.decide(c.getLast());
+        if (outcome == null) {
+            return null;
+        }
+        BasicBlock dest = outcome ? c.getTaken() : c.getNext();
+        if (dest == null || dest == c || dest == b) {
+            return null;
+        }
+
+        if (prefix.isEmpty()) {
+            return dest;
+        }
+        if (onlyExit) {
+            b.getInstrs().addAll(prefix);
+            return dest;
+        }
+        BasicBlock copy = new BasicBlock();
+        copy.getInstrs().addAll(prefix);
+        copy.setNext(dest);
+        List<BasicBlock> blocks = cfg.getBlocks();
+        blocks.add(blocks.indexOf(b) + 1, copy);
+        return copy;
+    }
+
+    /**
+     * entryState
+     * What is known at the start of b: if b has a single predecessor, the
+     * values that predecessor leaves behind plus what its branch implies.
+     */
+    private KnownState entryState(BasicBlock b) {
+        KnownState state = new KnownState();
+        if (b.getPreds().size() != 1) {
+            return state;
+        }
+        BasicBlock p = b.getPreds().get(0);
+        if (p == b) {
+            return state;
+        }
+        List<AsmInstr> instrs = p.getInstrs();
+        int body = p.endsInBranch() ? instrs.size() - 1 : instrs.size();
+        for (int k = 0; k < body; k++) {
+            state.run(instrs.get(k));
+        }
+        if (p.endsInBranch() && p.getTaken() != p.getNext()) {
+            state.assume(p.getLast(), p.getTaken() == b);
+        }
+        return state;
+    }
+}
+
+/**
+ * The KnownState class tracks what is known about registers and about the
+ * words pushed on the stack while walking forward through straight-line
+ * code: either an exact value, or a set of values a location can't have.
+ * Stack words are keyed by their offset from $sp at the start of the walk.
+ */
+class KnownState {
+    private Map<String, Known> myRegs = new HashMap<String, Known>();
+    private Map<Integer, Known> mySlots = new HashMap<Integer, Known>();
+    private int mySp = 0;
+
+    public KnownState copy() {
+        KnownState s = new KnownState();
+        s.myRegs.putAll(myRegs);
+        s.mySlots.putAll(mySlots);
+        s.mySp = mySp;
+        return s;
+    }
+
+    public Integer valueOf(String reg) {
+        return get(reg).value;
+    }
+
+    private Known get(String reg) {
+        if ("$zero".equals(reg) || "$0".equals(reg)) {
+            return Known.of(0);
+        }
+        Known k = myRegs.get(reg);
+        return k == null ? Known.UNKNOWN : k;
+    }
+
+    private void set(String reg, Known k) {
+        if (k == null || k == Known.UNKNOWN) {
+            myRegs.remove(reg);
+        } else {
+            myRegs.put(reg, k);
+        }
+    }
+
+    private Known operand(String arg) {
+        if (AsmInstr.isImmediate(arg)) {
+            return Known.of(Integer.parseInt(arg));
+        }
+        if (arg.startsWith("$")) {
+            return get(arg);
+        }
+        return Known.UNKNOWN;
+    }
+
+    /**
+     * run
+     * Update the state for the effect of one instruction.
+     */
+    public void run(AsmInstr instr) {
+        String op = instr.getOpcode();
+        List<String> args = instr.getArgs();
+        if (op == null || op.startsWith(".")) {
+            return;
+        }
+        if (instr.isCall()) {
+            myRegs.clear();
+            mySlots.clear();
+            return;
+        }
+        if (op.equals("syscall")) {
+            myRegs.remove(Codegen.V0);
+            return;
+        }
+        if (op.equals("sw") || op.equals("sb")) {
+            String base = AsmInstr.baseOf(args.get(1));
+            if (Codegen.SP.equals(base) && op.equals("sw")) {
+                mySlots.put(mySp + AsmInstr.offsetOf(args.get(1)),
+                            get(args.get(0)));
+            } else if (base != null && !base.equals(Codegen.FP)) {
+                mySlots.clear();
+            }
+            return;
+        }
+
+        String def = instr.getDef();
+        if (def == null) {
+            return;
+        }
+        if (def.equals(Codegen.SP)) {
+            if ((op.equals("addu") || op.equals("subu"))
+                && args.size() == 3 && args.get(1).equals(Codegen.SP)
+                && AsmInstr.isImmediate(args.get(2))) {
+                int n = Integer.parseInt(args.get(2));
+                mySp += op.equals("addu") ? n : -n;
+            } else {
+                mySlots.clear();
+                mySp = 0;
+            }
+            return;
+        }
+
+        Known result = Known.UNKNOWN;
+        if (op.equals("li") && AsmInstr.isImmediate(args.get(1))) {
+            result = Known.of(Integer.parseInt(args.get(1)));
+        } else if (op.equals("move")) {
+            result = get(args.get(1));
+        } else if (op.equals("lw")
+                   && Codegen.SP.equals(AsmInstr.baseOf(args.get(1)))) {
+            Known k = mySlots.get(mySp + AsmInstr.offsetOf(args.get(1)));
+            result = k == null ? Known.UNKNOWN : k;
+        } else if (args.size() == 3 || args.size() == 2) {
+            String a = args.size() == 3 ? args.get(1) : args.get(0);
+            String b = args.get(args.size() - 1);
+            Integer x = operand(a).value;
+            Integer y = operand(b).value;
+            if (x != null && y != null) {
+                Integer v = fold(op, x, y);
+                if (v != null) {
+                    result = Known.of(v);
+                }
+            }
+        }
+        set(def, result);
+    }
+
+    /**
+     * assume
+     * Record what is implied by the beq/bne branch going the given way.
+     */
+    public void assume(AsmInstr branch, boolean taken) {
+        String op = branch.getOpcode();
+        List<String> args = branch.getArgs();
+        boolean eq;
+        if (op.equals("beq") || op.equals("beqz")) {
+            eq = taken;
+        } else if (op.equals("bne") || op.equals("bnez")) {
+            eq = !taken;
+        } else {
+            return;
+        }
+        String a = args.get(0);
+        String b = args.size() == 3 ? args.get(1) : "0";
+        Integer bv = operand(b).value;
+        Integer av = operand(a).value;
+        if (bv != null && av == null) {
+            set(a, eq ? Known.of(bv) : get(a).not(bv));
+        } else if (av != null && bv == null && b.startsWith("$")) {
+            set(b, eq ? Known.of(av) : get(b).not(av));
+        }
+    }
+
+    /**
+     * decide
+     * Return the outcome of the given branch if it is known, else null.
+     */
+    public Boolean decide(AsmInstr branch) {
+        String op = branch.getOpcode();
+        List<String> args = branch.getArgs();
+        Known a = operand(args.get(0));
+        Known b = args.size() == 3 ? operand(args.get(1)) : Known.of(0);
+        if (a.value != null && b.value != null) {
+            int x = a.value;
+            int y = b.value;
+            if (op.equals("beq") || op.equals("beqz")) return x == y;
+            if (op.equals("bne") || op.equals("bnez")) return x != y;
+            if (op.equals("blt") || op.equals("bltz")) return x < y;
+            if (op.equals("ble") || op.equals("blez")) return x <= y;
+            if (op.equals("bgt") || op.equals("bgtz")) return x > y;
+            if (op.equals("bge") || op.equals("bgez")) return x >= y;
+            return null;
+        }
+        boolean differ = (b.value != null && a.excludes(b.value))
+                         || (a.value != null && b.excludes(a.value));
+        if (differ && (op.equals("beq") || op.equals("beqz"))) return false;
+        if (differ && (op.equals("bne") || op.equals("bnez"))) return true;
+        return null;
+    }
+
+    /**
+     * fold
+     * Evaluate a two-operand ALU instruction on constants; null if the
+     * instruction isn't handled or would trap.
+     */
+    public static Integer fold(String op, int x, int y) {
+        long wide;
+        if (op.equals("add") || op.equals("addi")) {
+            wide = (long) x + y;
+            return wide == (int) wide ? Integer.valueOf((int) wide) : null;
+        }
+        if (op.equals("sub")) {
+            wide = (long) x - y;
+            return wide == (int) wide ? Integer.valueOf((int) wide) : null;
+        }
+        if (op.equals("addu") || op.equals("addiu")) return x + y;
+        if (op.equals("subu")) return x - y;
+        if (op.equals("mul")) return x * y;
+        if (op.equals("and") || op.equals("andi")) return x & y;
+        if (op.equals("or") || op.equals("ori")) return x | y;
+        if (op.equals("xor") || op.equals("xori")) return x ^ y;
+        if (op.equals("slt") || op.equals("slti")) return x < y ? 1 : 0;
+        if (op.equals("sltu") || op.equals("sltiu")) {
+            return Integer.compareUnsigned(x, y) < 0 ? 1 : 0;
+        }
+        if (op.equals("seq")) return x == y ? 1 : 0;
+        if (op.equals("sne")) return x != y ? 1 : 0;
+        if (op.equals("sgt")) return x > y ? 1 : 0;
+        if (op.equals("sge")) return x >= y ? 1 : 0;
+        if (op.equals("sle")) return x <= y ? 1 : 0;
+        if (op.equals("sll")) return x << y;
+        if (op.equals("sra")) return x >> y;
+        if (op.equals("srl")) return x >>> y;
+        return null;
+    }
+
+    /**
+     * A Known is either an exact value or a set of excluded values.
+     * Known objects are never changed once made.
+     */
+    private static class Known {
+        static final Known UNKNOWN = new Known(null, Collections.<Integer>emptySet());
+
+        final Integer value;
+        final Set<Integer> excluded;
+
+        private Known(Integer value, Set<Integer> excluded) {
+            this.value = value;
+            this.excluded = excluded;
+        }
+
+        static Known of(int value) {
+            return new Known(value, Collections.<Integer>emptySet());
+        }
+
+        Known not(int v) {
+            Set<Integer> ex = new HashSet<Integer>(excluded);
+            ex.add(v);
+            return new Known(null, ex);
+        }
+
+        boolean excludes(int v) {
+            return excluded.contains(v);
+        }
+    }
+}
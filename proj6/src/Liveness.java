@@ -0,0 +1,99 @@
+import java.util.*;
+
+/**
+ * The Liveness class finds the registers that are live (may still be read)
+ * at the end of each block of a Cfg, by the usual backward dataflow
+ * iteration.  liveAfter() refines that to each instruction of a block.
+ * A call kills the registers its callee's summary says it changes (see
+ * AsmProgram.getCallSummaries).
+ */
+public class Liveness {
+    private Cfg myCfg;
+    private Map<String, Set<String>> mySummaries;
+    private Map<BasicBlock, Set<String>> myLiveOut =
+        new HashMap<BasicBlock, Set<String>>();
+
+    public Liveness(Cfg cfg, Map<String, Set<String>> summaries) {
+        myCfg = cfg;
+        mySummaries = summaries;
+        compute();
+    }
+
+    private void compute() {
+        Map<BasicBlock, Set<String>> liveIn =
+            new HashMap<BasicBlock, Set<String>>();
+        for (BasicBlock b : myCfg.getBlocks()) {
+            liveIn.put(b, new HashSet<String>());
+            myLiveOut.put(b, new HashSet<String>());
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            List<BasicBlock> blocks = myCfg.getBlocks();
+            for (int k = blocks.size() - 1; k >= 0; k--) {
+                BasicBlock b = blocks.get(k);
+                Set<String> out = myLiveOut.get(b);
+                for (BasicBlock s : b.getSuccs()) {
+                    out.addAll(liveIn.get(s));
+                }
+                Set<String> in = new HashSet<String>(out);
+                List<AsmInstr> instrs = b.getInstrs();
+                for (int i = instrs.size() - 1; i >= 0; i--) {
+                    step(instrs.get(i), in);
+                }
+                if (!in.equals(liveIn.get(b))) {
+                    liveIn.put(b, in);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Update the live set from after instr to before it.
+     */
+    private void step(AsmInstr instr, Set<String> live) {
+        live.removeAll(defs(instr));
+        live.addAll(instr.getUses());
+    }
+
+    /**
+     * Return the registers instr writes, by the summaries this was
+     * computed with.
+     */
+    public Set<String> defs(AsmInstr instr) {
+        return instr.getDefs(mySummaries);
+    }
+
+    public Set<String> liveOut(BasicBlock b) {
+        return myLiveOut.get(b);
+    }
+
+    /**
+     * Return the registers live at the start of b.
+     */
+    public Set<String> liveIn(BasicBlock b) {
+        Set<String> live = new HashSet<String>(myLiveOut.get(b));
+        List<AsmInstr> instrs = b.getInstrs();
+        for (int i = instrs.size() - 1; i >= 0; i--) {
+            step(instrs.get(i), live);
+        }
+        return live;
+    }
+
+    /**
+     * liveAfter
+     * Return, for each instruction of b, the registers live just after it.
+     */
+    public List<Set<String>> liveAfter(BasicBlock b) {
+        List<AsmInstr> instrs = b.getInstrs();
+        List<Set<String>> result = new ArrayList<Set<String>>();
+        Set<String> live = new HashSet<String>(myLiveOut.get(b));
+        for (int i = instrs.size() - 1; i >= 0; i--) {
+            result.add(0, new HashSet<String>(live));
+            step(instrs.get(i), live);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,36 @@
+import java.util.*;
+
+/**
+ * The Loop class is one natural loop: its header, the blocks with a back
+ * edge to the header (the latches), and all its blocks.
+ */
+public class Loop {
+    private BasicBlock myHeader;
+    private List<BasicBlock> myLatches = new ArrayList<BasicBlock>();
+    private Set<BasicBlock> myBlocks = new LinkedHashSet<BasicBlock>();
+
+    Loop(BasicBlock header) {
+        myHeader = header;
+        myBlocks.add(header);
+    }
+
+    void addLatch(BasicBlock latch) {
+        myLatches.add(latch);
+    }
+
+    public BasicBlock getHeader() {
+        return myHeader;
+    }
+
+    public List<BasicBlock> getLatches() {
+        return myLatches;
+    }
+
+    public Set<BasicBlock> getBlocks() {
+        return myBlocks;
+    }
+
+    public boolean contains(BasicBlock b) {
+        return myBlocks.contains(b);
+    }
+}
@@ -0,0 +1,191 @@
+import java.util.*;
+
+/**
+ * The LoopUnswitching class takes tests out of loops: an if statement in
+ * a while or repeat loop whose condition the loop can't change, like a
+ * test of a bool param or a global flag, is tested once in front of the
+ * loop, and the loop is generated twice, one copy running only the then
+ * part and the other only the else part (see LoopStmtNode.codeGen).
+ *
+ * A condition is invariant if it is made of literals, int and bool
+ * variables, and the comparison and logical operators (so testing it
+ * early can't trap), and none of its variables is written in the loop,
+ * by the loop's own code or, for a global, by a function it calls.
+ * Loops are taken outermost first, and each is unswitched on at most one
+ * if.  Only loops of up to MAX_LOOP_SIZE AST nodes are copied, and the
+ * copies may add up to GROWTH_BUDGET nodes to the program (a loop inside
+ * an unswitched loop is copied once for each copy of that loop).
+ */
+public class LoopUnswitching implements AstPass {
+    // the largest loop (in AST nodes) that is copied
+    private static final int MAX_LOOP_SIZE = 200;
+
+    // the most AST nodes the copies may add to the program
+    private static final int GROWTH_BUDGET = 1000;
+
+    private Set<FnSym> myWriters = new HashSet<FnSym>();   // write globals
+    private Set<CondStmtNode> myTaken = new HashSet<CondStmtNode>();
+    private int myGrowth = 0;
+
+    public void run(ProgramNode root) {
+        CallGraph graph = new CallGraph(root);
+        findWriters(graph);
+        for (FnDeclNode fn : graph.getFunctions()) {
+            visit(fn, fn.name(), 1);
+        }
+    }
+
+    /**
+     * findWriters
+     * Put in myWriters the functions that may write a global, by their
+     * own code or through the functions they call.
+     */
+    private void findWriters(CallGraph graph) {
+        Deque<FnSym> work = new ArrayDeque<FnSym>();
+        for (FnDeclNode fn : graph.getFunctions()) {
+            Set<Sym> written = new HashSet<Sym>();
+            ConstantPropagation.findUses(fn, written, new HashSet<Sym>());
+            for (Sym sym : written) {
+                if (sym.isGlobal() && myWriters.add(fn.sym())) {
+                    work.push(fn.sym());
+                }
+            }
+        }
+        while (!work.isEmpty()) {
+            for (CallExpNode call : graph.getCallers(work.pop())) {
+                FnSym caller = graph.getCaller(call);
+                if (myWriters.add(caller)) {
+                    work.push(caller);
+                }
+            }
+        }
+    }
+
+    /**
+     * visit
+     * Unswitch the loops below node, outermost first; copies is the
+     * number of times node is generated.
+     */
+    private void visit(ASTnode node, String fnName, int copies) {
+        if (node instanceof LoopStmtNode) {
+            LoopStmtNode loop = (LoopStmtNode)node;
+            if (unswitch(loop, fnName, copies)) {
+                copies *= 2;
+            }
+        }
+        for (ASTnode kid : node.children()) {
+            visit(kid, fnName, copies);
+        }
+    }
+
+    /**
+     * unswitch
+     * Unswitch loop on the first if in its body whose condition is
+     * invariant, if the budget allows; return true if it was.
+     */
+    private boolean unswitch(LoopStmtNode loop, String fnName, int copies) {
+        int size = ConstantPropagation.size(loop);
+        if (size > MAX_LOOP_SIZE || myGrowth + size * copies > GROWTH_BUDGET) {
+            return false;
+        }
+        Set<Sym> written = new HashSet<Sym>();
+        ConstantPropagation.findUses(loop, written, new HashSet<Sym>());
+        boolean writesGlobals = callsWriter(loop);
+
+        // the body is the third child of the loop
+        CondStmtNode branch = findBranch(loop.children().get(2), written,
+                                         writesGlobals);
+        if (branch == null) {
+            return false;
+        }
+        loop.unswitch(branch);
+        myTaken.add(branch);
+        myGrowth += size * copies;
+        PassManager.remark("unswitch", fnName + ": unswitched a loop on the "
+                           + "test at line " + branch.exp().lineNum());
+        return true;
+    }
+
+    /**
+     * Return the first if statement below node (in the order the code
+     * runs) with an invariant condition that no loop has taken yet and
+     * that isn't part of a switch, or null if there is none.
+     */
+    private CondStmtNode findBranch(ASTnode node, Set<Sym> written,
+                                    boolean writesGlobals) {
+        if (node instanceof CondStmtNode) {
+            CondStmtNode branch = (CondStmtNode)node;
+            if (!myTaken.contains(branch) && !branch.inSwitch()
+                && hasVariable(branch.exp())
+                && isInvariant(branch.exp(), written, writesGlobals)) {
+                return branch;
+            }
+        }
+        for (ASTnode kid : node.children()) {
+            CondStmtNode branch = findBranch(kid, written, writesGlobals);
+            if (branch != null) {
+                return branch;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return true if exp can be tested in front of the loop: it has no
+     * effects, can't trap, and reads only int and bool variables that
+     * the loop doesn't write.
+     */
+    private static boolean isInvariant(ExpNode exp, Set<Sym> written,
+                                       boolean writesGlobals) {
+        if (exp instanceof IntLitNode || exp instanceof TrueNode
+            || exp instanceof FalseNode) {
+            return true;
+        }
+        if (exp instanceof IdNode) {
+            Sym sym = ((IdNode)exp).sym();
+            Type type = sym.getType();
+            return (type.isIntType() || type.isBoolType())
+                   && !written.contains(sym)
+                   && !(sym.isGlobal() && writesGlobals);
+        }
+        if (exp instanceof NotNode) {
+            return isInvariant(((UnaryExpNode)exp).myExp, written,
+                               writesGlobals);
+        }
+        if (exp instanceof LogicalExpNode || exp instanceof EqualityExpNode
+            || exp instanceof RelationalExpNode) {
+            BinaryExpNode bin = (BinaryExpNode)exp;
+            return isInvariant(bin.myExp1, written, writesGlobals)
+                   && isInvariant(bin.myExp2, written, writesGlobals);
+        }
+        return false;
+    }
+
+    private static boolean hasVariable(ASTnode node) {
+        if (node instanceof IdNode) {
+            return true;
+        }
+        for (ASTnode kid : node.children()) {
+            if (hasVariable(kid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return true if node calls a function that may write a global.
+     */
+    private boolean callsWriter(ASTnode node) {
+        if (node instanceof CallExpNode
+            && myWriters.contains(((CallExpNode)node).fnSym())) {
+            return true;
+        }
+        for (ASTnode kid : node.children()) {
+            if (callsWriter(kid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
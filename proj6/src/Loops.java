@@ -0,0 +1,125 @@
+import java.util.*;
+
+/**
+ * The Loops class finds the natural loops of a Cfg.  An edge from b to h
+ * where h dominates b (every path from the entry to b goes through h) is
+ * a back edge; its loop is h, the header, and the blocks that reach b
+ * without going through h.  The back edges to one header make one loop.
+ *
+ * getLoops() lists inner loops before the loops that contain them.  The
+ * Cfg must not change while the result is in use.
+ */
+public class Loops {
+    private Map<BasicBlock, Set<BasicBlock>> myDoms =
+        new HashMap<BasicBlock, Set<BasicBlock>>();
+    private List<Loop> myLoops = new ArrayList<Loop>();
+
+    public Loops(Cfg cfg) {
+        computeDominators(cfg);
+        Map<BasicBlock, Loop> byHeader = new LinkedHashMap<BasicBlock, Loop>();
+        for (BasicBlock b : cfg.getBlocks()) {
+            for (BasicBlock h : b.getSuccs()) {
+                if (!dominates(h, b)) {
+                    continue;
+                }
+                Loop loop = byHeader.get(h);
+                if (loop == null) {
+                    loop = new Loop(h);
+                    byHeader.put(h, loop);
+                }
+                loop.addLatch(b);
+                addBlocks(loop, b);
+            }
+        }
+        myLoops.addAll(byHeader.values());
+        Collections.sort(myLoops, new Comparator<Loop>() {
+            public int compare(Loop a, Loop b) {
+                return a.getBlocks().size() - b.getBlocks().size();
+            }
+        });
+    }
+
+    /**
+     * addBlocks
+     * Add to loop the (reachable) blocks that reach latch without going
+     * through the header.
+     */
+    private void addBlocks(Loop loop, BasicBlock latch) {
+        Set<BasicBlock> blocks = loop.getBlocks();
+        Deque<BasicBlock> work = new ArrayDeque<BasicBlock>();
+        if (blocks.add(latch)) {
+            work.push(latch);
+        }
+        while (!work.isEmpty()) {
+            for (BasicBlock p : work.pop().getPreds()) {
+                if (myDoms.containsKey(p) && blocks.add(p)) {
+                    work.push(p);
+                }
+            }
+        }
+    }
+
+    public List<Loop> getLoops() {
+        return myLoops;
+    }
+
+    /**
+     * Return true if every path from the entry to b goes through a.
+     */
+    public boolean dominates(BasicBlock a, BasicBlock b) {
+        Set<BasicBlock> doms = myDoms.get(b);
+        return doms != null && doms.contains(a);
+    }
+
+    /**
+     * computeDominators
+     * The usual iteration: a block is dominated by itself and by what
+     * dominates all its predecessors.  Unreachable blocks get no set.
+     */
+    private void computeDominators(Cfg cfg) {
+        cfg.computePreds();
+        BasicBlock entry = cfg.getEntry();
+        Set<BasicBlock> reached = new LinkedHashSet<BasicBlock>();
+        Deque<BasicBlock> work = new ArrayDeque<BasicBlock>();
+        work.push(entry);
+        while (!work.isEmpty()) {
+            BasicBlock b = work.pop();
+            if (reached.add(b)) {
+                for (BasicBlock s : b.getSuccs()) {
+                    work.push(s);
+                }
+            }
+        }
+
+        for (BasicBlock b : reached) {
+            myDoms.put(b, new HashSet<BasicBlock>(reached));
+        }
+        myDoms.put(entry, new HashSet<BasicBlock>(Collections.singleton(entry)));
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock b : reached) {
+                if (b == entry) {
+                    continue;
+                }
+                Set<BasicBlock> doms = null;
+                for (BasicBlock p : b.getPreds()) {
+                    Set<BasicBlock> pdoms = myDoms.get(p);
+                    if (pdoms == null) {
+                        continue;
+                    }
+                    if (doms == null) {
+                        doms = new HashSet<BasicBlock>(pdoms);
+                    } else {
+                        doms.retainAll(pdoms);
+                    }
+                }
+                doms.add(b);
+                if (!doms.equals(myDoms.get(b))) {
+                    myDoms.put(b, doms);
+                    changed = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.*;
+
+/**
+ * The Memoization class makes pure functions (see Purity) remember their
+ * results.  It is opt-in (-enable-memoize), since it costs a table in
+ * .data for each function and a lookup on every call.
+ *
+ * A function is memoized if it is pure, takes one or two int or bool
+ * args, returns an int or bool, and does enough work for a lookup to pay
+ * off: it calls a function or has a loop.  Naive recursive functions
+ * (fib) are the case this is for: they go from exponential to linear.
+ *
+ * FnDeclNode.codeGen generates the lookup as the function's entry and
+ * the body under another label.  The table has ENTRIES entries of four
+ * words (a valid flag, the two args and the value); the args hash to an
+ * entry, a hit needs both args to match, and a miss overwrites the entry
+ * with the new result, so a collision just evicts the older one.
+ */
+public class Memoization implements AstPass {
+    // entries in each function's table (a power of 2)
+    public static final int ENTRIES = 1024;
+
+    public void run(ProgramNode root) {
+        CallGraph graph = new CallGraph(root);
+        Purity purity = new Purity(graph);
+        for (FnDeclNode fn : graph.getFunctions()) {
+            if (!fn.name().equals("main") && purity.isPure(fn.sym())
+                && hasMemoSignature(fn)
+                && (!graph.getCalls(fn.sym()).isEmpty() || hasLoop(fn))) {
+                fn.sym().setMemoized(true);
+                PassManager.remark("memoize", "memoized " + fn.name());
+            }
+        }
+    }
+
+    private static boolean hasMemoSignature(FnDeclNode fn) {
+        List<Sym> params = fn.formalSyms();
+        if (params.size() < 1 || params.size() > 2
+            || !isScalar(fn.sym().getReturnType())) {
+            return false;
+        }
+        for (Sym param : params) {
+            if (!isScalar(param.getType())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isScalar(Type type) {
+        return type.isIntType() || type.isBoolType();
+    }
+
+    private static boolean hasLoop(ASTnode node) {
+        if (node instanceof WhileStmtNode || node instanceof RepeatStmtNode) {
+            return true;
+        }
+        for (ASTnode kid : node.children()) {
+            if (hasLoop(kid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the label of the memo table of the named function.
+     */
+    static String tableLabel(String fn) {
+        return "_" + fn + "_memo";
+    }
+
+    /**
+     * Return the label of the body of the named memoized function.
+     */
+    static String bodyLabel(String fn) {
+        return fn + "__memo";
+    }
+}
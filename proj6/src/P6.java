@@ -8,6 +8,9 @@ import java_cup.runtime.*;
  * There should be 2 command-line arguments:
  *    1. the file to be parsed
  *    2. the output MIPS file
+ * They may be preceded by the optimization options described in
+ * PassManager (-O0/-O1/-O2, -enable-NAME, -disable-NAME, -passes=...,
+ * -time-passes).
  *
  * The program opens the two files, creates a scanner and a parser, and
  * calls the parser.  If the parse is successful, then it will call name
@@ -18,6 +21,7 @@ public class P6 {
 	FileReader inFile;
 	private PrintWriter outFile;
 	private static PrintStream outStream = System.err;
+	private PassManager passes = new PassManager();
 
 	public static final int RESULT_CORRECT = 0;
 	public static final int RESULT_SYNTAX_ERROR = 1;
@@ -37,19 +41,26 @@ public class P6 {
 	 * is the command line to use. It shouldn't be invoked from
 	 * outside the class (hence the private constructor) because
 	 * it
-	 * @param args command line args array for [<infile> <outfile>]
+	 * @param args command line args array for [<options>] <infile> <outfile>
 	 */
 	private P6(String[] args) {
 		//Parse arguments
-		if (args.length < 2) {
+		int first = 0;
+		while (first < args.length && args[first].startsWith("-")) {
+			if (!passes.parseOption(args[first])) {
+				pukeAndDie("unknown option " + args[first]);
+			}
+			first++;
+		}
+		if (args.length - first < 2) {
 			String msg = "please supply name of the input file "
 				+ "and name of file for assembly output.";
 			pukeAndDie(msg);
 		}
 
 		try {
-			setInfile(args[0]);
-			setOutfile(args[1]);
+			setInfile(args[first]);
+			setOutfile(args[first + 1]);
 		} catch(BadInfileException e) {
 			pukeAndDie(e.getMessage());
 		} catch(BadOutfileException e) {
@@ -138,15 +149,26 @@ public class P6 {
 		}
 	}
 
+	/**
+	 * The pass manager, for clients that set options themselves.
+	 */
+	public PassManager getPassManager() {
+		return passes;
+	}
+
 	public int process() {
+		passes.startPhase("parse");
 		Symbol cfgRoot = parseCFG();
+		passes.endPhase();
 
 		ProgramNode astRoot = (ProgramNode)cfgRoot.value;
 		if (ErrMsg.getErr()) {
 			return P6.RESULT_SYNTAX_ERROR;
 		}
 
+		passes.startPhase("name-analysis");
 		astRoot.nameAnalysis();	 // perform name analysis
+		passes.endPhase();
         if (!ErrMsg.hasMain) {   // hxu: if the program does not has main
             ErrMsg.fatal(0, 0, "No main function");
         }
@@ -154,14 +176,35 @@ public class P6 {
 			return P6.RESULT_NAME_ANALYSIS_ERROR;
 		}
 
+		passes.startPhase("type-check");
 		astRoot.typeCheck();
+		passes.endPhase();
 		if (ErrMsg.getErr()) {
 			return P6.RESULT_TYPE_ERROR;
 		}
 
 		//////////////////////////
 		// TODO: Calling codeGen   //
+        // codeGen writes into a buffer; the optimization passes rewrite
+        // the buffered code before it goes to the output file
+        passes.runAstPasses(astRoot);
+
+        passes.startPhase("codegen");
+        StringWriter buffer = new StringWriter();
+        Codegen.p = new PrintWriter(buffer);
         astRoot.codeGen();
+        Codegen.p.flush();
+        AsmProgram prog = AsmProgram.parse(buffer.toString(),
+                                           astRoot.getCallSummaries());
+        passes.endPhase();
+
+        passes.runAsmPasses(prog);
+
+        passes.startPhase("emit");
+        Codegen.p = outFile;
+        prog.emit();
+        passes.endPhase();
+        passes.printTiming(outStream);
 		//astRoot.unparse(new PrintWriter(System.out), 0);
 		//////////////////////////
 
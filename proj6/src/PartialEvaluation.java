@@ -0,0 +1,300 @@
+import java.util.*;
+
+/**
+ * The PartialEvaluation class computes calls at compile time: a call to a
+ * pure function (see Purity) whose args are all constants, like
+ * square(12), is run by an interpreter over the AST, and if it returns
+ * within the budgets the call is replaced by an IntLitNode, TrueNode or
+ * FalseNode with the result.  Calls are folded innermost first, so
+ * f(g(2)) folds completely.
+ *
+ * The interpreter gives up (and the call is left alone) when it runs
+ * more than MAX_STEPS statements and expressions for one call, nests
+ * calls deeper than MAX_DEPTH, or meets something it can't know: a
+ * local read before it is set, a struct, a division by zero or an
+ * overflow that the code would trap on.
+ */
+public class PartialEvaluation implements AstPass {
+    // the most statements and expressions run for one folded call
+    private static final int MAX_STEPS = 100000;
+
+    // the deepest nesting of calls
+    private static final int MAX_DEPTH = 200;
+
+    private CallGraph myGraph;
+    private Purity myPurity;
+    // results already computed, by callee and args
+    private Map<FnSym, Map<List<Integer>, Integer>> myResults =
+        new HashMap<FnSym, Map<List<Integer>, Integer>>();
+
+    public void run(ProgramNode root) {
+        myGraph = new CallGraph(root);
+        myPurity = new Purity(myGraph);
+        for (FnDeclNode fn : myGraph.getFunctions()) {
+            fold(fn);
+        }
+    }
+
+    /**
+     * fold
+     * Replace the foldable calls below node, innermost first.
+     */
+    private void fold(ASTnode node) {
+        for (ASTnode kid : node.children()) {
+            fold(kid);
+            if (kid instanceof CallExpNode && !(node instanceof CallStmtNode)) {
+                CallExpNode call = (CallExpNode)kid;
+                Integer value = evaluate(call);
+                if (value != null) {
+                    node.replaceExp(call, literal(call, value));
+                    PassManager.remark("partial-eval", "folded a call of "
+                                       + call.fnName() + " to " + value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the value of the call, or null if it can't be evaluated.
+     */
+    private Integer evaluate(CallExpNode call) {
+        FnSym fn = call.fnSym();
+        Type type = fn.getReturnType();
+        if (!myPurity.isPure(fn) || !(type.isIntType() || type.isBoolType())) {
+            return null;
+        }
+        List<Integer> args = new ArrayList<Integer>();
+        for (ExpNode arg : call.args()) {
+            Integer value = ConstantPropagation.valueOf(arg,
+                                                        new HashMap<Sym, Integer>());
+            if (value == null) {
+                return null;
+            }
+            args.add(value);
+        }
+
+        Map<List<Integer>, Integer> results = myResults.get(fn);
+        if (results == null) {
+            results = new HashMap<List<Integer>, Integer>();
+            myResults.put(fn, results);
+        }
+        if (!results.containsKey(args)) {
+            Integer value = null;
+            try {
+                value = new Interpreter().call(fn, args, 0);
+            } catch (GiveUp ex) {
+                // leave the call
+            }
+            results.put(args, value);
+        }
+        return results.get(args);
+    }
+
+    /**
+     * Return the literal of call's type with the given value.
+     */
+    private static ExpNode literal(CallExpNode call, int value) {
+        int line = call.lineNum();
+        int col = call.charNum();
+        if (call.fnSym().getReturnType().isBoolType()) {
+            return value != 0 ? new TrueNode(line, col) : new FalseNode(line, col);
+        }
+        return new IntLitNode(line, col, value);
+    }
+
+    /**
+     * Thrown when the interpreter can't (or may not) go on.
+     */
+    private static class GiveUp extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // **********************************************************************
+    // the interpreter
+    // **********************************************************************
+
+    private class Interpreter {
+        private int mySteps = 0;
+        // value of the return just run, while exec unwinds
+        private Integer myReturned;
+
+        /**
+         * call
+         * Run fn with the given args and return its value.
+         */
+        Integer call(FnSym fn, List<Integer> args, int depth) {
+            FnDeclNode decl = myGraph.getDecl(fn);
+            if (decl == null || depth > MAX_DEPTH) {
+                throw new GiveUp();
+            }
+            Map<Sym, Integer> env = new HashMap<Sym, Integer>();
+            List<Sym> params = decl.formalSyms();
+            for (int k = 0; k < params.size(); k++) {
+                env.put(params.get(k), args.get(k));
+            }
+            // the body is the second child of the FnDeclNode: its stmts
+            // are the second child of the FnBodyNode
+            ASTnode body = decl.children().get(1);
+            myReturned = null;
+            if (!exec(body.children().get(1), env, depth)
+                && !fn.getReturnType().isVoidType()) {
+                throw new GiveUp();     // fell off the end
+            }
+            Integer value = myReturned;
+            myReturned = null;
+            return value;
+        }
+
+        /**
+         * exec
+         * Run the statement (or statement list) node; return true if it
+         * executed a return, with its value in myReturned.
+         */
+        private boolean exec(ASTnode node, Map<Sym, Integer> env, int depth) {
+            step();
+            List<ASTnode> kids = node.children();
+            if (node instanceof StmtListNode) {
+                for (ASTnode stmt : kids) {
+                    if (exec(stmt, env, depth)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (node instanceof AssignStmtNode || node instanceof CallStmtNode) {
+                eval((ExpNode)kids.get(0), env, depth);
+                return false;
+            }
+            if (node instanceof PostIncStmtNode || node instanceof PostDecStmtNode) {
+                Sym var = variable(kids.get(0));
+                long v = (long)read(var, env)
+                         + (node instanceof PostIncStmtNode ? 1 : -1);
+                env.put(var, checked(v));
+                return false;
+            }
+            if (node instanceof IfStmtNode) {
+                return truth(kids.get(0), env, depth)
+                       && exec(kids.get(2), env, depth);
+            }
+            if (node instanceof IfElseStmtNode) {
+                return truth(kids.get(0), env, depth) ? exec(kids.get(2), env, depth)
+                                                      : exec(kids.get(4), env, depth);
+            }
+            if (node instanceof WhileStmtNode) {
+                while (truth(kids.get(0), env, depth)) {
+                    if (exec(kids.get(2), env, depth)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (node instanceof RepeatStmtNode) {
+                int n = eval((ExpNode)kids.get(0), env, depth);
+                for (int k = 0; k < n; k++) {
+                    if (exec(kids.get(2), env, depth)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (node instanceof ReturnStmtNode) {
+                myReturned = kids.isEmpty() ? null
+                             : eval((ExpNode)kids.get(0), env, depth);
+                return true;
+            }
+            throw new GiveUp();
+        }
+
+        private boolean truth(ASTnode exp, Map<Sym, Integer> env, int depth) {
+            return eval((ExpNode)exp, env, depth) != 0;
+        }
+
+        /**
+         * eval
+         * Return the value of exp (bools as 0 and 1).
+         */
+        private int eval(ExpNode exp, Map<Sym, Integer> env, int depth) {
+            step();
+            if (exp instanceof IntLitNode || exp instanceof TrueNode
+                || exp instanceof FalseNode) {
+                return ConstantPropagation.valueOf(exp, env);
+            }
+            if (exp instanceof IdNode) {
+                return read(variable(exp), env);
+            }
+            if (exp instanceof AssignNode) {
+                Sym var = variable(((AssignNode)exp).lhs());
+                int value = eval((ExpNode)exp.children().get(1), env, depth);
+                env.put(var, value);
+                return 1;       // what the generated code gives it
+            }
+            if (exp instanceof CallExpNode) {
+                CallExpNode call = (CallExpNode)exp;
+                List<Integer> args = new ArrayList<Integer>();
+                for (ExpNode arg : call.args()) {
+                    args.add(eval(arg, env, depth));
+                }
+                Integer value = call(call.fnSym(), args, depth + 1);
+                return value == null ? 0 : value;   // a void call
+            }
+            if (exp instanceof UnaryMinusNode) {
+                return checked(-(long)eval(((UnaryExpNode)exp).myExp, env, depth));
+            }
+            if (exp instanceof NotNode) {
+                return eval(((UnaryExpNode)exp).myExp, env, depth) == 0 ? 1 : 0;
+            }
+            if (exp instanceof BinaryExpNode) {
+                BinaryExpNode bin = (BinaryExpNode)exp;
+                if (bin.myExp1 instanceof StringLitNode
+                    || bin.myExp2 instanceof StringLitNode) {
+                    throw new GiveUp();
+                }
+                // right operand first, as the generated code does, except
+                // for && and ||, which may skip it
+                if (exp instanceof AndNode || exp instanceof OrNode) {
+                    int x = eval(bin.myExp1, env, depth);
+                    if ((x != 0) == (exp instanceof OrNode)) {
+                        return x != 0 ? 1 : 0;
+                    }
+                    return eval(bin.myExp2, env, depth) != 0 ? 1 : 0;
+                }
+                int y = eval(bin.myExp2, env, depth);
+                int x = eval(bin.myExp1, env, depth);
+                Integer value = InstrSelector.fold(bin, x, y);
+                if (value == null) {
+                    throw new GiveUp();
+                }
+                return value;
+            }
+            throw new GiveUp();
+        }
+
+        private Sym variable(ASTnode exp) {
+            if (!(exp instanceof IdNode)) {
+                throw new GiveUp();
+            }
+            return ((IdNode)exp).sym();
+        }
+
+        private int read(Sym var, Map<Sym, Integer> env) {
+            Integer value = env.get(var);
+            if (value == null) {
+                throw new GiveUp();     // read before it is set
+            }
+            return value;
+        }
+
+        private int checked(long value) {
+            if (value != (int)value) {
+                throw new GiveUp();
+            }
+            return (int)value;
+        }
+
+        private void step() {
+            if (++mySteps > MAX_STEPS) {
+                throw new GiveUp();
+            }
+        }
+    }
+}
@@ -0,0 +1,760 @@
+import java.util.*;
+
+/**
+ * The PartialRedundancy class removes computations whose value was
+ * already computed on some or all of the paths that lead to them, by
+ * lazy code motion (Knoop, Ruthing and Steffen): an expression is
+ * computed once into a temporary, as late as it can be while still
+ * saving every computation that can be saved, and its computations
+ * that are then redundant use the temporary instead.  This covers
+ * common subexpressions across statements and branches (an expression
+ * in both arms of an if and after it is computed once in each arm), and
+ * expressions that a loop computes again on every iteration although
+ * their value is known before it.
+ *
+ * Code is never made to run on a path that didn't compute the
+ * expression before, so a while loop's invariant is only taken out of
+ * it when it is computed before the loop or after it as well.
+ *
+ * The pass works on the AST, where an expression is easy to recognize
+ * again: each function becomes a graph with a node per simple statement
+ * (assignment, call, read, write, increment, return) and per condition,
+ * and nodes for the edges where control joins, each with the places in
+ * the statement lists where code at its start would go.  An edge with no
+ * such place (the way past an if with no else, say) can't be given code;
+ * an expression that would need it is left alone.
+ *
+ * Only expressions of int and bool variables and literals with no effects
+ * and a cost (see cost) of at least MIN_COST are moved.  Operands of &&
+ * and || past the first are not always computed, so they are not counted
+ * as computations.  One expression is moved at a time, the costliest
+ * first, for up to MAX_ROUNDS in each function.
+ */
+public class PartialRedundancy implements AstPass {
+    // the cheapest expression worth a temporary
+    private static final int MIN_COST = 2;
+
+    // the most expressions moved in one function
+    private static final int MAX_ROUNDS = 20;
+
+    // the variable a call may change
+    private static final String GLOBALS = "g:*";
+
+    public void run(ProgramNode root) {
+        CallGraph graph = new CallGraph(root);
+        for (FnDeclNode fn : graph.getFunctions()) {
+            Set<String> failed = new HashSet<String>();
+            int moved = 0;
+            int replaced = 0;
+            for (int round = 0; round < MAX_ROUNDS; round++) {
+                int count = new FlowGraph(fn).moveOne(failed);
+                if (count == 0) {
+                    break;
+                }
+                moved++;
+                replaced += count;
+            }
+            if (moved > 0) {
+                PassManager.remark("pre", fn.name() + ": replaced " + replaced
+                                   + " computations of " + moved
+                                   + " expressions");
+            }
+        }
+    }
+
+    // **********************************************************************
+    // expressions
+    // **********************************************************************
+
+    /**
+     * Return true if exp is an operator over int or bool variables and
+     * literals that can be moved.
+     */
+    private static boolean isMovable(ExpNode exp) {
+        return isOperator(exp) && isPure(exp) && cost(exp) >= MIN_COST;
+    }
+
+    private static boolean isOperator(ExpNode exp) {
+        return exp instanceof ArithmeticExpNode
+               || exp instanceof EqualityExpNode
+               || exp instanceof RelationalExpNode
+               || exp instanceof UnaryMinusNode || exp instanceof NotNode;
+    }
+
+    private static boolean isPure(ExpNode exp) {
+        if (exp instanceof IntLitNode || exp instanceof TrueNode
+            || exp instanceof FalseNode) {
+            return true;
+        }
+        if (exp instanceof IdNode) {
+            Sym sym = ((IdNode)exp).sym();
+            return sym != null && (sym.getType().isIntType()
+                                   || sym.getType().isBoolType());
+        }
+        if (!isOperator(exp)) {
+            return false;
+        }
+        for (ASTnode kid : exp.children()) {
+            if (!isPure((ExpNode)kid)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * cost
+     * Return the operators in exp, counting a multiplication or division
+     * as three.
+     */
+    private static int cost(ExpNode exp) {
+        int cost = 0;
+        if (exp instanceof TimesNode || exp instanceof DivideNode) {
+            cost = 3;
+        } else if (isOperator(exp)) {
+            cost = 1;
+        }
+        for (ASTnode kid : exp.children()) {
+            cost += cost((ExpNode)kid);
+        }
+        return cost;
+    }
+
+    /**
+     * Return a string that is the same for two pure expressions exactly
+     * when they compute the same thing from the same variables.
+     */
+    private static String key(ExpNode exp) {
+        if (exp instanceof IntLitNode) {
+            return "" + ((IntLitNode)exp).intVal();
+        }
+        if (exp instanceof TrueNode || exp instanceof FalseNode) {
+            return exp instanceof TrueNode ? "true" : "false";
+        }
+        if (exp instanceof IdNode) {
+            return slot(((IdNode)exp).sym(), ((IdNode)exp).name());
+        }
+        String key = exp.getClass().getName() + "(";
+        for (ASTnode kid : exp.children()) {
+            key += key((ExpNode)kid) + ",";
+        }
+        return key + ")";
+    }
+
+    /**
+     * Return the name of the variable of sym: its slot in the frame for a
+     * local, its name for a global.
+     */
+    private static String slot(Sym sym, String name) {
+        return sym.isGlobal() ? "g:" + name : "l:" + sym.getOffset();
+    }
+
+    private static void addVars(ExpNode exp, Set<String> vars) {
+        if (exp instanceof IdNode) {
+            vars.add(slot(((IdNode)exp).sym(), ((IdNode)exp).name()));
+        }
+        for (ASTnode kid : exp.children()) {
+            addVars((ExpNode)kid, vars);
+        }
+    }
+
+    /**
+     * Return true if writing the variables in writes changes one of vars.
+     */
+    private static boolean changes(Set<String> writes, Set<String> vars) {
+        for (String var : vars) {
+            if (writes.contains(var)
+                || var.startsWith("g:") && writes.contains(GLOBALS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * copy
+     * Return a new tree that computes what exp, a pure expression, does.
+     */
+    private static ExpNode copy(ExpNode exp) {
+        if (exp instanceof IntLitNode) {
+            return new IntLitNode(exp.lineNum(), exp.charNum(),
+                                  ((IntLitNode)exp).intVal());
+        }
+        if (exp instanceof TrueNode) {
+            return new TrueNode(exp.lineNum(), exp.charNum());
+        }
+        if (exp instanceof FalseNode) {
+            return new FalseNode(exp.lineNum(), exp.charNum());
+        }
+        if (exp instanceof IdNode) {
+            IdNode id = (IdNode)exp;
+            IdNode copy = new IdNode(id.lineNum(), id.charNum(), id.name());
+            copy.link(id.sym());
+            return copy;
+        }
+        if (exp instanceof UnaryMinusNode) {
+            return new UnaryMinusNode(copy(((UnaryExpNode)exp).myExp));
+        }
+        if (exp instanceof NotNode) {
+            return new NotNode(copy(((UnaryExpNode)exp).myExp));
+        }
+        BinaryExpNode bin = (BinaryExpNode)exp;
+        ExpNode l = copy(bin.myExp1);
+        ExpNode r = copy(bin.myExp2);
+        if (exp instanceof PlusNode) {
+            return new PlusNode(l, r);
+        } else if (exp instanceof MinusNode) {
+            return new MinusNode(l, r);
+        } else if (exp instanceof TimesNode) {
+            return new TimesNode(l, r);
+        } else if (exp instanceof DivideNode) {
+            return new DivideNode(l, r);
+        } else if (exp instanceof EqualsNode) {
+            return new EqualsNode(l, r);
+        } else if (exp instanceof NotEqualsNode) {
+            return new NotEqualsNode(l, r);
+        } else if (exp instanceof LessNode) {
+            return new LessNode(l, r);
+        } else if (exp instanceof GreaterNode) {
+            return new GreaterNode(l, r);
+        } else if (exp instanceof LessEqNode) {
+            return new LessEqNode(l, r);
+        } else if (exp instanceof GreaterEqNode) {
+            return new GreaterEqNode(l, r);
+        }
+        System.err.println("Unexpected copy of " + exp.getClass().getName());
+        System.exit(-1);
+        return null;
+    }
+
+    // **********************************************************************
+    // the flow graph
+    // **********************************************************************
+
+    /**
+     * A place for a statement: before the statement before in list, or at
+     * the end of list if before is null.
+     */
+    private static class Place {
+        StmtListNode list;
+        StmtNode before;
+
+        Place(StmtListNode list, StmtNode before) {
+            this.list = list;
+            this.before = before;
+        }
+    }
+
+    /**
+     * A computation of an expression: exp, a child of parent.
+     */
+    private static class Occurrence {
+        ExpNode exp;
+        ASTnode parent;
+
+        Occurrence(ExpNode exp, ASTnode parent) {
+            this.exp = exp;
+            this.parent = parent;
+        }
+    }
+
+    private static class Node {
+        List<Node> succs = new ArrayList<Node>();
+        List<Node> preds = new ArrayList<Node>();
+        List<Place> places;         // where code at its start goes, or null
+        List<Occurrence> occurrences = new ArrayList<Occurrence>();
+        Set<String> writes = new HashSet<String>();
+        // variables written before the node is done with its operands
+        Set<String> innerWrites = new HashSet<String>();
+
+        // by expression index
+        BitSet use = new BitSet();
+        BitSet kill = new BitSet();
+        BitSet antIn = new BitSet();
+        BitSet avOut = new BitSet();
+        BitSet earliest = new BitSet();
+        BitSet postIn = new BitSet();
+        BitSet postOut = new BitSet();
+        BitSet latest = new BitSet();
+        BitSet usedOut = new BitSet();
+        BitSet usedIn = new BitSet();
+
+        Node(List<Place> places) {
+            this.places = places;
+        }
+    }
+
+    private static class FlowGraph {
+        private FnDeclNode myFn;
+        private List<Node> myNodes = new ArrayList<Node>();
+        private Node myEntry;
+        private Node myExit;
+
+        // the expressions, by index
+        private List<String> myKeys = new ArrayList<String>();
+        private List<ExpNode> mySamples = new ArrayList<ExpNode>();
+
+        FlowGraph(FnDeclNode fn) {
+            myFn = fn;
+            StmtListNode body = (StmtListNode)fn.children().get(1)
+                                                 .children().get(1);
+            myExit = new Node(null);
+            myEntry = node(place(body, 0));
+            Node last = build(body, myEntry);
+            link(last, myExit);
+            myNodes.add(myExit);
+            findUses();
+        }
+
+        /**
+         * moveOne
+         * Move the costliest expression (not in failed) that has redundant
+         * computations; return how many computations now use its
+         * temporary, or 0 if there is no such expression.  An expression
+         * that would need code where there is no place for it is added to
+         * failed.
+         */
+        int moveOne(Set<String> failed) {
+            solve();
+            List<Integer> order = new ArrayList<Integer>();
+            for (int e = 0; e < myKeys.size(); e++) {
+                order.add(e);
+            }
+            Collections.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return cost(mySamples.get(b)) - cost(mySamples.get(a));
+                }
+            });
+            for (int e : order) {
+                if (failed.contains(myKeys.get(e))) {
+                    continue;
+                }
+                List<Node> inserts = new ArrayList<Node>();
+                List<Node> replaces = new ArrayList<Node>();
+                boolean placed = true;
+                for (Node n : myNodes) {
+                    boolean late = n.latest.get(e);
+                    if (late && n.usedOut.get(e)) {
+                        inserts.add(n);
+                        placed &= n.places != null;
+                    }
+                    if (n.use.get(e) && !(late && !n.usedOut.get(e))) {
+                        replaces.add(n);
+                    }
+                }
+                if (replaces.isEmpty()) {
+                    continue;
+                }
+                if (!placed) {
+                    failed.add(myKeys.get(e));
+                    continue;
+                }
+                return move(e, inserts, replaces);
+            }
+            return 0;
+        }
+
+        /**
+         * move
+         * Compute expression e into a new temporary at the start of the
+         * inserts, and use the temporary in its computations in replaces.
+         */
+        private int move(int e, List<Node> inserts, List<Node> replaces) {
+            ExpNode sample = mySamples.get(e);
+            FnSym fnSym = myFn.sym();
+            boolean isInt = sample instanceof ArithmeticExpNode
+                            || sample instanceof UnaryMinusNode;
+            Sym temp = new Sym(isInt ? new IntType() : new BoolType());
+            temp.setGlobal(false);
+            temp.setOffset(-8 - fnSym.getTotalLocalSize());
+            fnSym.setTotalLocalSize(fnSym.getTotalLocalSize() + 4);
+            String name = "_pre" + (-temp.getOffset());
+
+            for (Node n : inserts) {
+                for (Place place : n.places) {
+                    IdNode lhs = new IdNode(sample.lineNum(),
+                                            sample.charNum(), name);
+                    lhs.link(temp);
+                    StmtNode stmt =
+                        new AssignStmtNode(new AssignNode(lhs, copy(sample)));
+                    List<StmtNode> stmts = place.list.stmts();
+                    int k = place.before == null ? stmts.size()
+                                                 : stmts.indexOf(place.before);
+                    stmts.add(k, stmt);
+                }
+            }
+            int count = 0;
+            for (Node n : replaces) {
+                for (Occurrence occ : n.occurrences) {
+                    if (key(occ.exp).equals(myKeys.get(e))) {
+                        IdNode id = new IdNode(occ.exp.lineNum(),
+                                               occ.exp.charNum(), name);
+                        id.link(temp);
+                        occ.parent.replaceExp(occ.exp, id);
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        // ******************************************************************
+        // building the graph
+        // ******************************************************************
+
+        private Node node(List<Place> places) {
+            Node n = new Node(places);
+            myNodes.add(n);
+            return n;
+        }
+
+        private static void link(Node from, Node to) {
+            if (from != null) {
+                from.succs.add(to);
+                to.preds.add(from);
+            }
+        }
+
+        /**
+         * Return a list of the one place before the k-th statement of
+         * list (at its end if there is no such statement).
+         */
+        private static List<Place> place(StmtListNode list, int k) {
+            List<StmtNode> stmts = list.stmts();
+            StmtNode before = k < stmts.size() ? stmts.get(k) : null;
+            return new ArrayList<Place>(Arrays.asList(new Place(list,
+                                                                before)));
+        }
+
+        /**
+         * build
+         * Add the nodes of the statements of list, which control reaches
+         * from pred; return the node control leaves them from, or null if
+         * it doesn't (they end with a return).  The statements after a
+         * return are never reached, and are left out.
+         */
+        private Node build(StmtListNode list, Node pred) {
+            List<StmtNode> stmts = list.stmts();
+            Node cur = pred;
+            for (int k = 0; k < stmts.size() && cur != null; k++) {
+                StmtNode stmt = stmts.get(k);
+                Node n = node(place(list, k));
+                link(cur, n);
+                if (stmt instanceof IfStmtNode) {
+                    IfStmtNode s = (IfStmtNode)stmt;
+                    scan(s.exp(), s, n, true);
+                    StmtListNode then = (StmtListNode)s.children().get(2);
+                    Node join = node(place(list, k + 1));
+                    link(end(then, build(then, n)), join);
+                    Node skip = node(null);
+                    link(n, skip);
+                    link(skip, join);
+                    cur = join;
+                } else if (stmt instanceof IfElseStmtNode) {
+                    IfElseStmtNode s = (IfElseStmtNode)stmt;
+                    scan(s.exp(), s, n, true);
+                    StmtListNode then = (StmtListNode)s.children().get(2);
+                    StmtListNode other = (StmtListNode)s.children().get(4);
+                    Node thenEnd = end(then, build(then, n));
+                    Node otherEnd = end(other, build(other, n));
+                    cur = null;
+                    if (thenEnd != null || otherEnd != null) {
+                        cur = node(place(list, k + 1));
+                        link(thenEnd, cur);
+                        link(otherEnd, cur);
+                    }
+                } else if (stmt instanceof WhileStmtNode) {
+                    // n is the way in; the test also runs at the end of
+                    // the body
+                    WhileStmtNode s = (WhileStmtNode)stmt;
+                    StmtListNode body = (StmtListNode)s.children().get(2);
+                    Node test = node(place(list, k));
+                    link(n, test);
+                    scan(s.children().get(0), s, test, true);
+                    Node bodyEnd = end(body, build(body, test));
+                    if (bodyEnd != null) {
+                        test.places.addAll(place(body, body.stmts().size()));
+                        link(bodyEnd, test);
+                    }
+                    cur = test;
+                } else if (stmt instanceof RepeatStmtNode) {
+                    // n computes the count; the loop is entered and left,
+                    // and goes around, on edges with no place for code
+                    RepeatStmtNode s = (RepeatStmtNode)stmt;
+                    StmtListNode body = (StmtListNode)s.children().get(2);
+                    scan(s.children().get(0), s, n, true);
+                    Node enter = node(null);
+                    Node top = node(place(body, 0));
+                    Node skip = node(null);
+                    Node join = node(place(list, k + 1));
+                    link(n, enter);
+                    link(enter, top);
+                    link(n, skip);
+                    link(skip, join);
+                    Node latch = end(body, build(body, top));
+                    if (latch != null) {
+                        Node back = node(null);
+                        Node leave = node(null);
+                        link(latch, back);
+                        link(back, top);
+                        link(latch, leave);
+                        link(leave, join);
+                    }
+                    cur = join;
+                } else {
+                    scan(stmt, null, n, true);
+                    cur = n;
+                    if (stmt instanceof ReturnStmtNode) {
+                        link(n, myExit);
+                        cur = null;
+                    }
+                }
+            }
+            return cur;
+        }
+
+        /**
+         * Return the node for the end of list, which control reaches from
+         * last (null if it doesn't).
+         */
+        private Node end(StmtListNode list, Node last) {
+            if (last == null) {
+                return null;
+            }
+            Node n = node(place(list, list.stmts().size()));
+            link(last, n);
+            return n;
+        }
+
+        /**
+         * scan
+         * Record in n what node (a child of parent) computes and writes;
+         * its computations count only if evaluated.
+         */
+        private void scan(ASTnode node, ASTnode parent, Node n,
+                          boolean evaluated) {
+            if (node instanceof AssignNode) {
+                AssignNode assign = (AssignNode)node;
+                scan((ExpNode)assign.children().get(1), assign, n, evaluated);
+                write(assign.lhs(), n, !(parent instanceof AssignStmtNode));
+                return;
+            }
+            if (node instanceof ReadStmtNode) {
+                write(((ReadStmtNode)node).exp(), n, false);
+                return;
+            }
+            if (node instanceof PostIncStmtNode) {
+                write(((PostIncStmtNode)node).exp(), n, false);
+                return;
+            }
+            if (node instanceof PostDecStmtNode) {
+                write(((PostDecStmtNode)node).exp(), n, false);
+                return;
+            }
+            if (node instanceof ExpNode && evaluated
+                && isMovable((ExpNode)node)) {
+                n.occurrences.add(new Occurrence((ExpNode)node, parent));
+            }
+            List<ASTnode> kids = node.children();
+            for (int k = 0; k < kids.size(); k++) {
+                scan(kids.get(k), node, n, evaluated
+                     && !(node instanceof LogicalExpNode && k > 0));
+            }
+            if (node instanceof CallExpNode) {
+                n.writes.add(GLOBALS);
+                n.innerWrites.add(GLOBALS);
+            }
+        }
+
+        private static void write(ExpNode loc, Node n, boolean inner) {
+            if (loc instanceof IdNode) {
+                IdNode id = (IdNode)loc;
+                String var = slot(id.sym(), id.name());
+                n.writes.add(var);
+                if (inner) {
+                    n.innerWrites.add(var);
+                }
+            }
+        }
+
+        /**
+         * findUses
+         * Number the expressions computed in the graph, and fill in which
+         * of them each node computes (before writing one of its variables)
+         * and writes a variable of.
+         */
+        private void findUses() {
+            Map<String, Integer> index = new HashMap<String, Integer>();
+            List<Set<String>> vars = new ArrayList<Set<String>>();
+            for (Node n : myNodes) {
+                for (Occurrence occ : n.occurrences) {
+                    String key = key(occ.exp);
+                    if (!index.containsKey(key)) {
+                        index.put(key, myKeys.size());
+                        myKeys.add(key);
+                        mySamples.add(occ.exp);
+                        Set<String> used = new HashSet<String>();
+                        addVars(occ.exp, used);
+                        vars.add(used);
+                    }
+                }
+            }
+            for (Node n : myNodes) {
+                for (Occurrence occ : n.occurrences) {
+                    int e = index.get(key(occ.exp));
+                    if (!changes(n.innerWrites, vars.get(e))) {
+                        n.use.set(e);
+                    }
+                }
+                for (int e = 0; e < myKeys.size(); e++) {
+                    if (changes(n.writes, vars.get(e))) {
+                        n.kill.set(e);
+                    }
+                }
+            }
+        }
+
+        // ******************************************************************
+        // lazy code motion
+        // ******************************************************************
+
+        /**
+         * solve
+         * Find where each expression is anticipated and available, and
+         * from those the latest places it can be computed and where its
+         * value is then still used.
+         */
+        private void solve() {
+            BitSet all = new BitSet();
+            all.set(0, myKeys.size());
+
+            // anticipated: computed on every path on, before a write
+            for (Node n : myNodes) {
+                n.antIn = n == myExit ? new BitSet() : (BitSet)all.clone();
+            }
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int k = myNodes.size() - 1; k >= 0; k--) {
+                    Node n = myNodes.get(k);
+                    if (n == myExit) {
+                        continue;
+                    }
+                    List<BitSet> outs = new ArrayList<BitSet>();
+                    for (Node s : n.succs) {
+                        outs.add(s.antIn);
+                    }
+                    BitSet in = intersect(outs);
+                    in.andNot(n.kill);
+                    in.or(n.use);
+                    if (!in.equals(n.antIn)) {
+                        n.antIn = in;
+                        changed = true;
+                    }
+                }
+            }
+
+            // available: anticipated or computed on every path here
+            for (Node n : myNodes) {
+                n.avOut = (BitSet)all.clone();
+            }
+            changed = true;
+            while (changed) {
+                changed = false;
+                for (Node n : myNodes) {
+                    List<BitSet> ins = new ArrayList<BitSet>();
+                    for (Node p : n.preds) {
+                        ins.add(p.avOut);
+                    }
+                    BitSet in = intersect(ins);
+                    n.earliest = (BitSet)n.antIn.clone();
+                    n.earliest.andNot(in);
+                    BitSet out = (BitSet)in.clone();
+                    out.or(n.antIn);
+                    out.andNot(n.kill);
+                    if (!out.equals(n.avOut)) {
+                        n.avOut = out;
+                        changed = true;
+                    }
+                }
+            }
+
+            // postponable: can still be computed later on every path here
+            for (Node n : myNodes) {
+                n.postOut = (BitSet)all.clone();
+            }
+            changed = true;
+            while (changed) {
+                changed = false;
+                for (Node n : myNodes) {
+                    List<BitSet> ins = new ArrayList<BitSet>();
+                    for (Node p : n.preds) {
+                        ins.add(p.postOut);
+                    }
+                    n.postIn = intersect(ins);
+                    BitSet out = (BitSet)n.earliest.clone();
+                    out.or(n.postIn);
+                    out.andNot(n.use);
+                    if (!out.equals(n.postOut)) {
+                        n.postOut = out;
+                        changed = true;
+                    }
+                }
+            }
+
+            // latest: computed here, as it can't wait for every successor
+            for (Node n : myNodes) {
+                BitSet later = (BitSet)all.clone();
+                for (Node s : n.succs) {
+                    BitSet ready = (BitSet)s.earliest.clone();
+                    ready.or(s.postIn);
+                    later.and(ready);
+                }
+                n.latest = (BitSet)n.earliest.clone();
+                n.latest.or(n.postIn);
+                BitSet need = (BitSet)all.clone();
+                need.andNot(later);
+                need.or(n.use);
+                n.latest.and(need);
+            }
+
+            // used: the value is used later
+            for (Node n : myNodes) {
+                n.usedIn = new BitSet();
+            }
+            changed = true;
+            while (changed) {
+                changed = false;
+                for (int k = myNodes.size() - 1; k >= 0; k--) {
+                    Node n = myNodes.get(k);
+                    n.usedOut = new BitSet();
+                    for (Node s : n.succs) {
+                        n.usedOut.or(s.usedIn);
+                    }
+                    BitSet in = (BitSet)n.usedOut.clone();
+                    in.or(n.use);
+                    in.andNot(n.latest);
+                    if (!in.equals(n.usedIn)) {
+                        n.usedIn = in;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Return the intersection of sets, or the empty set if there are
+         * none (at the entry and the exit).
+         */
+        private static BitSet intersect(List<BitSet> sets) {
+            BitSet result = new BitSet();
+            if (!sets.isEmpty()) {
+                result.or(sets.get(0));
+            }
+            for (BitSet set : sets) {
+                result.and(set);
+            }
+            return result;
+        }
+    }
+}
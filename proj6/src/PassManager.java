@@ -0,0 +1,274 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * The PassManager class holds the optimization passes, in the order they
+ * run (AST passes before code generation, asm passes after it), and
+ * decides which of them to run from the command-line options:
+ *
+ *   -O0, -O1, -O2         the optimization level (default -O0); each pass
+ *                         runs at its own level and above (a pass at
+ *                         level 3 only runs when enabled by name)
+ *   -enable-NAME          run pass NAME whatever the level
+ *   -disable-NAME         don't run pass NAME
+ *   -passes=NAME,NAME...  run exactly these passes, in this order
+ *   -time-passes          print the wall time and memory allocated by
+ *                         each phase and pass to stderr
+ *   -pass-remarks         print what the passes did (see remark) to stderr
+ *
+ * The front-end phases (parsing, name analysis, ...) always run; they are
+ * timed with startPhase/endPhase so that -time-passes covers the whole
+ * compile.
+ */
+public class PassManager {
+    public static final int DEFAULT_LEVEL = 0;
+
+    private static class PassInfo {
+        String name;
+        int level;          // lowest -O level the pass runs at
+        AstPass astPass;    // at least one of these is set; a pass with
+        AsmPass asmPass;    // both has a part on each side of codegen
+
+        PassInfo(String name, int level, AstPass astPass, AsmPass asmPass) {
+            this.name = name;
+            this.level = level;
+            this.astPass = astPass;
+            this.asmPass = asmPass;
+        }
+    }
+
+    private List<PassInfo> myPasses = new ArrayList<PassInfo>();
+    private int myLevel = DEFAULT_LEVEL;
+    private Set<String> myEnabled = new HashSet<String>();
+    private Set<String> myDisabled = new HashSet<String>();
+    private List<String> myOrder;       // from -passes=, or null
+    private boolean myTimePasses;
+    private static boolean ourRemarks;
+
+    // -time-passes data, one entry per phase or pass run
+    private List<String> myTimedNames = new ArrayList<String>();
+    private List<Long> myTimes = new ArrayList<Long>();
+    private List<Long> myAllocs = new ArrayList<Long>();
+    private String myPhase;
+    private long myPhaseStart;
+    private long myPhaseAlloc;
+
+    public PassManager() {
+        add("sroa", 1, new ScalarReplacement());
+        add("partial-eval", 2, new PartialEvaluation());
+        DeadFunctions dead = new DeadFunctions();
+        myPasses.add(new PassInfo("dead-functions", 1, dead, dead));
+        add("memoize", 3, new Memoization());
+        add("accumulate", 2, new AccumulatorRecursion());
+        add("ipcp", 2, new ConstantPropagation());
+        add("vrp", 2, new ValueRanges());
+        add("pre", 2, new PartialRedundancy());
+        add("switch", 2, new SwitchLowering());
+        add("unswitch", 2, new LoopUnswitching());
+        add("merge-writes", 1, new WriteMerging());
+        add("ipra", 2, new RegisterSummaries());
+
+        addAsm("jump-threading", 1, new JumpThreading());
+        addAsm("shrink-wrap", 2, new ShrinkWrap());
+        addAsm("copy-prop", 2, new CopyPropagation());
+        addAsm("iv", 2, new InductionVariables());
+        addAsm("block-placement", 2, new BlockPlacement());
+        addAsm("peephole", 2, new Peephole());
+        addAsm("function-order", 2, new FunctionOrdering());
+        addAsm("data-layout", 1, new DataLayout());
+    }
+
+    private void add(String name, int level, AstPass pass) {
+        myPasses.add(new PassInfo(name, level, pass, null));
+    }
+
+    private void addAsm(String name, int level, AsmPass pass) {
+        myPasses.add(new PassInfo(name, level, null, pass));
+    }
+
+    /**
+     * parseOption
+     * Handle arg if it is a pass manager option; return false if it isn't
+     * one.
+     */
+    public boolean parseOption(String arg) {
+        if (arg.equals("-O0") || arg.equals("-O1") || arg.equals("-O2")) {
+            myLevel = arg.charAt(2) - '0';
+        } else if (arg.equals("-time-passes")) {
+            myTimePasses = true;
+        } else if (arg.equals("-pass-remarks")) {
+            ourRemarks = true;
+        } else if (arg.startsWith("-enable-")) {
+            myEnabled.add(checkName(arg.substring("-enable-".length())));
+        } else if (arg.startsWith("-disable-")) {
+            myDisabled.add(checkName(arg.substring("-disable-".length())));
+        } else if (arg.startsWith("-passes=")) {
+            myOrder = new ArrayList<String>();
+            for (String name : arg.substring("-passes=".length()).split(",")) {
+                if (name.length() > 0) {
+                    myOrder.add(checkName(name));
+                }
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private String checkName(String name) {
+        if (find(name) == null) {
+            System.err.println("Unknown pass " + name + "; the passes are "
+                               + passNames());
+            System.exit(-1);
+        }
+        return name;
+    }
+
+    private PassInfo find(String name) {
+        for (PassInfo info : myPasses) {
+            if (info.name.equals(name)) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    private String passNames() {
+        StringBuilder sb = new StringBuilder();
+        for (PassInfo info : myPasses) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(info.name);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return the passes to run, in order.
+     */
+    private List<PassInfo> schedule() {
+        List<PassInfo> result = new ArrayList<PassInfo>();
+        if (myOrder != null) {
+            for (String name : myOrder) {
+                if (!myDisabled.contains(name)) {
+                    result.add(find(name));
+                }
+            }
+            return result;
+        }
+        for (PassInfo info : myPasses) {
+            if ((info.level <= myLevel || myEnabled.contains(info.name))
+                && !myDisabled.contains(info.name)) {
+                result.add(info);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * remark
+     * Report something the named pass did, if -pass-remarks was given.
+     */
+    public static void remark(String pass, String text) {
+        if (ourRemarks) {
+            System.err.println(pass + ": " + text);
+        }
+    }
+
+    public void runAstPasses(ProgramNode root) {
+        for (PassInfo info : schedule()) {
+            if (info.astPass != null) {
+                startPhase(info.name);
+                info.astPass.run(root);
+                endPhase();
+            }
+        }
+    }
+
+    public void runAsmPasses(AsmProgram prog) {
+        for (PassInfo info : schedule()) {
+            if (info.asmPass != null) {
+                startPhase(info.name);
+                info.asmPass.run(prog);
+                endPhase();
+            }
+        }
+    }
+
+    // **********************************************************************
+    // timing
+    // **********************************************************************
+
+    /**
+     * startPhase
+     * Start timing the named phase (if -time-passes was given).
+     */
+    public void startPhase(String name) {
+        if (!myTimePasses) {
+            return;
+        }
+        myPhase = name;
+        myPhaseAlloc = allocatedBytes();
+        myPhaseStart = System.nanoTime();
+    }
+
+    public void endPhase() {
+        if (!myTimePasses || myPhase == null) {
+            return;
+        }
+        long time = System.nanoTime() - myPhaseStart;
+        myTimedNames.add(myPhase);
+        myTimes.add(time);
+        myAllocs.add(allocatedBytes() - myPhaseAlloc);
+        myPhase = null;
+    }
+
+    /**
+     * Return the bytes allocated so far by this thread, or 0 if the JVM
+     * doesn't keep count.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sun =
+                (com.sun.management.ThreadMXBean)bean;
+            if (sun.isThreadAllocatedMemorySupported()
+                && sun.isThreadAllocatedMemoryEnabled()) {
+                return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * printTiming
+     * Print the -time-passes report (nothing if it wasn't asked for).
+     */
+    public void printTiming(PrintStream out) {
+        if (!myTimePasses) {
+            return;
+        }
+        long totalTime = 0;
+        long totalAlloc = 0;
+        out.println("===== pass timing (-O" + myLevel + ") =====");
+        out.println(String.format("%10s %8s %12s  %s",
+                                  "time (ms)", "%", "alloc (KB)", "pass"));
+        for (long t : myTimes) {
+            totalTime += t;
+        }
+        for (long a : myAllocs) {
+            totalAlloc += a;
+        }
+        for (int k = 0; k < myTimedNames.size(); k++) {
+            out.println(String.format("%10.3f %7.1f%% %12d  %s",
+                                      myTimes.get(k) / 1e6,
+                                      100.0 * myTimes.get(k) / Math.max(totalTime, 1),
+                                      myAllocs.get(k) / 1024,
+                                      myTimedNames.get(k)));
+        }
+        out.println(String.format("%10.3f %7.1f%% %12d  %s", totalTime / 1e6,
+                                  100.0, totalAlloc / 1024, "total"));
+    }
+}
@@ -0,0 +1,330 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * The Peephole class rewrites short instruction sequences inside basic
+ * blocks using a table of rules.  The table (peephole.tbl, found on the
+ * class path) is produced offline by the Superopt tool; each rule replaces
+ * a sequence with a cheaper one that computes the same result.
+ *
+ * A rule is written
+ *
+ *     pattern => replacement | flags
+ *
+ * where pattern and replacement are instructions separated by ';'.  In
+ * the pattern, %d is the register the sequence computes and the other
+ * %-names are its inputs; the replacement may also use %s, a scratch
+ * register.  The flags are "alias %x" (the result may be computed into
+ * the register that holds input %x) and "bool %x" (the rule only holds
+ * when %x is 0 or 1).  A rule is applied only where its scratch register
+ * can be found among the registers that are not live afterwards.
+ */
+public class Peephole implements AsmPass {
+    public static final String TABLE = "peephole.tbl";
+
+    // registers that may be used as the scratch register of a rule
+    private static final List<String> SCRATCH = Arrays.asList(
+        "$t0", "$t1", "$t2", "$t3", "$t4", "$t5", "$t6", "$t7", "$t8", "$t9",
+        "$v1");
+
+    private List<RewriteRule> myRules;
+
+    /**
+     * Use the rules in TABLE, read when the pass first runs.
+     */
+    public Peephole() {
+    }
+
+    public Peephole(List<RewriteRule> rules) {
+        myRules = rules;
+    }
+
+    /**
+     * loadTable
+     * Read the rules from the named file on the class path.  A missing
+     * table just means no rewrites.
+     */
+    public static List<RewriteRule> loadTable(String name) {
+        List<RewriteRule> rules = new ArrayList<RewriteRule>();
+        InputStream in = Peephole.class.getClassLoader().getResourceAsStream(name);
+        if (in == null) {
+            return rules;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                RewriteRule rule = RewriteRule.parse(line);
+                if (rule != null) {
+                    rules.add(rule);
+                }
+            }
+            reader.close();
+        } catch (IOException ex) {
+            System.err.println("Unable to read " + name + ": " + ex.getMessage());
+            System.exit(-1);
+        }
+        return rules;
+    }
+
+    public void run(AsmProgram prog) {
+        if (myRules == null) {
+            myRules = loadTable(TABLE);
+        }
+        if (myRules.isEmpty()) {
+            return;
+        }
+        for (AsmFunction fn : prog.getFunctions()) {
+            Cfg cfg = new Cfg(fn);
+            Liveness live = new Liveness(cfg, prog.getCallSummaries());
+            for (BasicBlock b : cfg.getBlocks()) {
+                rewrite(prog, fn, b, live);
+            }
+            cfg.linearize();
+        }
+    }
+
+    /**
+     * rewrite
+     * Apply the rules to the instructions of b, a block of fn in prog,
+     * left to right.
+     */
+    private void rewrite(AsmProgram prog, AsmFunction fn, BasicBlock b,
+                         Liveness live) {
+        List<AsmInstr> instrs = b.getInstrs();
+        List<Set<String>> liveAfter = live.liveAfter(b);
+        List<Set<String>> bools = boolRegs(instrs, live);
+
+        int k = 0;
+        while (k < instrs.size()) {
+            boolean applied = false;
+            for (RewriteRule rule : myRules) {
+                Map<String, String> binding = rule.match(instrs, k, bools.get(k));
+                if (binding == null) {
+                    continue;
+                }
+                int end = k + rule.patternLength();
+                if (rule.needsScratch()) {
+                    String s = scratch(prog, fn, binding,
+                                       liveAfter.get(end - 1));
+                    if (s == null) {
+                        continue;
+                    }
+                    binding.put("%s", s);
+                }
+                List<AsmInstr> repl = rule.instantiate(binding);
+                instrs.subList(k, end).clear();
+                instrs.addAll(k, repl);
+                liveAfter = live.liveAfter(b);
+                bools = boolRegs(instrs, live);
+                k += repl.size();
+                applied = true;
+                break;
+            }
+            if (!applied) {
+                k++;
+            }
+        }
+    }
+
+    /**
+     * Return a register for %s: one that is dead, not bound, and that fn
+     * may change without breaking its callers' register summary.
+     */
+    private String scratch(AsmProgram prog, AsmFunction fn,
+                           Map<String, String> binding, Set<String> live) {
+        for (String reg : SCRATCH) {
+            if (!live.contains(reg) && !binding.containsValue(reg)
+                && RegisterSummaries.mayChange(prog, fn.getName(), reg)) {
+                return reg;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * boolRegs
+     * Return, for each instruction, the registers known to hold 0 or 1
+     * just before it (from the set-on-compare instructions earlier in the
+     * block).
+     */
+    private static List<Set<String>> boolRegs(List<AsmInstr> instrs,
+                                              Liveness live) {
+        List<Set<String>> result = new ArrayList<Set<String>>();
+        Set<String> bools = new HashSet<String>();
+        for (AsmInstr instr : instrs) {
+            result.add(new HashSet<String>(bools));
+            String def = instr.getDef();
+            boolean isBool = def != null && makesBool(instr, bools);
+            bools.removeAll(live.defs(instr));
+            if (isBool) {
+                bools.add(def);
+            }
+        }
+        result.add(new HashSet<String>(bools));
+        return result;
+    }
+
+    private static boolean makesBool(AsmInstr instr, Set<String> bools) {
+        String op = instr.getOpcode();
+        List<String> args = instr.getArgs();
+        if (op.startsWith("slt") || op.equals("seq") || op.equals("sne")
+            || op.equals("sgt") || op.equals("sge") || op.equals("sle")) {
+            return true;
+        }
+        if (op.equals("li")) {
+            return args.get(1).equals("0") || args.get(1).equals("1");
+        }
+        if (op.equals("andi")) {
+            return args.get(2).equals("1") || bools.contains(args.get(1));
+        }
+        if (op.equals("xori") || op.equals("ori")) {
+            return args.get(2).equals("1") && bools.contains(args.get(1));
+        }
+        if (op.equals("and") || op.equals("or") || op.equals("xor")) {
+            return bools.contains(args.get(1)) && bools.contains(args.get(2));
+        }
+        if (op.equals("move")) {
+            return bools.contains(args.get(1));
+        }
+        return false;
+    }
+}
+
+/**
+ * The RewriteRule class is one line of the peephole table.
+ */
+class RewriteRule {
+    private List<AsmInstr> myPattern;
+    private List<AsmInstr> myReplacement;
+    private Set<String> myAliasOk = new HashSet<String>();
+    private Set<String> myBools = new HashSet<String>();
+
+    /**
+     * parse
+     * Turn a line of the table into a rule; null for blank and comment
+     * lines.
+     */
+    public static RewriteRule parse(String line) {
+        int hash = line.indexOf('#');
+        if (hash >= 0) {
+            line = line.substring(0, hash);
+        }
+        if (line.trim().length() == 0) {
+            return null;
+        }
+        String flags = "";
+        int bar = line.indexOf('|');
+        if (bar >= 0) {
+            flags = line.substring(bar + 1);
+            line = line.substring(0, bar);
+        }
+        String[] sides = line.split("=>");
+        if (sides.length != 2) {
+            System.err.println("Bad peephole rule: " + line);
+            System.exit(-1);
+        }
+
+        RewriteRule rule = new RewriteRule();
+        rule.myPattern = parseSeq(sides[0]);
+        rule.myReplacement = parseSeq(sides[1]);
+        String[] words = flags.trim().split("\\s+");
+        for (int k = 0; k + 1 < words.length; k += 2) {
+            if (words[k].equals("alias")) {
+                rule.myAliasOk.add(words[k + 1]);
+            } else if (words[k].equals("bool")) {
+                rule.myBools.add(words[k + 1]);
+            }
+        }
+        return rule;
+    }
+
+    private static List<AsmInstr> parseSeq(String text) {
+        List<AsmInstr> seq = new ArrayList<AsmInstr>();
+        for (String part : text.split(";")) {
+            seq.addAll(AsmInstr.parseLine(part));
+        }
+        return seq;
+    }
+
+    public int patternLength() {
+        return myPattern.size();
+    }
+
+    public boolean needsScratch() {
+        for (AsmInstr instr : myReplacement) {
+            if (instr.getArgs().contains("%s")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * match
+     * Try the pattern against code starting at index at.  Return the
+     * binding of the %-names to registers, or null if it doesn't match.
+     */
+    public Map<String, String> match(List<AsmInstr> code, int at,
+                                     Set<String> bools) {
+        if (at + myPattern.size() > code.size()) {
+            return null;
+        }
+        Map<String, String> binding = new HashMap<String, String>();
+        for (int k = 0; k < myPattern.size(); k++) {
+            AsmInstr pat = myPattern.get(k);
+            AsmInstr instr = code.get(at + k);
+            if (instr.isLabel() || !pat.getOpcode().equals(instr.getOpcode())
+                || pat.getArgs().size() != instr.getArgs().size()) {
+                return null;
+            }
+            for (int i = 0; i < pat.getArgs().size(); i++) {
+                String p = pat.getArgs().get(i);
+                String a = instr.getArgs().get(i);
+                if (!p.startsWith("%")) {
+                    if (!p.equals(a)) {
+                        return null;
+                    }
+                } else if (!a.startsWith("$")) {
+                    return null;
+                } else if (binding.containsKey(p)) {
+                    if (!binding.get(p).equals(a)) {
+                        return null;
+                    }
+                } else {
+                    binding.put(p, a);
+                }
+            }
+        }
+
+        String d = binding.get("%d");
+        for (Map.Entry<String, String> e : binding.entrySet()) {
+            String var = e.getKey();
+            if (!var.equals("%d") && e.getValue().equals(d)
+                && !myAliasOk.contains(var)) {
+                return null;
+            }
+        }
+        for (String var : myBools) {
+            if (!bools.contains(binding.get(var))) {
+                return null;
+            }
+        }
+        return binding;
+    }
+
+    public List<AsmInstr> instantiate(Map<String, String> binding) {
+        List<AsmInstr> result = new ArrayList<AsmInstr>();
+        for (AsmInstr instr : myReplacement) {
+            AsmInstr copy = instr.copy();
+            for (int i = 0; i < copy.getArgs().size(); i++) {
+                String arg = copy.getArgs().get(i);
+                if (binding.containsKey(arg)) {
+                    copy.setArg(i, binding.get(arg));
+                }
+            }
+            result.add(copy);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.*;
+
+/**
+ * The Purity class finds the functions with no side effects: a function
+ * is pure if it doesn't read or write a global, doesn't use cin or cout,
+ * has no struct params (which could refer to the caller's struct), and
+ * calls only pure functions.  The result of a call to a pure function
+ * depends only on its args, and making the call has no other effect, so
+ * the call may be skipped or its value reused.
+ *
+ * The effects of each function's own code are found first; then
+ * impurity spreads from each impure function to its callers, which
+ * handles recursion (a cycle of calls is pure unless something in it
+ * isn't).
+ */
+public class Purity {
+    private Set<FnSym> myImpure = new HashSet<FnSym>();
+
+    public Purity(CallGraph graph) {
+        Deque<FnSym> work = new ArrayDeque<FnSym>();
+        for (FnDeclNode fn : graph.getFunctions()) {
+            if (hasEffects(fn) || hasStructParam(fn)) {
+                myImpure.add(fn.sym());
+                work.push(fn.sym());
+            }
+        }
+        while (!work.isEmpty()) {
+            for (CallExpNode call : graph.getCallers(work.pop())) {
+                FnSym caller = graph.getCaller(call);
+                if (myImpure.add(caller)) {
+                    work.push(caller);
+                }
+            }
+        }
+    }
+
+    public boolean isPure(FnSym fn) {
+        return !myImpure.contains(fn);
+    }
+
+    /**
+     * Return true if the code of node (not counting the functions it
+     * calls) uses a global or does I/O.
+     */
+    private static boolean hasEffects(ASTnode node) {
+        if (node instanceof ReadStmtNode || node instanceof WriteStmtNode) {
+            return true;
+        }
+        if (node instanceof IdNode) {
+            Sym sym = ((IdNode)node).sym();
+            if (!(sym instanceof FnSym) && sym.isGlobal()) {
+                return true;
+            }
+        }
+        for (ASTnode kid : node.children()) {
+            if (hasEffects(kid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasStructParam(FnDeclNode fn) {
+        for (Sym param : fn.formalSyms()) {
+            if (param.getType().isStructType()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,155 @@
+import java.util.*;
+
+/**
+ * The RegisterSummaries class does interprocedural register allocation:
+ * for each function it records the registers that a call to it may
+ * change (its own code plus everything it calls), so that a caller can
+ * keep a value in a register across a call that doesn't touch it instead
+ * of pushing it, and so that liveness after a jal is exact.
+ *
+ * run() orders the functions bottom-up over the call graph, callees
+ * first; ProgramNode.codeGen generates them in that order, and after each
+ * one summarize() measures the code just generated.  So by the time a
+ * caller is generated, the summaries of everything it calls are known.
+ * The functions of a recursive SCC call functions whose code isn't
+ * generated yet, so they get no summary and keep the standard convention:
+ * a call to them may change every caller-saved register.
+ *
+ * The summaries belong to the program being compiled: codeGen keeps them
+ * by label in the ProgramNode (and on each FnSym, for InstrSelector), and
+ * hands them to the AsmProgram, where the asm passes find them.
+ */
+public class RegisterSummaries implements AstPass {
+    public void run(ProgramNode root) {
+        CallGraph graph = new CallGraph(root);
+        Set<FnSym> recursive = new HashSet<FnSym>();
+        List<FnDeclNode> order = new ArrayList<FnDeclNode>();
+        for (List<FnSym> scc : graph.getSccs()) {
+            for (FnSym fn : scc) {
+                order.add(graph.getDecl(fn));
+                if (graph.isRecursive(fn)) {
+                    recursive.add(fn);
+                }
+            }
+        }
+        root.setCodeGenOrder(order, recursive);
+    }
+
+    /**
+     * summarize
+     * Record in summaries the registers changed by code, the code
+     * generated for the given labels (a function and its specialized
+     * copies, or strcmp), as the summary of each label, and as the
+     * summary of fn (the function, or null).
+     */
+    static void summarize(Map<String, Set<String>> summaries, FnSym fn,
+                          Collection<String> labels, String code) {
+        Set<String> written = writtenBy(code, summaries);
+        written.add(Codegen.RA);
+        written.remove(Codegen.SP);     // restored by the epilogue
+        written.remove(Codegen.FP);
+        for (String label : labels) {
+            summaries.put(label, written);
+        }
+        if (fn != null) {
+            fn.setCallSummary(written);
+        }
+    }
+
+    /**
+     * mayChange
+     * Return true if the code for label may be made to change reg: if
+     * reg is in its summary in prog, or it has none.  Asm passes that
+     * bring in new registers must check this, since callers rely on the
+     * summary.
+     */
+    static boolean mayChange(AsmProgram prog, String label, String reg) {
+        Set<String> summary = prog.getCallSummaries().get(label);
+        return summary == null || summary.contains(reg);
+    }
+
+    /**
+     * claim
+     * Let the code of fn change reg, if no call needs reg kept across it:
+     * no call to fn, or to the functions that call fn (whose calls then
+     * change reg too).  If so, add reg to their summaries in prog and
+     * return true; otherwise change nothing.
+     */
+    static boolean claim(AsmProgram prog, AsmFunction fn, String reg) {
+        // the labels whose summaries must grow
+        Set<String> labels = new HashSet<String>();
+        Set<AsmFunction> seen = new HashSet<AsmFunction>();
+        Deque<AsmFunction> work = new ArrayDeque<AsmFunction>();
+        work.push(fn);
+        while (!work.isEmpty()) {
+            AsmFunction f = work.pop();
+            if (!seen.add(f)) {
+                continue;
+            }
+            Set<String> own = new HashSet<String>();
+            for (AsmInstr instr : f.getCode()) {
+                if (instr.isLabel()
+                    && !mayChange(prog, instr.getLabel(), reg)) {
+                    own.add(instr.getLabel());
+                }
+            }
+            labels.addAll(own);
+            for (AsmFunction g : prog.getFunctions()) {
+                if (callsAny(g, own)) {
+                    work.push(g);
+                }
+            }
+        }
+
+        for (AsmFunction g : prog.getFunctions()) {
+            if (g == fn || !callsAny(g, labels)) {
+                continue;
+            }
+            Cfg cfg = new Cfg(g);
+            Liveness live = new Liveness(cfg, prog.getCallSummaries());
+            for (BasicBlock b : cfg.getBlocks()) {
+                List<AsmInstr> instrs = b.getInstrs();
+                List<Set<String>> after = live.liveAfter(b);
+                for (int k = 0; k < instrs.size(); k++) {
+                    if (instrs.get(k).isCall()
+                        && labels.contains(instrs.get(k).getTarget())
+                        && after.get(k).contains(reg)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        Map<String, Set<String>> summaries = prog.getCallSummaries();
+        for (String label : labels) {
+            Set<String> summary = new HashSet<String>(summaries.get(label));
+            summary.add(reg);
+            summaries.put(label, summary);
+        }
+        return true;
+    }
+
+    private static boolean callsAny(AsmFunction fn, Set<String> labels) {
+        for (AsmInstr instr : fn.getCode()) {
+            if (instr.isCall() && labels.contains(instr.getTarget())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * writtenBy
+     * Return the registers the given codeGen output may change, counting
+     * what each call in it changes by its summary in summaries.
+     */
+    static Set<String> writtenBy(String code,
+                                 Map<String, Set<String>> summaries) {
+        Set<String> written = new HashSet<String>();
+        for (String line : code.split("\n")) {
+            for (AsmInstr instr : AsmInstr.parseLine(line)) {
+                written.addAll(instr.getDefs(summaries));
+            }
+        }
+        return written;
+    }
+}
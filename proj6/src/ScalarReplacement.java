@@ -0,0 +1,165 @@
+import java.util.*;
+
+/**
+ * The ScalarReplacement class splits struct locals into their fields.
+ * Carrot has no pointers and a struct can't be assigned, compared or
+ * passed whole, so a struct local is normally used only through field
+ * accesses ("p.x", "r.corner.y"); then each int or bool field it reaches
+ * becomes a local of its own, with its own slot in the frame, and every
+ * access of that field becomes a use of the new local.  From there on
+ * the field is an ordinary scalar: the later AST passes see its
+ * assignments and uses, and the asm passes can keep it in a register.
+ *
+ * A struct local named anywhere other than as the struct of a field
+ * access, or with a field access that gives a whole struct (not a field
+ * of it), is left alone.  The new locals are named after their access
+ * path ("p.x"), and their slots go below the function's other locals.
+ */
+public class ScalarReplacement implements AstPass {
+    public void run(ProgramNode root) {
+        CallGraph graph = new CallGraph(root);
+        for (FnDeclNode fn : graph.getFunctions()) {
+            replace(fn);
+        }
+    }
+
+    /**
+     * replace
+     * Split the struct locals of fn that are only used through their
+     * fields.
+     */
+    private void replace(FnDeclNode fn) {
+        Set<Sym> structs = new HashSet<Sym>();
+        findStructs(fn, structs);
+        if (structs.isEmpty()) {
+            return;
+        }
+        Set<Sym> escaped = new HashSet<Sym>();
+        findEscapes(fn, null, structs, escaped);
+        structs.removeAll(escaped);
+        if (structs.isEmpty()) {
+            return;
+        }
+
+        // struct -> path of a field -> the field's scalar
+        Map<Sym, Map<String, Sym>> scalars =
+            new HashMap<Sym, Map<String, Sym>>();
+        for (Sym sym : structs) {
+            scalars.put(sym, new HashMap<String, Sym>());
+        }
+        int before = fn.sym().getTotalLocalSize();
+        rewrite(fn, scalars, fn.sym());
+        PassManager.remark("sroa", fn.name() + ": split " + structs.size()
+                           + " structs into "
+                           + (fn.sym().getTotalLocalSize() - before) / 4
+                           + " scalars");
+    }
+
+    private static void findStructs(ASTnode node, Set<Sym> structs) {
+        if (node instanceof VarDeclNode) {
+            Sym sym = ((VarDeclNode)node).sym();
+            if (sym instanceof StructSym && !sym.isGlobal()) {
+                structs.add(sym);
+            }
+        }
+        for (ASTnode kid : node.children()) {
+            findStructs(kid, structs);
+        }
+    }
+
+    /**
+     * findEscapes
+     * Put in escaped the structs that are used below node, a child of
+     * parent, other than through a field access that gives an int or bool.
+     */
+    private static void findEscapes(ASTnode node, ASTnode parent,
+                                    Set<Sym> structs, Set<Sym> escaped) {
+        if (node instanceof IdNode && structs.contains(((IdNode)node).sym())
+            && !(parent instanceof DotAccessExpNode)) {
+            escaped.add(((IdNode)node).sym());
+        }
+        if (node instanceof DotAccessExpNode
+            && !(parent instanceof DotAccessExpNode)) {
+            DotAccessExpNode dot = (DotAccessExpNode)node;
+            IdNode base = base(dot);
+            if (base != null && structs.contains(base.sym())
+                && dot.field().sym().getType().isStructType()) {
+                escaped.add(base.sym());
+            }
+        }
+        for (ASTnode kid : node.children()) {
+            findEscapes(kid, node, structs, escaped);
+        }
+    }
+
+    /**
+     * rewrite
+     * Replace the field accesses of structs below node by their scalars,
+     * making the scalar of each field the first time it is reached.
+     */
+    private static void rewrite(ASTnode node,
+                                Map<Sym, Map<String, Sym>> scalars,
+                                FnSym fn) {
+        for (ASTnode kid : node.children()) {
+            if (!(kid instanceof DotAccessExpNode)) {
+                rewrite(kid, scalars, fn);
+                continue;
+            }
+            DotAccessExpNode dot = (DotAccessExpNode)kid;
+            IdNode base = base(dot);
+            if (base == null || !scalars.containsKey(base.sym())) {
+                rewrite(kid, scalars, fn);
+                continue;
+            }
+
+            String path = path(dot);
+            Sym scalar = scalars.get(base.sym()).get(path);
+            if (scalar == null) {
+                scalar = new Sym(dot.field().sym().getType());
+                scalar.setGlobal(false);
+                scalar.setOffset(-8 - fn.getTotalLocalSize());
+                fn.setTotalLocalSize(fn.getTotalLocalSize() + 4);
+                scalars.get(base.sym()).put(path, scalar);
+            }
+            IdNode id = new IdNode(dot.lineNum(), dot.charNum(), path);
+            id.link(scalar);
+            if (writes(node, dot)) {
+                node.replaceLoc(dot, id);
+            } else {
+                node.replaceExp(dot, id);
+            }
+        }
+    }
+
+    /**
+     * Return true if parent writes loc, one of its children.
+     */
+    private static boolean writes(ASTnode parent, ExpNode loc) {
+        if (parent instanceof AssignNode) {
+            return ((AssignNode)parent).lhs() == loc;
+        }
+        return parent instanceof ReadStmtNode
+               || parent instanceof PostIncStmtNode
+               || parent instanceof PostDecStmtNode;
+    }
+
+    /**
+     * Return the variable at the start of the chain of field accesses
+     * that ends with dot, or null if it doesn't start with a variable.
+     */
+    private static IdNode base(DotAccessExpNode dot) {
+        ExpNode loc = dot.loc();
+        while (loc instanceof DotAccessExpNode) {
+            loc = ((DotAccessExpNode)loc).loc();
+        }
+        return loc instanceof IdNode ? (IdNode)loc : null;
+    }
+
+    private static String path(ExpNode loc) {
+        if (loc instanceof DotAccessExpNode) {
+            DotAccessExpNode dot = (DotAccessExpNode)loc;
+            return path(dot.loc()) + "." + dot.field().name();
+        }
+        return ((IdNode)loc).name();
+    }
+}
@@ -0,0 +1,254 @@
+import java.util.*;
+
+/**
+ * The ShrinkWrap class moves the prologue of a function (saving $ra and
+ * $fp and setting up the frame) off the paths that don't need it, so a
+ * fast path like "if (n < 2) return n;" runs no saves or restores.
+ *
+ * On the Cfg of the function, a block is frameless if it makes no call
+ * and uses neither $sp nor $fp, except to load a param.  Before the
+ * prologue $fp hasn't been set, but $sp still has the value the prologue
+ * would put in $fp, so those loads can use $sp instead.  The frameless
+ * region is the set of frameless blocks reached from the entry without
+ * passing through a block that needs the frame (and that can't be
+ * reached again after one).  The prologue is then put on each edge that
+ * leaves the region, and the region's edges to the epilogue become a
+ * plain "jr $ra".  Nothing changes if no path from the entry reaches the
+ * epilogue inside the region.
+ */
+public class ShrinkWrap implements AsmPass {
+    public void run(AsmProgram prog) {
+        for (AsmFunction fn : prog.getFunctions()) {
+            if (!fn.getName().equals("main")) {
+                shrinkWrap(fn);
+            }
+        }
+    }
+
+    private void shrinkWrap(AsmFunction fn) {
+        Cfg cfg = new Cfg(fn);
+        BasicBlock entry = cfg.getEntry();
+        BasicBlock exit = findExit(cfg, fn.getName());
+        List<AsmInstr> prologue = prologue(entry);
+        if (exit == null || prologue == null) {
+            return;
+        }
+        entry.getInstrs().subList(0, prologue.size()).clear();
+
+        Set<BasicBlock> region = frameless(cfg, entry, exit);
+        boolean fastExit = false;
+        for (BasicBlock b : region) {
+            fastExit |= b.getSuccs().contains(exit);
+        }
+        if (!fastExit) {
+            entry.getInstrs().addAll(0, prologue);
+            return;
+        }
+
+        // the region returns directly (from ret, or from a block that
+        // would have jumped to the epilogue), and uses $sp for $fp
+        BasicBlock ret = new BasicBlock();
+        ret.getInstrs().add(AsmInstr.instr("jr", Codegen.RA));
+        cfg.getBlocks().add(ret);
+        for (BasicBlock b : region) {
+            for (AsmInstr instr : b.getInstrs()) {
+                List<String> args = instr.getArgs();
+                for (int k = 0; k < args.size(); k++) {
+                    if (Codegen.FP.equals(AsmInstr.baseOf(args.get(k)))) {
+                        args.set(k, AsmInstr.offsetOf(args.get(k))
+                                    + "(" + Codegen.SP + ")");
+                    }
+                }
+            }
+            if (b.getTaken() == exit) {
+                b.setTaken(ret);
+            }
+            if (b.getNext() == exit && !b.endsInBranch()) {
+                b.getInstrs().add(AsmInstr.instr("jr", Codegen.RA));
+                b.setNext(null);
+            } else if (b.getNext() == exit) {
+                b.setNext(ret);
+            }
+        }
+
+        // the prologue goes at the start of each block the region leads
+        // to, or on the edge if the block is also reached from elsewhere
+        Set<BasicBlock> targets = new LinkedHashSet<BasicBlock>();
+        for (BasicBlock b : region) {
+            for (BasicBlock s : b.getSuccs()) {
+                if (!region.contains(s) && s != ret) {
+                    targets.add(s);
+                }
+            }
+        }
+        cfg.computePreds();
+        for (BasicBlock t : targets) {
+            if (region.containsAll(t.getPreds())) {
+                t.getInstrs().addAll(0, copy(prologue));
+                continue;
+            }
+            BasicBlock save = new BasicBlock();
+            save.getInstrs().addAll(copy(prologue));
+            save.setNext(t);
+            for (BasicBlock b : region) {
+                b.replaceSucc(t, save);
+            }
+            List<BasicBlock> blocks = cfg.getBlocks();
+            blocks.add(blocks.indexOf(t), save);
+        }
+        cfg.removeUnreachable();
+        cfg.linearize();
+    }
+
+    /**
+     * Return the prologue instructions at the start of entry, or null if
+     * it doesn't start with the usual prologue.
+     */
+    private static List<AsmInstr> prologue(BasicBlock entry) {
+        String[][] pattern = {
+            { "sw", Codegen.RA, "0(" + Codegen.SP + ")" },
+            { "subu", Codegen.SP, Codegen.SP, "4" },
+            { "sw", Codegen.FP, "0(" + Codegen.SP + ")" },
+            { "subu", Codegen.SP, Codegen.SP, "4" },
+            { "subu", Codegen.SP, Codegen.SP, null },
+            { "addu", Codegen.FP, Codegen.SP, null } };
+        List<AsmInstr> instrs = entry.getInstrs();
+        if (instrs.size() < pattern.length) {
+            return null;
+        }
+        for (int k = 0; k < pattern.length; k++) {
+            if (!matches(instrs.get(k), pattern[k])) {
+                return null;
+            }
+        }
+        return new ArrayList<AsmInstr>(instrs.subList(0, pattern.length));
+    }
+
+    /**
+     * Return the epilogue block of the named function, or null if it
+     * isn't the usual epilogue.
+     */
+    private static BasicBlock findExit(Cfg cfg, String name) {
+        String[][] pattern = {
+            { "lw", Codegen.RA, "0(" + Codegen.FP + ")" },
+            { "move", Codegen.T0, Codegen.FP },
+            { "lw", Codegen.FP, "-4(" + Codegen.FP + ")" },
+            { "move", Codegen.SP, Codegen.T0 },
+            { "jr", Codegen.RA } };
+        for (BasicBlock b : cfg.getBlocks()) {
+            if (!b.getLabels().contains("_" + name + "_Exit")) {
+                continue;
+            }
+            List<AsmInstr> instrs = b.getInstrs();
+            if (instrs.size() != pattern.length) {
+                return null;
+            }
+            for (int k = 0; k < pattern.length; k++) {
+                if (!matches(instrs.get(k), pattern[k])) {
+                    return null;
+                }
+            }
+            return b;
+        }
+        return null;
+    }
+
+    private static boolean matches(AsmInstr instr, String[] pattern) {
+        List<String> args = instr.getArgs();
+        if (!pattern[0].equals(instr.getOpcode())
+            || args.size() != pattern.length - 1) {
+            return false;
+        }
+        for (int k = 1; k < pattern.length; k++) {
+            if (pattern[k] != null && !pattern[k].equals(args.get(k - 1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * frameless
+     * Return the blocks that run before the frame is needed: frameless
+     * blocks reached from entry through frameless blocks only, and not
+     * reached from any block that needs the frame.
+     */
+    private static Set<BasicBlock> frameless(Cfg cfg, BasicBlock entry,
+                                             BasicBlock exit) {
+        Set<BasicBlock> region = new HashSet<BasicBlock>();
+        if (!isFrameless(entry, exit)) {
+            return region;
+        }
+        Deque<BasicBlock> work = new ArrayDeque<BasicBlock>();
+        region.add(entry);
+        work.push(entry);
+        while (!work.isEmpty()) {
+            for (BasicBlock s : work.pop().getSuccs()) {
+                if (isFrameless(s, exit) && region.add(s)) {
+                    work.push(s);
+                }
+            }
+        }
+
+        // drop what the rest of the function can get back to, until
+        // nothing changes
+        boolean changed = true;
+        while (changed) {
+            Set<BasicBlock> after = new HashSet<BasicBlock>();
+            for (BasicBlock b : cfg.getBlocks()) {
+                if (!region.contains(b)) {
+                    work.push(b);
+                }
+            }
+            while (!work.isEmpty()) {
+                for (BasicBlock s : work.pop().getSuccs()) {
+                    if (after.add(s)) {
+                        work.push(s);
+                    }
+                }
+            }
+            changed = region.removeAll(after);
+        }
+        return region;
+    }
+
+    /**
+     * Return true if b needs no frame: it is not the epilogue, makes no
+     * call or table jump, and uses $sp and $fp only to load params
+     * ("lw r, k($fp)" with k > 0).
+     */
+    private static boolean isFrameless(BasicBlock b, BasicBlock exit) {
+        if (b == exit) {
+            return false;
+        }
+        for (AsmInstr instr : b.getInstrs()) {
+            if (instr.isCall() || instr.isReturn()
+                || instr.getJumpTable() != null) {
+                return false;
+            }
+            List<String> args = instr.getArgs();
+            for (int k = 0; k < args.size(); k++) {
+                String arg = args.get(k);
+                String base = AsmInstr.baseOf(arg);
+                if (Codegen.SP.equals(arg) || Codegen.FP.equals(arg)
+                    || Codegen.SP.equals(base)) {
+                    return false;
+                }
+                if (Codegen.FP.equals(base)
+                    && (!"lw".equals(instr.getOpcode()) || k != 1
+                        || AsmInstr.offsetOf(arg) <= 0)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static List<AsmInstr> copy(List<AsmInstr> instrs) {
+        List<AsmInstr> result = new ArrayList<AsmInstr>();
+        for (AsmInstr instr : instrs) {
+            result.add(instr.copy());
+        }
+        return result;
+    }
+}
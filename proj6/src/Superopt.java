@@ -0,0 +1,603 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * The Superopt class is an offline tool that builds the rewrite table used
+ * by Peephole.  For each target sequence in TARGETS it searches, shortest
+ * first, all sequences of up to MAX_LEN instructions (from the subset of
+ * MIPS that codeGen emits) for one that is cheaper and computes the same
+ * result, and writes the verified rules in the format Peephole reads.
+ *
+ * Candidates are first run on a few test inputs.  One that passes is
+ * then verified for every input:
+ *   - if all inputs are bools, by trying every combination;
+ *   - if both sequences only add, subtract, shift left and multiply by
+ *     constants, they are affine functions mod 2^32, so agreeing on zero
+ *     and on each unit input proves them equal;
+ *   - otherwise, if there is one int input, by trying all 2^32 values.
+ * A target that can't be verified this way gets no rule.  The check is
+ * repeated with the result register shared with each input, to find
+ * where the rule may be used with that aliasing.
+ *
+ * Usage: java Superopt [outfile]   (default: peephole.tbl)
+ */
+public class Superopt {
+    // the sequences to improve; "| bool %x" marks an input that is 0 or 1
+    // (the rules are tried in table order, so the bool special cases come
+    // before the general ones)
+    private static final String[] TARGETS = {
+        // a comparison result feeding a multiply
+        "mul %d, %a, 10 | bool %a", "mul %d, %a, 100 | bool %a",
+        "mul %d, %a, 1000 | bool %a",
+        // multiply by a constant (li + mul)
+        "mul %d, %a, -1", "mul %d, %a, -2", "mul %d, %a, -3",
+        "mul %d, %a, -4", "mul %d, %a, -8", "mul %d, %a, 3",
+        "mul %d, %a, 5", "mul %d, %a, 6", "mul %d, %a, 7",
+        "mul %d, %a, 9", "mul %d, %a, 10", "mul %d, %a, 12",
+        "mul %d, %a, 14", "mul %d, %a, 15", "mul %d, %a, 17",
+        "mul %d, %a, 18", "mul %d, %a, 20", "mul %d, %a, 24",
+        "mul %d, %a, 28", "mul %d, %a, 30", "mul %d, %a, 31",
+        "mul %d, %a, 33", "mul %d, %a, 34", "mul %d, %a, 36",
+        "mul %d, %a, 40", "mul %d, %a, 48", "mul %d, %a, 56",
+        "mul %d, %a, 60", "mul %d, %a, 63", "mul %d, %a, 65",
+        "mul %d, %a, 96", "mul %d, %a, 127", "mul %d, %a, 129",
+        // bool normalization
+        "sltu %d, $zero, %a ; xori %d, %d, 1",
+        "sltiu %d, %a, 1 ; xori %d, %d, 1",
+        "sltiu %d, %a, 1 ; sltiu %d, %d, 1",
+        "sltu %d, $zero, %a ; sltiu %d, %d, 1",
+        "xori %d, %a, 1 ; xori %d, %d, 1 | bool %a",
+        "xori %d, %a, 1 ; sltiu %d, %d, 1 | bool %a",
+        "xori %d, %a, 1 ; sltu %d, $zero, %d | bool %a",
+    };
+
+    private static final int MAX_LEN = 3;
+
+    // cost of a multiply: the li of its constant, and its latency
+    private static final int MUL_COST = 5;
+
+    // ops a candidate may use
+    private static final String[] RR_OPS =
+        { "addu", "subu", "and", "or", "xor", "nor", "slt", "sltu" };
+    private static final String[] RI_OPS =
+        { "addiu", "andi", "ori", "xori", "slti", "sltiu" };
+    private static final String[] SHIFT_OPS = { "sll", "srl", "sra" };
+
+    // the ops used for the third instruction of a sequence, to keep the
+    // search small
+    private static final Set<String> LONG_OPS =
+        new HashSet<String>(Arrays.asList("addu", "subu", "sll"));
+
+    private static final Set<String> AFFINE_OPS = new HashSet<String>(
+        Arrays.asList("addu", "subu", "sll", "mul", "li", "addiu"));
+
+    // register slots: $zero, the inputs, then %d and %s
+    private static final int ZERO = 0;
+
+    public static void main(String[] args) throws IOException {
+        String outName = args.length > 0 ? args[0] : Peephole.TABLE;
+        PrintWriter out = new PrintWriter(new FileWriter(outName));
+        out.println("# Peephole rewrite table, generated by Superopt.");
+        out.println("# pattern => replacement | flags   (see Peephole.java)");
+        for (String target : TARGETS) {
+            long start = System.currentTimeMillis();
+            Target t = new Target(target);
+            List<String> rules = new Superopt(t).search();
+            long ms = System.currentTimeMillis() - start;
+            if (rules.isEmpty()) {
+                System.err.println("no rule:  " + target + "  (" + ms + " ms)");
+            }
+            for (String rule : rules) {
+                System.err.println("rule:     " + rule + "  (" + ms + " ms)");
+                out.println(rule);
+            }
+        }
+        out.close();
+    }
+
+    // **********************************************************************
+    // sequences and their interpretation
+    // **********************************************************************
+
+    /**
+     * One instruction, with its registers as slot numbers.
+     */
+    private static class Op {
+        private static final List<String> NAMES = Arrays.asList(
+            "addu", "addiu", "subu", "and", "andi", "or", "ori", "xor", "xori",
+            "nor", "slt", "slti", "sltu", "sltiu", "sll", "srl", "sra", "mul",
+            "li");
+
+        String name;
+        int code;       // index in NAMES
+        int dst;
+        int src1;
+        int src2;       // -1 for the immediate forms
+        int imm;
+
+        Op(String name, int dst, int src1, int src2, int imm) {
+            this.name = name;
+            this.code = NAMES.indexOf(name);
+            this.dst = dst;
+            this.src1 = src1;
+            this.src2 = src2;
+            this.imm = imm;
+            if (code < 0) {
+                System.err.println("Superopt: unknown op " + name);
+                System.exit(-1);
+            }
+        }
+
+        int eval(int[] r) {
+            int x = r[src1];
+            int y = src2 >= 0 ? r[src2] : imm;
+            switch (code) {
+            case 0: case 1: return x + y;
+            case 2: return x - y;
+            case 3: case 4: return x & y;
+            case 5: case 6: return x | y;
+            case 7: case 8: return x ^ y;
+            case 9: return ~(x | y);
+            case 10: case 11: return x < y ? 1 : 0;
+            case 12: case 13: return Integer.compareUnsigned(x, y) < 0 ? 1 : 0;
+            case 14: return x << y;
+            case 15: return x >>> y;
+            case 16: return x >> y;
+            case 17: return x * y;
+            default: return imm;
+            }
+        }
+
+        /**
+         * Return this op with slot from renamed to slot to.
+         */
+        Op rename(int from, int to) {
+            return new Op(name, dst == from ? to : dst,
+                          src1 == from ? to : src1,
+                          src2 == from ? to : src2, imm);
+        }
+
+        int cost() {
+            if (name.equals("mul")) {
+                return MUL_COST;
+            }
+            if (name.equals("li")) {
+                return imm >= -32768 && imm <= 65535 ? 1 : 2;
+            }
+            return 1;
+        }
+    }
+
+    private static int run(Op[] seq, int[] regs, int result) {
+        for (Op op : seq) {
+            regs[op.dst] = op.eval(regs);
+        }
+        return regs[result];
+    }
+
+    /**
+     * The sequence to improve: its instructions and inputs.
+     */
+    private static class Target {
+        String text;
+        List<String> inputs = new ArrayList<String>();
+        Set<String> bools = new HashSet<String>();
+        Op[] seq;
+        Set<Integer> constants = new TreeSet<Integer>();
+
+        Target(String line) {
+            String flags = "";
+            int bar = line.indexOf('|');
+            if (bar >= 0) {
+                flags = line.substring(bar + 1).trim();
+                line = line.substring(0, bar);
+            }
+            text = line.trim().replaceAll("\\s*;\\s*", " ; ");
+            String[] words = flags.split("\\s+");
+            for (int k = 0; k + 1 < words.length; k += 2) {
+                if (words[k].equals("bool")) {
+                    bools.add(words[k + 1]);
+                }
+            }
+
+            List<Op> ops = new ArrayList<Op>();
+            for (String part : line.split(";")) {
+                for (AsmInstr instr : AsmInstr.parseLine(part)) {
+                    List<String> a = instr.getArgs();
+                    for (String arg : a.subList(1, a.size())) {
+                        if (arg.startsWith("%") && !arg.equals("%d")
+                            && !inputs.contains(arg)) {
+                            inputs.add(arg);
+                        }
+                    }
+                    ops.add(toOp(instr));
+                }
+            }
+            seq = ops.toArray(new Op[0]);
+        }
+
+        int slotOf(String arg) {
+            if (arg.equals("$zero")) return ZERO;
+            if (arg.equals("%d")) return numSlots() - 2;
+            if (arg.equals("%s")) return numSlots() - 1;
+            return 1 + inputs.indexOf(arg);
+        }
+
+        int numSlots() {
+            return inputs.size() + 3;
+        }
+
+        private Op toOp(AsmInstr instr) {
+            List<String> a = instr.getArgs();
+            String last = a.get(a.size() - 1);
+            if (AsmInstr.isImmediate(last)) {
+                int k = Integer.parseInt(last);
+                constants.add(k);
+                return new Op(instr.getOpcode(), slotOf(a.get(0)),
+                              slotOf(a.get(1)), -1, k);
+            }
+            return new Op(instr.getOpcode(), slotOf(a.get(0)),
+                          slotOf(a.get(1)), slotOf(a.get(2)), 0);
+        }
+
+        int cost() {
+            int c = 0;
+            for (Op op : seq) {
+                c += op.cost();
+            }
+            return c;
+        }
+    }
+
+    // **********************************************************************
+    // the search
+    // **********************************************************************
+
+    private Target myTarget;
+    private int[][] myTests;        // register files for the test inputs
+    private int[] myExpected;       // result of the target on each
+    private int[] myImms;           // immediates candidates may use
+    private Op[] myFound;
+    private int myAlias = -1;       // input slot the result must also
+                                    // work in, or -1
+    private boolean[] myAliasOk;    // from format: per input, whether the
+                                    // rule holds with the result in it
+
+    private Superopt(Target target) {
+        myTarget = target;
+        makeTests();
+        Set<Integer> imms = new TreeSet<Integer>(Arrays.asList(0, 1, -1));
+        for (int k : target.constants) {
+            imms.add(k);
+            imms.add(k - 1);
+            imms.add(k + 1);
+            imms.add(-k);
+        }
+        myImms = new int[imms.size()];
+        int i = 0;
+        for (int k : imms) {
+            myImms[i++] = k;
+        }
+    }
+
+    private static final int[] SAMPLE_INTS = {
+        0, 1, -1, 2, 3, 7, -8, 100, 32767, -32768, 65535, 0x7fffffff,
+        0x80000000, 0x12345678, 0xdeadbeef, -123457
+    };
+
+    private void makeTests() {
+        List<int[]> tests = new ArrayList<int[]>();
+        int n = myTarget.inputs.size();
+        int count = 1;
+        for (String in : myTarget.inputs) {
+            count *= myTarget.bools.contains(in) ? 2 : SAMPLE_INTS.length;
+        }
+        for (int c = 0; c < count; c++) {
+            int[] regs = new int[myTarget.numSlots()];
+            int rest = c;
+            for (int i = 0; i < n; i++) {
+                String in = myTarget.inputs.get(i);
+                int size = myTarget.bools.contains(in) ? 2 : SAMPLE_INTS.length;
+                regs[1 + i] = myTarget.bools.contains(in)
+                              ? rest % size : SAMPLE_INTS[rest % size];
+                rest /= size;
+            }
+            tests.add(regs);
+        }
+        myTests = tests.toArray(new int[0][]);
+        myExpected = new int[myTests.length];
+        for (int t = 0; t < myTests.length; t++) {
+            myExpected[t] = run(myTarget.seq, myTests[t].clone(),
+                                myTarget.numSlots() - 2);
+        }
+    }
+
+    /**
+     * search
+     * Return the table lines for the cheapest verified replacement (none
+     * if nothing is cheaper than the target).  If that replacement can't
+     * compute its result into the register of the first input, the
+     * cheapest one that can follows it, since codeGen usually computes
+     * in place.
+     */
+    private List<String> search() {
+        List<String> rules = new ArrayList<String>();
+        Op[] found = searchFor(-1);
+        if (found == null) {
+            return rules;
+        }
+        rules.add(format(found));
+        if (!myAliasOk[0]) {
+            found = searchFor(1);
+            if (found != null) {
+                rules.add(format(found));
+            }
+        }
+        return rules;
+    }
+
+    private Op[] searchFor(int alias) {
+        myAlias = alias;
+        int budget = myTarget.cost();
+        for (int len = 1; len <= MAX_LEN && len < budget; len++) {
+            Op[] seq = new Op[len];
+            int[][] regs = new int[myTests.length][];
+            for (int t = 0; t < myTests.length; t++) {
+                regs[t] = myTests[t].clone();
+            }
+            myFound = null;
+            extend(seq, 0, regs, budget, false);
+            if (myFound != null) {
+                return myFound;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * extend
+     * Try every instruction at position pos of seq, given the register
+     * files of the test inputs after the first pos instructions.
+     */
+    private void extend(Op[] seq, int pos, int[][] regs, int budget,
+                        boolean usedS) {
+        if (myFound != null) {
+            return;
+        }
+        boolean last = pos == seq.length - 1;
+        int d = myTarget.numSlots() - 2;
+        int s = d + 1;
+        List<Integer> srcs = new ArrayList<Integer>();
+        srcs.add(ZERO);
+        for (int i = 0; i < myTarget.inputs.size(); i++) {
+            srcs.add(1 + i);
+        }
+        boolean dWritten = false;
+        for (int k = 0; k < pos; k++) {
+            dWritten |= seq[k].dst == d;
+        }
+        if (dWritten) srcs.add(d);
+        if (usedS) srcs.add(s);
+        int[] dsts = last ? new int[] { d } : new int[] { d, s };
+        boolean restricted = pos >= 2;
+
+        for (int dst : dsts) {
+            for (String name : RR_OPS) {
+                if (restricted && !LONG_OPS.contains(name)) continue;
+                for (int x : srcs) {
+                    for (int y : srcs) {
+                        try1(seq, pos, regs, budget, usedS,
+                             new Op(name, dst, x, y, 0));
+                    }
+                }
+            }
+            for (String name : SHIFT_OPS) {
+                if (restricted && !LONG_OPS.contains(name)) continue;
+                for (int x : srcs) {
+                    if (x == ZERO) continue;
+                    for (int k = 1; k < 32; k++) {
+                        try1(seq, pos, regs, budget, usedS,
+                             new Op(name, dst, x, -1, k));
+                    }
+                }
+            }
+            if (restricted) continue;
+            for (String name : RI_OPS) {
+                for (int x : srcs) {
+                    for (int k : myImms) {
+                        if (!fitsImm(name, k)) continue;
+                        try1(seq, pos, regs, budget, usedS,
+                             new Op(name, dst, x, -1, k));
+                    }
+                }
+            }
+            for (int k : myImms) {
+                try1(seq, pos, regs, budget, usedS,
+                     new Op("li", dst, ZERO, -1, k));
+            }
+        }
+    }
+
+    private static boolean fitsImm(String name, int k) {
+        if (name.equals("andi") || name.equals("ori") || name.equals("xori")) {
+            return k >= 0 && k <= 65535;
+        }
+        return k >= -32768 && k <= 32767;
+    }
+
+    private void try1(Op[] seq, int pos, int[][] regs, int budget,
+                      boolean usedS, Op op) {
+        if (myFound != null || op.cost() > budget - (seq.length - pos)) {
+            return;
+        }
+        seq[pos] = op;
+        int d = myTarget.numSlots() - 2;
+        if (pos == seq.length - 1) {
+            for (int t = 0; t < regs.length; t++) {
+                if (op.eval(regs[t]) != myExpected[t]) {
+                    return;
+                }
+            }
+            Op[] cand = seq.clone();
+            if (verify(cand, -1) && (myAlias < 0 || verify(cand, myAlias))) {
+                myFound = cand;
+            }
+            return;
+        }
+        int[][] next = new int[regs.length][];
+        for (int t = 0; t < regs.length; t++) {
+            next[t] = regs[t].clone();
+            next[t][op.dst] = op.eval(regs[t]);
+        }
+        extend(seq, pos + 1, next, budget - op.cost(),
+               usedS || op.dst == d + 1);
+    }
+
+    // **********************************************************************
+    // verification
+    // **********************************************************************
+
+    /**
+     * verify
+     * Check that cand computes the same result as the target for every
+     * input.  If alias is an input slot, the result register is taken to
+     * be the same register as that input.
+     */
+    private boolean verify(Op[] cand, int alias) {
+        Target t = myTarget;
+        int n = t.inputs.size();
+        int d = t.numSlots() - 2;
+        myOrig = t.seq;
+        myCand = cand;
+        myResult = d;
+        if (alias >= 0) {
+            myOrig = rename(t.seq, d, alias);
+            myCand = rename(cand, d, alias);
+            myResult = alias;
+        }
+        boolean allBool = t.bools.size() == n;
+        if (allBool) {
+            for (int c = 0; c < (1 << n); c++) {
+                int[] in = new int[n];
+                for (int i = 0; i < n; i++) {
+                    in[i] = (c >> i) & 1;
+                }
+                if (!same(in)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (affine(t.seq) && affine(cand) && t.bools.isEmpty()) {
+            int[] in = new int[n];
+            if (!same(in)) {
+                return false;
+            }
+            for (int i = 0; i < n; i++) {
+                in = new int[n];
+                in[i] = 1;
+                if (!same(in)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (n == 1) {
+            int[] in = new int[1];
+            int v = Integer.MIN_VALUE;
+            while (true) {
+                in[0] = v;
+                if (!same(in)) {
+                    return false;
+                }
+                if (v == Integer.MAX_VALUE) {
+                    return true;
+                }
+                v++;
+            }
+        }
+        return false;
+    }
+
+    private static boolean affine(Op[] seq) {
+        for (Op op : seq) {
+            if (!AFFINE_OPS.contains(op.name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Op[] rename(Op[] seq, int from, int to) {
+        Op[] result = new Op[seq.length];
+        for (int k = 0; k < seq.length; k++) {
+            result[k] = seq[k].rename(from, to);
+        }
+        return result;
+    }
+
+    // the two sequences being compared by same(), and their result slot
+    private Op[] myOrig;
+    private Op[] myCand;
+    private int myResult;
+    private int[] myRegs1;
+    private int[] myRegs2;
+
+    private boolean same(int[] in) {
+        int slots = myTarget.numSlots();
+        if (myRegs1 == null) {
+            myRegs1 = new int[slots];
+            myRegs2 = new int[slots];
+        }
+        Arrays.fill(myRegs1, 0);
+        Arrays.fill(myRegs2, 0);
+        for (int i = 0; i < in.length; i++) {
+            myRegs1[1 + i] = in[i];
+            myRegs2[1 + i] = in[i];
+        }
+        return run(myOrig, myRegs1, myResult) == run(myCand, myRegs2, myResult);
+    }
+
+    private String format(Op[] cand) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(myTarget.text).append(" => ");
+        for (int k = 0; k < cand.length; k++) {
+            if (k > 0) {
+                sb.append(" ; ");
+            }
+            sb.append(opText(cand[k]));
+        }
+        StringBuilder flags = new StringBuilder();
+        for (String in : myTarget.bools) {
+            flags.append(" bool ").append(in);
+        }
+        myAliasOk = new boolean[myTarget.inputs.size()];
+        for (int i = 0; i < myTarget.inputs.size(); i++) {
+            myAliasOk[i] = verify(cand, 1 + i);
+            if (myAliasOk[i]) {
+                flags.append(" alias ").append(myTarget.inputs.get(i));
+            }
+        }
+        if (flags.length() > 0) {
+            sb.append(" |").append(flags);
+        }
+        return sb.toString();
+    }
+
+    private String opText(Op op) {
+        String text = op.name + " " + slotName(op.dst);
+        if (op.name.equals("li")) {
+            return text + ", " + op.imm;
+        }
+        text += ", " + slotName(op.src1);
+        return text + ", " + (op.src2 >= 0 ? slotName(op.src2) : "" + op.imm);
+    }
+
+    private String slotName(int slot) {
+        int d = myTarget.numSlots() - 2;
+        if (slot == ZERO) return "$zero";
+        if (slot == d) return "%d";
+        if (slot == d + 1) return "%s";
+        return myTarget.inputs.get(slot - 1);
+    }
+}
@@ -0,0 +1,275 @@
+import java.util.*;
+
+/**
+ * The SwitchLowering class finds if-else chains that compare one int
+ * variable with constants,
+ *
+ *     if (x == 1) { ... } else { if (x == 5) { ... } else { ... } }
+ *
+ * and has codeGen pick the case with one jump instead of testing each
+ * constant in turn.  If the constants are dense (at least MIN_DENSITY
+ * percent of the range between the smallest and the largest, and the
+ * range no more than MAX_TABLE), the case is looked up in a table of
+ * code addresses in .data, indexed by x minus the smallest constant, and
+ * reached with a jr (see AsmInstr.getJumpTable); otherwise x goes
+ * through a balanced binary search over the sorted constants, which
+ * tests up to MAX_LINEAR of them one by one at its leaves.  A value that
+ * matches no case goes to the else part of the last if of the chain.
+ *
+ * The chain's ifs are taken in order while each tests x == k (or k == x)
+ * for a constant k that no earlier if tested; since the tests can't have
+ * effects and at most one of them holds, they may be made in any order.
+ * Only chains of at least MIN_CASES ifs are lowered.
+ */
+public class SwitchLowering implements AstPass {
+    // the fewest ifs in a chain that is lowered
+    private static final int MIN_CASES = 4;
+
+    // the lowest percentage of the range that must be cases for a table
+    private static final int MIN_DENSITY = 50;
+
+    // the largest table (in words)
+    private static final int MAX_TABLE = 256;
+
+    // the most cases a leaf of the binary search tests one by one
+    private static final int MAX_LINEAR = 3;
+
+    public void run(ProgramNode root) {
+        CallGraph graph = new CallGraph(root);
+        for (FnDeclNode fn : graph.getFunctions()) {
+            visit(fn, fn.name());
+        }
+    }
+
+    /**
+     * visit
+     * Lower the chains below node, starting with the outermost if of each.
+     */
+    private void visit(ASTnode node, String fnName) {
+        if (node instanceof IfElseStmtNode) {
+            lower((IfElseStmtNode)node, fnName);
+        }
+        for (ASTnode kid : node.children()) {
+            visit(kid, fnName);
+        }
+    }
+
+    /**
+     * lower
+     * Mark the chain headed by head as a switch if it is long enough.
+     */
+    private void lower(IfElseStmtNode head, String fnName) {
+        if (head.inSwitch()) {
+            return;
+        }
+        IdNode subject = null;
+        List<CondStmtNode> cases = new ArrayList<CondStmtNode>();
+        List<Integer> values = new ArrayList<Integer>();
+        CondStmtNode branch = head;
+        while (branch != null) {
+            IdNode id = subjectOf(branch.exp());
+            if (id == null
+                || subject != null && id.sym() != subject.sym()) {
+                break;
+            }
+            Integer value = valueOf(branch.exp());
+            if (values.contains(value)) {
+                break;
+            }
+            subject = id;
+            cases.add(branch);
+            values.add(value);
+            if (!(branch instanceof IfElseStmtNode)) {
+                break;
+            }
+            branch = ((IfElseStmtNode)branch).elseIf();
+        }
+        if (cases.size() < MIN_CASES) {
+            return;
+        }
+        head.lowerAsSwitch(subject, cases, values);
+        PassManager.remark("switch", fnName + ": lowered the " + cases.size()
+                           + " cases at line " + head.exp().lineNum()
+                           + " to a " + (isDense(values) ? "jump table"
+                                                         : "binary search"));
+    }
+
+    /**
+     * Return the int variable exp compares with a constant, or null if
+     * it is not such a test.
+     */
+    private static IdNode subjectOf(ExpNode exp) {
+        if (!(exp instanceof EqualsNode)) {
+            return null;
+        }
+        BinaryExpNode bin = (BinaryExpNode)exp;
+        ExpNode var = bin.myExp1;
+        if (constant(var) != null) {
+            var = bin.myExp2;
+        } else if (constant(bin.myExp2) == null) {
+            return null;
+        }
+        if (!(var instanceof IdNode)
+            || !((IdNode)var).sym().getType().isIntType()) {
+            return null;
+        }
+        return (IdNode)var;
+    }
+
+    /**
+     * Return the constant of a test for which subjectOf is not null.
+     */
+    private static Integer valueOf(ExpNode exp) {
+        BinaryExpNode bin = (BinaryExpNode)exp;
+        Integer value = constant(bin.myExp1);
+        return value != null ? value : constant(bin.myExp2);
+    }
+
+    private static Integer constant(ExpNode exp) {
+        if (exp instanceof IntLitNode) {
+            return ((IntLitNode)exp).intVal();
+        }
+        if (exp instanceof UnaryMinusNode
+            && ((UnaryExpNode)exp).myExp instanceof IntLitNode) {
+            return -((IntLitNode)((UnaryExpNode)exp).myExp).intVal();
+        }
+        return null;
+    }
+
+    private static boolean isDense(List<Integer> values) {
+        long range = (long)Collections.max(values) - Collections.min(values)
+                     + 1;
+        return range <= MAX_TABLE
+               && values.size() * 100 >= range * MIN_DENSITY;
+    }
+
+    // **********************************************************************
+    // code generation
+    // **********************************************************************
+
+    /**
+     * gen
+     * Generate the chain of ifs cases, where cases.get(k) runs its then
+     * part when subject is values.get(k):
+     *
+     *       <pick the case, going to default if there is none>
+     * L1:   <the then part of the first case>
+     *       j after
+     *       ...
+     * Ln:   <the then part of the last case>
+     *       j after
+     * default:
+     *       <the else part of the last case>
+     * after:
+     */
+    static void gen(ExpNode subject, List<CondStmtNode> cases,
+                    List<Integer> values, String fnName) {
+        String defaultLabel = Codegen.nextLabel();
+        String afterLabel = Codegen.nextLabel();
+        TreeMap<Integer, String> labels = new TreeMap<Integer, String>();
+        List<String> caseLabels = new ArrayList<String>();
+        for (int value : values) {
+            String label = Codegen.nextLabel();
+            labels.put(value, label);
+            caseLabels.add(label);
+        }
+
+        if (isDense(values)) {
+            genTable(subject, labels, defaultLabel);
+        } else {
+            InstrSelector.gen(subject, Codegen.T0);
+            List<Integer> sorted = new ArrayList<Integer>(labels.keySet());
+            genSearch(sorted, 0, sorted.size(), labels, defaultLabel);
+        }
+
+        for (int k = 0; k < cases.size(); k++) {
+            Codegen.genLabel(caseLabels.get(k));
+            cases.get(k).genThen(fnName);
+            Codegen.generate("j", afterLabel);
+        }
+        Codegen.genLabel(defaultLabel);
+        cases.get(cases.size() - 1).genElse(fnName);
+        Codegen.genLabel(afterLabel);
+    }
+
+    /**
+     * genTable
+     * Generate the table of the case labels, by value from the smallest
+     * to the largest (with defaultLabel for the values between them that
+     * aren't cases), and the jump through it.  The table comes first, so
+     * that the .text after it goes on with an instruction.
+     */
+    private static void genTable(ExpNode subject,
+                                 TreeMap<Integer, String> labels,
+                                 String defaultLabel) {
+        int min = labels.firstKey();
+        int max = labels.lastKey();
+        String table = Codegen.nextLabel();
+        Codegen.generate(".data");
+        Codegen.generate(".align 2");
+        Codegen.genLabel(table);
+        for (int value = min; value <= max; value++) {
+            String label = labels.get(value);
+            Codegen.generate(".word", label != null ? label : defaultLabel);
+        }
+        Codegen.generate(".text");
+
+        // T0 = subject - min, which is out of range (unsigned) if the
+        // subject is below min or above max
+        InstrSelector.gen(subject, Codegen.T0);
+        if (min != 0 && fits16(-(long)min)) {
+            Codegen.generate("addiu", Codegen.T0, Codegen.T0, -min);
+        } else if (min != 0) {
+            Codegen.generate("li", Codegen.T1, "" + min);
+            Codegen.generate("subu", Codegen.T0, Codegen.T0, Codegen.T1);
+        }
+        Codegen.generate("sltiu", Codegen.T1, Codegen.T0, max - min + 1);
+        Codegen.generate("beqz", Codegen.T1, defaultLabel);
+        Codegen.generate("sll", Codegen.T0, Codegen.T0, 2);
+        Codegen.generate("la", Codegen.T1, table);
+        Codegen.generate("addu", Codegen.T0, Codegen.T0, Codegen.T1);
+        Codegen.generateIndexed("lw", Codegen.T0, Codegen.T0, 0);
+        Codegen.generateWithComment("jr", AsmInstr.TABLE_COMMENT + table,
+                                    Codegen.T0);
+    }
+
+    /**
+     * genSearch
+     * Generate the search of the values sorted[lo..hi) for the subject in
+     * T0: halve the range until at most MAX_LINEAR values are left, and
+     * test those one by one.
+     */
+    private static void genSearch(List<Integer> sorted, int lo, int hi,
+                                  Map<Integer, String> labels,
+                                  String defaultLabel) {
+        if (hi - lo <= MAX_LINEAR) {
+            for (int k = lo; k < hi; k++) {
+                int value = sorted.get(k);
+                if (value == 0) {
+                    Codegen.generate("beqz", Codegen.T0, labels.get(value));
+                } else {
+                    Codegen.generate("beq", Codegen.T0, "" + value,
+                                     labels.get(value));
+                }
+            }
+            Codegen.generate("j", defaultLabel);
+            return;
+        }
+        int mid = (lo + hi) / 2;
+        int value = sorted.get(mid);
+        String right = Codegen.nextLabel();
+        if (fits16(value)) {
+            Codegen.generate("slti", Codegen.T1, Codegen.T0, value);
+            Codegen.generate("beqz", Codegen.T1, right);
+        } else {
+            Codegen.generate("bge", Codegen.T0, "" + value, right);
+        }
+        genSearch(sorted, lo, mid, labels, defaultLabel);
+        Codegen.genLabel(right);
+        genSearch(sorted, mid, hi, labels, defaultLabel);
+    }
+
+    private static boolean fits16(long v) {
+        return v >= Short.MIN_VALUE && v <= Short.MAX_VALUE;
+    }
+}
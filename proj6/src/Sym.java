@@ -9,6 +9,17 @@ public class Sym {
     // new new fields
     private int offset;
     private boolean isGlobal;
+    // value the variable is known to have everywhere (set for params by
+    // ConstantPropagation), or null
+    private Integer constValue;
+
+    public void setConstValue(Integer value) {
+        constValue = value;
+    }
+
+    public Integer getConstValue() {
+        return constValue;
+    }
 
     public void setOffset(int offset) {
         this.offset = offset;
@@ -54,6 +65,79 @@ class FnSym extends Sym {
     private int totalLocalSize = 0;
     private int totalParamSize = 0;
 
+    // specialized copies of the function: label -> constant values of
+    // params, by position (see ConstantPropagation)
+    private Map<String, Map<Integer, Integer>> specializations =
+        new LinkedHashMap<String, Map<Integer, Integer>>();
+
+    public void addSpecialization(String label, Map<Integer, Integer> consts) {
+        specializations.put(label, consts);
+    }
+
+    public Map<String, Map<Integer, Integer>> getSpecializations() {
+        return specializations;
+    }
+
+    // true if calls look the result up in a memo table first (see
+    // Memoization)
+    private boolean memoized;
+
+    public void setMemoized(boolean memoized) {
+        this.memoized = memoized;
+    }
+
+    public boolean isMemoized() {
+        return memoized;
+    }
+
+    // for a function whose recursive calls are jumps back to its start
+    // (see AccumulatorRecursion): the instruction that folds a value into
+    // its accumulator ("mul", or null if it has only tail calls)
+    // and the accumulator's offset from $fp; and, while its code is
+    // generated, the label the jumps go to
+    private boolean looped;
+    private String accumulator;
+    private int accumulatorOffset;
+    private String restartLabel;
+
+    public void setLooped(String accumulator, int accumulatorOffset) {
+        this.looped = true;
+        this.accumulator = accumulator;
+        this.accumulatorOffset = accumulatorOffset;
+    }
+
+    public boolean isLooped() {
+        return looped;
+    }
+
+    public String getAccumulator() {
+        return accumulator;
+    }
+
+    public int getAccumulatorOffset() {
+        return accumulatorOffset;
+    }
+
+    public void setRestartLabel(String label) {
+        restartLabel = label;
+    }
+
+    public String getRestartLabel() {
+        return restartLabel;
+    }
+
+    // the registers a call to the function may change, once its code is
+    // generated (null if it has no summary; see RegisterSummaries)
+    private Set<String> callSummary;
+
+    public void setCallSummary(Set<String> regs) {
+        callSummary = regs;
+    }
+
+    public Set<String> getCallSummary() {
+        return callSummary;
+    }
+
     public int getTotalParamSize() {
         return totalParamSize;
     }
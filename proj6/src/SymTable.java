@@ -4,10 +4,18 @@ public class SymTable {
     // hxu: new field
     private int localOffset = -8;
     private int paramOffset = 4;
+
+    // the local offset on entry to each open scope, so that the slots of
+    // a scope are reused by the scopes that follow it, and the lowest
+    // offset handed out since the last reset (which fixes the frame size)
+    private List<Integer> scopeOffsets;
+    private int lowestLocalOffset = -8;
     
     public SymTable() {
         list = new LinkedList<HashMap<String, Sym>>();
         list.add(new HashMap<String, Sym>());
+        scopeOffsets = new LinkedList<Integer>();
+        scopeOffsets.add(localOffset);
     }
 
     public int getLocalOffset() {
@@ -16,10 +24,20 @@ public class SymTable {
 
     public void updateLocalOffset() {
         localOffset -= 4;
+        lowestLocalOffset = Math.min(lowestLocalOffset, localOffset);
     }
 
     public void resetLocalOffset() {
         localOffset = -8;
+        lowestLocalOffset = -8;
+    }
+
+    /**
+     * Return the lowest local offset used since the last reset; the
+     * locals of a function fit in the frame above it.
+     */
+    public int getLowestLocalOffset() {
+        return lowestLocalOffset;
     }
 
     public int getParamOffset() {
@@ -68,6 +86,7 @@ public class SymTable {
     
     public void addScope() {
         list.add(0, new HashMap<String, Sym>());
+        scopeOffsets.add(0, localOffset);
     }
     
     public Sym lookupLocal(String name) {
@@ -94,6 +113,8 @@ public class SymTable {
         if (list.isEmpty())
             throw new EmptySymTableException();
         list.remove(0);
+        // the slots of this scope are free for the next one
+        localOffset = scopeOffsets.remove(0);
     }
     
     public void print() {
@@ -0,0 +1,698 @@
+import java.util.*;
+
+/**
+ * The ValueRanges class works out, for every int and bool variable at
+ * every point of each function, an interval its value lies in, and uses
+ * the intervals to simplify the code:
+ *
+ *   - a comparison (or any expression without effects) whose interval is
+ *     a single value becomes that value, so "i < 10" inside a loop that
+ *     runs while "i < 5" is true, and a test that an enclosing if already
+ *     made is folded; an if whose condition is folded generates only the
+ *     part it picks (see CondStmtNode.codeGen);
+ *   - a division by a power of two whose dividend is never negative is
+ *     marked (see DivideNode.setNonNegative) so that InstrSelector can
+ *     make it a shift.
+ *
+ * Intervals come from constants, assignments and increments, and from
+ * the conditions of ifs and loops, which narrow the intervals of the
+ * variables they compare on each side of the branch.  A loop is gone
+ * around until its intervals stop changing; one that still grows after
+ * WIDEN_AFTER times is widened to the end of the int range, and then
+ * narrowed again by one more time around.  A result that may not fit in
+ * an int is taken as unknown, calls make globals unknown, and struct
+ * fields are not followed.  A bool variable is not taken to be 0 or 1
+ * until it is given one of them: cin stores any int it reads in a bool.
+ */
+public class ValueRanges implements AstPass {
+    // times around a loop before a growing interval is widened
+    private static final int WIDEN_AFTER = 2;
+
+    private static final Range INT =
+        new Range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    private static final Range BOOL = new Range(0, 1);
+
+    // what was done to the current function
+    private int myFolded;
+    private int myShifts;
+
+    public void run(ProgramNode root) {
+        CallGraph graph = new CallGraph(root);
+        for (FnDeclNode fn : graph.getFunctions()) {
+            myFolded = 0;
+            myShifts = 0;
+            StmtListNode body = (StmtListNode)fn.children().get(1)
+                                                 .children().get(1);
+            execList(body, new HashMap<String, Range>(), true);
+            if (myFolded > 0 || myShifts > 0) {
+                PassManager.remark("vrp", fn.name() + ": folded " + myFolded
+                                   + " expressions, made " + myShifts
+                                   + " divisions shifts");
+            }
+        }
+    }
+
+    /**
+     * A closed interval of values.
+     */
+    private static class Range {
+        final long lo;
+        final long hi;
+
+        Range(long lo, long hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        boolean isConstant() {
+            return lo == hi;
+        }
+
+        Range union(Range r) {
+            return new Range(Math.min(lo, r.lo), Math.max(hi, r.hi));
+        }
+
+        /**
+         * Return the values in both this and r, or null if there are none.
+         */
+        Range intersect(Range r) {
+            long l = Math.max(lo, r.lo);
+            long h = Math.min(hi, r.hi);
+            return l <= h ? new Range(l, h) : null;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Range && ((Range)o).lo == lo
+                   && ((Range)o).hi == hi;
+        }
+
+        public int hashCode() {
+            return (int)(lo * 31 + hi);
+        }
+    }
+
+    /**
+     * Return the interval lo..hi, or INT if it doesn't fit in an int.
+     */
+    private static Range range(long lo, long hi) {
+        if (lo < Integer.MIN_VALUE || hi > Integer.MAX_VALUE) {
+            return INT;
+        }
+        return new Range(lo, hi);
+    }
+
+    // **********************************************************************
+    // environments: the interval of each variable, by slot (a variable
+    // with no entry may have any value of its type); null where control
+    // can't be
+    // **********************************************************************
+
+    private static Map<String, Range> copy(Map<String, Range> env) {
+        return env == null ? null : new HashMap<String, Range>(env);
+    }
+
+    /**
+     * Return the environment of a point that control reaches from points
+     * with environments a and b.
+     */
+    private static Map<String, Range> join(Map<String, Range> a,
+                                           Map<String, Range> b) {
+        if (a == null || b == null) {
+            return copy(a == null ? b : a);
+        }
+        Map<String, Range> env = new HashMap<String, Range>();
+        for (String var : a.keySet()) {
+            if (b.containsKey(var)) {
+                env.put(var, a.get(var).union(b.get(var)));
+            }
+        }
+        return env;
+    }
+
+    /**
+     * Return next with every interval that grew since old stretched to
+     * the end of the int range in the direction it grew.
+     */
+    private static Map<String, Range> widen(Map<String, Range> old,
+                                            Map<String, Range> next) {
+        Map<String, Range> env = new HashMap<String, Range>();
+        for (String var : next.keySet()) {
+            Range o = old.get(var);
+            Range n = next.get(var);
+            if (o != null) {
+                env.put(var, new Range(n.lo < o.lo ? Integer.MIN_VALUE : n.lo,
+                                       n.hi > o.hi ? Integer.MAX_VALUE : n.hi));
+            }
+        }
+        return env;
+    }
+
+    private static boolean isScalar(ExpNode exp) {
+        if (!(exp instanceof IdNode) || ((IdNode)exp).sym() == null) {
+            return false;
+        }
+        Type type = ((IdNode)exp).sym().getType();
+        return type.isIntType() || type.isBoolType();
+    }
+
+    private static String slot(IdNode id) {
+        return id.sym().isGlobal() ? "g:" + id.name()
+                                   : "l:" + id.sym().getOffset();
+    }
+
+    private static Range get(Map<String, Range> env, IdNode id) {
+        Range r = env.get(slot(id));
+        return r != null ? r : INT;
+    }
+
+    /**
+     * Record in env that loc now has a value in r (unknown if r is null).
+     */
+    private static void set(Map<String, Range> env, ExpNode loc, Range r) {
+        if (isScalar(loc)) {
+            if (r == null) {
+                env.remove(slot((IdNode)loc));
+            } else {
+                env.put(slot((IdNode)loc), r);
+            }
+        }
+    }
+
+    private static void forgetGlobals(Map<String, Range> env) {
+        Iterator<String> it = env.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith("g:")) {
+                it.remove();
+            }
+        }
+    }
+
+    // **********************************************************************
+    // statements
+    // **********************************************************************
+
+    /**
+     * execList
+     * Return the environment after the statements of list, run from env;
+     * simplify them as well if apply is true (only once the environment
+     * holds for every time they run).
+     */
+    private Map<String, Range> execList(StmtListNode list,
+                                        Map<String, Range> env,
+                                        boolean apply) {
+        for (StmtNode stmt : list.stmts()) {
+            if (env == null) {
+                break;
+            }
+            env = exec(stmt, env, apply);
+        }
+        return env;
+    }
+
+    private Map<String, Range> exec(StmtNode stmt, Map<String, Range> env,
+                                    boolean apply) {
+        if (stmt instanceof PostIncStmtNode
+            || stmt instanceof PostDecStmtNode) {
+            ExpNode loc = (ExpNode)stmt.children().get(0);
+            if (isScalar(loc)) {
+                Range r = get(env, (IdNode)loc);
+                int step = stmt instanceof PostIncStmtNode ? 1 : -1;
+                set(env, loc, range(r.lo + step, r.hi + step));
+            }
+        } else if (stmt instanceof ReadStmtNode) {
+            set(env, ((ReadStmtNode)stmt).exp(), null);
+        } else if (stmt instanceof IfStmtNode
+                   || stmt instanceof IfElseStmtNode) {
+            CondStmtNode s = (CondStmtNode)stmt;
+            ExpNode cond = s.exp();
+            Range c = eval(cond, s, env, apply);
+            List<ASTnode> kids = s.children();
+            Map<String, Range> then =
+                execList((StmtListNode)kids.get(2),
+                         branch(cond, c, true, env), apply);
+            Map<String, Range> other = branch(cond, c, false, env);
+            if (stmt instanceof IfElseStmtNode) {
+                other = execList((StmtListNode)kids.get(4), other, apply);
+            }
+            return join(then, other);
+        } else if (stmt instanceof WhileStmtNode) {
+            return execWhile((WhileStmtNode)stmt, env, apply);
+        } else if (stmt instanceof RepeatStmtNode) {
+            return execRepeat((RepeatStmtNode)stmt, env, apply);
+        } else {
+            // assignment, call, write or return
+            for (ASTnode kid : stmt.children()) {
+                eval((ExpNode)kid, stmt, env, apply);
+            }
+            if (stmt instanceof ReturnStmtNode) {
+                return null;
+            }
+        }
+        return env;
+    }
+
+    /**
+     * Return the environment on the sense side of a branch on cond, whose
+     * interval is c, from env (after cond).
+     */
+    private Map<String, Range> branch(ExpNode cond, Range c,
+                                             boolean sense,
+                                             Map<String, Range> env) {
+        if (c.isConstant()) {
+            return (c.lo != 0) == sense ? copy(env) : null;
+        }
+        return refine(cond, sense, copy(env));
+    }
+
+    private Map<String, Range> execWhile(WhileStmtNode loop,
+                                         Map<String, Range> env,
+                                         boolean apply) {
+        ExpNode cond = (ExpNode)loop.children().get(0);
+        StmtListNode body = (StmtListNode)loop.children().get(2);
+
+        // the environment at the test, for every time around
+        Map<String, Range> head = copy(env);
+        for (int k = 0; ; k++) {
+            Map<String, Range> next = join(env, aroundWhile(cond, body, head));
+            if (k >= WIDEN_AFTER) {
+                next = widen(head, next);
+            }
+            if (next.equals(head)) {
+                break;
+            }
+            head = next;
+        }
+        head = join(env, aroundWhile(cond, body, head));
+
+        Map<String, Range> test = copy(head);
+        Range c = eval(cond, loop, test, apply);
+        if (apply) {
+            execList(body, branch(cond, c, true, test), true);
+        }
+        return branch(cond, c, false, test);
+    }
+
+    /**
+     * Return the environment at the end of the body of a while loop with
+     * condition cond, given the one at the test.
+     */
+    private Map<String, Range> aroundWhile(ExpNode cond, StmtListNode body,
+                                           Map<String, Range> head) {
+        Map<String, Range> test = copy(head);
+        Range c = eval(cond, null, test, false);
+        return execList(body, branch(cond, c, true, test), false);
+    }
+
+    private Map<String, Range> execRepeat(RepeatStmtNode loop,
+                                          Map<String, Range> env,
+                                          boolean apply) {
+        StmtListNode body = (StmtListNode)loop.children().get(2);
+        Range count = eval((ExpNode)loop.children().get(0), loop, env, apply);
+        if (count.hi <= 0) {
+            return env;
+        }
+
+        // the environment at the top of the body, for every time around
+        Map<String, Range> head = copy(env);
+        for (int k = 0; ; k++) {
+            Map<String, Range> next =
+                join(env, execList(body, copy(head), false));
+            if (k >= WIDEN_AFTER) {
+                next = widen(head, next);
+            }
+            if (next.equals(head)) {
+                break;
+            }
+            head = next;
+        }
+        head = join(env, execList(body, copy(head), false));
+        if (apply) {
+            execList(body, copy(head), true);
+        }
+        return head;
+    }
+
+    // **********************************************************************
+    // expressions
+    // **********************************************************************
+
+    /**
+     * eval
+     * Return the interval of exp, a child of parent, in env, and change
+     * env by its effects.  If apply is true and exp has no effects and
+     * only one value, put that value in its place.
+     */
+    private Range eval(ExpNode exp, ASTnode parent, Map<String, Range> env,
+                       boolean apply) {
+        Range r = evalNode(exp, env, apply);
+        if (apply && parent != null && r.isConstant() && isFoldable(exp)) {
+            ExpNode lit;
+            if (isBool(exp)) {
+                lit = r.lo != 0 ? new TrueNode(exp.lineNum(), exp.charNum())
+                                : new FalseNode(exp.lineNum(), exp.charNum());
+            } else {
+                lit = new IntLitNode(exp.lineNum(), exp.charNum(), (int)r.lo);
+            }
+            parent.replaceExp(exp, lit);
+            myFolded++;
+        }
+        return r;
+    }
+
+    private Range evalNode(ExpNode exp, Map<String, Range> env,
+                           boolean apply) {
+        if (exp instanceof IntLitNode) {
+            int v = ((IntLitNode)exp).intVal();
+            return new Range(v, v);
+        }
+        if (exp instanceof TrueNode || exp instanceof FalseNode) {
+            int v = exp instanceof TrueNode ? 1 : 0;
+            return new Range(v, v);
+        }
+        if (exp instanceof IdNode) {
+            return isScalar(exp) ? get(env, (IdNode)exp) : INT;
+        }
+        if (exp instanceof AssignNode) {
+            AssignNode assign = (AssignNode)exp;
+            Range r = eval((ExpNode)assign.children().get(1), assign, env,
+                           apply);
+            set(env, assign.lhs(), r);
+            return INT;
+        }
+        if (exp instanceof CallExpNode) {
+            CallExpNode call = (CallExpNode)exp;
+            ExpListNode args = (ExpListNode)call.children().get(1);
+            for (ExpNode arg : args.exps()) {
+                eval(arg, args, env, apply);
+            }
+            forgetGlobals(env);
+            return INT;     // a bool function may return a bool it read
+        }
+        if (exp instanceof UnaryMinusNode) {
+            Range a = eval(((UnaryExpNode)exp).myExp, exp, env, apply);
+            return range(-a.hi, -a.lo);
+        }
+        if (exp instanceof NotNode) {
+            // xori with 1, which is a not only for 0 and 1
+            Range a = eval(((UnaryExpNode)exp).myExp, exp, env, apply);
+            if (isBoolRange(a)) {
+                return new Range(1 - a.hi, 1 - a.lo);
+            }
+            return range(a.lo - 1, a.hi + 1);
+        }
+        if (exp instanceof LogicalExpNode) {
+            return evalLogical((BinaryExpNode)exp, env, apply);
+        }
+        if (!(exp instanceof BinaryExpNode)) {
+            return INT;     // string literal or field access
+        }
+
+        // operands right to left, as InstrSelector does
+        BinaryExpNode bin = (BinaryExpNode)exp;
+        Range b = eval(bin.myExp2, bin, env, apply);
+        Range a = eval(bin.myExp1, bin, env, apply);
+        if (exp instanceof EqualityExpNode
+            && (isString(bin.myExp1) || isString(bin.myExp2))) {
+            return BOOL;
+        }
+        if (exp instanceof PlusNode) {
+            return range(a.lo + b.lo, a.hi + b.hi);
+        } else if (exp instanceof MinusNode) {
+            return range(a.lo - b.hi, a.hi - b.lo);
+        } else if (exp instanceof TimesNode) {
+            return corners(a, b, false);
+        } else if (exp instanceof DivideNode) {
+            if (apply && a.lo >= 0) {
+                ((DivideNode)exp).setNonNegative();
+                if (b.isConstant() && b.lo > 0 && Long.bitCount(b.lo) == 1) {
+                    myShifts++;
+                }
+            }
+            if (b.lo > 0 || b.hi < 0) {
+                return corners(a, b, true);
+            }
+            long m = Math.max(Math.abs(a.lo), Math.abs(a.hi));
+            return range(-m, m);
+        } else if (exp instanceof LessNode) {
+            return test(a.hi < b.lo, a.lo >= b.hi);
+        } else if (exp instanceof GreaterNode) {
+            return test(a.lo > b.hi, a.hi <= b.lo);
+        } else if (exp instanceof LessEqNode) {
+            return test(a.hi <= b.lo, a.lo > b.hi);
+        } else if (exp instanceof GreaterEqNode) {
+            return test(a.lo >= b.hi, a.hi < b.lo);
+        }
+        boolean same = a.isConstant() && b.isConstant() && a.lo == b.lo;
+        boolean apart = a.intersect(b) == null;
+        return exp instanceof EqualsNode ? test(same, apart)
+                                         : test(apart, same);
+    }
+
+    /**
+     * evalLogical
+     * The right operand of && (||) runs only where the left one is true
+     * (false), so it is evaluated in that part of env.
+     */
+    private Range evalLogical(BinaryExpNode exp, Map<String, Range> env,
+                              boolean apply) {
+        boolean and = exp instanceof AndNode;
+        Range a = eval(exp.myExp1, exp, env, apply);
+        Map<String, Range> right = branch(exp.myExp1, a, and, env);
+        Map<String, Range> skip = branch(exp.myExp1, a, !and, env);
+        Range b = null;
+        if (right != null) {
+            b = eval(exp.myExp2, exp, right, apply);
+        }
+        Map<String, Range> after = join(right, skip);
+        if (after != null) {
+            env.clear();
+            env.putAll(after);
+        }
+        if (b == null) {
+            return a;
+        }
+
+        // the value is the left one where it decides, else the right one
+        boolean zero = a.lo <= 0 && 0 <= a.hi;
+        boolean nonZero = !a.isConstant() || a.lo != 0;
+        if (and) {
+            return zero ? b.union(new Range(0, 0)) : b;
+        }
+        return nonZero ? a.union(b) : b;
+    }
+
+    /**
+     * Return the interval of a * b (a / b if divide, for a b without 0),
+     * which lies between the results for the ends of a and b.
+     */
+    private static Range corners(Range a, Range b, boolean divide) {
+        long lo = Long.MAX_VALUE;
+        long hi = Long.MIN_VALUE;
+        for (long x : new long[] { a.lo, a.hi }) {
+            for (long y : new long[] { b.lo, b.hi }) {
+                long v = divide ? x / y : x * y;
+                lo = Math.min(lo, v);
+                hi = Math.max(hi, v);
+            }
+        }
+        return range(lo, hi);
+    }
+
+    private static boolean isBoolRange(Range r) {
+        return r.lo >= 0 && r.hi <= 1;
+    }
+
+    private static Range test(boolean always, boolean never) {
+        return always ? new Range(1, 1) : never ? new Range(0, 0) : BOOL;
+    }
+
+    private static boolean isString(ExpNode exp) {
+        return exp instanceof StringLitNode
+               || exp instanceof IdNode && ((IdNode)exp).sym() != null
+                  && ((IdNode)exp).sym().getType().isStringType();
+    }
+
+    private static boolean isBool(ExpNode exp) {
+        if (exp instanceof IdNode) {
+            return ((IdNode)exp).sym().getType().isBoolType();
+        }
+        return exp instanceof EqualityExpNode
+               || exp instanceof RelationalExpNode
+               || exp instanceof LogicalExpNode || exp instanceof NotNode;
+    }
+
+    /**
+     * Return true if exp can be replaced by its value: it is not a literal
+     * already, and is made of int and bool variables, literals and
+     * operators.
+     */
+    private static boolean isFoldable(ExpNode exp) {
+        if (exp instanceof IntLitNode || exp instanceof TrueNode
+            || exp instanceof FalseNode) {
+            return false;
+        }
+        return isPure(exp);
+    }
+
+    private static boolean isPure(ExpNode exp) {
+        if (exp instanceof IntLitNode || exp instanceof TrueNode
+            || exp instanceof FalseNode) {
+            return true;
+        }
+        if (exp instanceof IdNode) {
+            return isScalar(exp);
+        }
+        if (!(exp instanceof UnaryExpNode || exp instanceof BinaryExpNode)
+            || isString(exp) || exp instanceof EqualityExpNode
+               && (isString(((BinaryExpNode)exp).myExp1)
+                   || isString(((BinaryExpNode)exp).myExp2))) {
+            return false;
+        }
+        for (ASTnode kid : exp.children()) {
+            if (!isPure((ExpNode)kid)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // **********************************************************************
+    // conditions
+    // **********************************************************************
+
+    /**
+     * refine
+     * Return env narrowed by cond having the value sense, or null if it
+     * can't.  Only conditions without effects are looked into.
+     */
+    private Map<String, Range> refine(ExpNode cond, boolean sense,
+                                             Map<String, Range> env) {
+        if (env == null || !isPure(cond)) {
+            return env;
+        }
+        if (cond instanceof NotNode) {
+            ExpNode exp = ((UnaryExpNode)cond).myExp;
+            if (!isBoolRange(eval(exp, null, copy(env), false))) {
+                return env;     // the xori isn't a not
+            }
+            return refine(exp, !sense, env);
+        }
+        if (cond instanceof TrueNode || cond instanceof FalseNode) {
+            return (cond instanceof TrueNode) == sense ? env : null;
+        }
+        if (cond instanceof IdNode) {
+            // true is any value but 0, which only trims the ends
+            Range r = get(env, (IdNode)cond);
+            if (!sense) {
+                r = r.intersect(new Range(0, 0));
+            } else if (r.isConstant() && r.lo == 0) {
+                r = null;
+            } else if (r.lo == 0) {
+                r = new Range(1, r.hi);
+            } else if (r.hi == 0) {
+                r = new Range(r.lo, -1);
+            }
+            if (r == null) {
+                return null;
+            }
+            set(env, cond, r);
+            return env;
+        }
+        if (cond instanceof LogicalExpNode) {
+            BinaryExpNode bin = (BinaryExpNode)cond;
+            if ((cond instanceof AndNode) == sense) {
+                // both sides have the value sense
+                return refine(bin.myExp2, sense,
+                              refine(bin.myExp1, sense, env));
+            }
+            // the left side does, or the right side does after the left
+            // side didn't
+            Map<String, Range> left = refine(bin.myExp1, sense, copy(env));
+            Map<String, Range> right =
+                refine(bin.myExp2, sense, refine(bin.myExp1, !sense, env));
+            return join(left, right);
+        }
+        if (!(cond instanceof BinaryExpNode)) {
+            return env;
+        }
+
+        // a relation between l and r: l < r, l <= r, l == r or l != r
+        BinaryExpNode bin = (BinaryExpNode)cond;
+        ExpNode l = bin.myExp1;
+        ExpNode r = bin.myExp2;
+        boolean strict;
+        boolean swap;
+        if (cond instanceof LessNode || cond instanceof GreaterEqNode) {
+            strict = (cond instanceof LessNode) == sense;
+            swap = !strict;
+        } else if (cond instanceof GreaterNode || cond instanceof LessEqNode) {
+            strict = (cond instanceof GreaterNode) == sense;
+            swap = strict;
+        } else {
+            return relate(l, r, (cond instanceof EqualsNode) == sense, env);
+        }
+        if (swap) {
+            ExpNode t = l;
+            l = r;
+            r = t;
+        }
+        Range x = rangeOf(l, env);
+        Range y = rangeOf(r, env);
+        long gap = strict ? 1 : 0;
+        Range nx = x.intersect(new Range(Integer.MIN_VALUE, y.hi - gap));
+        Range ny = y.intersect(new Range(x.lo + gap, Integer.MAX_VALUE));
+        if (nx == null || ny == null) {
+            return null;
+        }
+        set(env, l, nx);
+        set(env, r, ny);
+        return env;
+    }
+
+    /**
+     * Return env narrowed by l == r (if equal) or l != r.
+     */
+    private Map<String, Range> relate(ExpNode l, ExpNode r,
+                                             boolean equal,
+                                             Map<String, Range> env) {
+        Range x = rangeOf(l, env);
+        Range y = rangeOf(r, env);
+        if (equal) {
+            Range both = x.intersect(y);
+            if (both == null) {
+                return null;
+            }
+            set(env, l, both);
+            set(env, r, both);
+            return env;
+        }
+        Range nx = without(x, y);
+        Range ny = without(y, x);
+        if (nx == null || ny == null) {
+            return null;
+        }
+        set(env, l, nx);
+        set(env, r, ny);
+        return env;
+    }
+
+    /**
+     * Return x less the value of y if y is a constant at an end of x (null
+     * if nothing is left), else x.
+     */
+    private static Range without(Range x, Range y) {
+        if (!y.isConstant()) {
+            return x;
+        }
+        long lo = x.lo == y.lo ? x.lo + 1 : x.lo;
+        long hi = x.hi == y.lo ? x.hi - 1 : x.hi;
+        return lo <= hi ? new Range(lo, hi) : null;
+    }
+
+    /**
+     * Return the interval of exp, which has no effects, in env.
+     */
+    private Range rangeOf(ExpNode exp, Map<String, Range> env) {
+        return evalNode(exp, copy(env), false);
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.*;
+
+/**
+ * The WriteMerging class joins runs of writes whose values are known at
+ * compile time into one write of a string literal, so that
+ *
+ *     cout << "x = "; cout << 42; cout << "\n";
+ *
+ * becomes cout << "x = 42\n"; with one string in .data and one syscall
+ * instead of three.  String literals are taken as they are, and an int or
+ * bool made only of literals is written as its decimal value (a bool as
+ * 1 or 0, as the print syscall writes it).  Writes of values computed at
+ * run time are left as they are: each is already a single syscall, and a
+ * run-time routine that formats several of them would take more
+ * instructions than it saves.
+ */
+public class WriteMerging implements AstPass {
+    // in the current function
+    private int myMerged;
+    private int myWrites;
+
+    public void run(ProgramNode root) {
+        CallGraph graph = new CallGraph(root);
+        for (FnDeclNode fn : graph.getFunctions()) {
+            myMerged = 0;
+            myWrites = 0;
+            visit(fn);
+            if (myMerged > 0) {
+                PassManager.remark("merge-writes", fn.name() + ": merged "
+                                   + myMerged + " writes into " + myWrites);
+            }
+        }
+    }
+
+    private void visit(ASTnode node) {
+        if (node instanceof StmtListNode) {
+            merge((StmtListNode)node);
+        }
+        for (ASTnode kid : node.children()) {
+            visit(kid);
+        }
+    }
+
+    /**
+     * merge
+     * Replace each run of at least two constant writes in list by one.
+     */
+    private void merge(StmtListNode list) {
+        List<StmtNode> stmts = list.stmts();
+        int k = 0;
+        while (k < stmts.size()) {
+            StringBuilder text = new StringBuilder();
+            int end = k;
+            while (end < stmts.size()) {
+                String piece = text(stmts.get(end));
+                if (piece == null) {
+                    break;
+                }
+                text.append(piece);
+                end++;
+            }
+            if (end - k < 2) {
+                k = end + 1;
+                continue;
+            }
+            ExpNode first = (ExpNode)stmts.get(k).children().get(0);
+            StringLitNode lit = new StringLitNode(first.lineNum(),
+                                                  first.charNum(),
+                                                  "\"" + text + "\"");
+            WriteStmtNode write = new WriteStmtNode(lit);
+            write.typeCheck(null);      // records that it writes a string
+            myMerged += end - k;
+            myWrites++;
+            stmts.subList(k, end).clear();
+            stmts.add(k, write);
+            k++;
+        }
+    }
+
+    /**
+     * Return what stmt writes, as it would go between the quotes of a
+     * string literal, or null if it is not a write of a constant.
+     */
+    private static String text(StmtNode stmt) {
+        if (!(stmt instanceof WriteStmtNode)) {
+            return null;
+        }
+        ExpNode exp = (ExpNode)stmt.children().get(0);
+        if (exp instanceof StringLitNode) {
+            String s = ((StringLitNode)exp).strVal();
+            return s.substring(1, s.length() - 1);
+        }
+        Integer value = constant(exp);
+        return value == null ? null : "" + value;
+    }
+
+    /**
+     * Return the value of exp if it is an int or bool made of literals,
+     * else null.
+     */
+    private static Integer constant(ExpNode exp) {
+        if (exp instanceof IntLitNode) {
+            return ((IntLitNode)exp).intVal();
+        }
+        if (exp instanceof TrueNode || exp instanceof FalseNode) {
+            return exp instanceof TrueNode ? 1 : 0;
+        }
+        if (exp instanceof UnaryMinusNode || exp instanceof NotNode) {
+            Integer v = constant(((UnaryExpNode)exp).myExp);
+            if (v == null || v == Integer.MIN_VALUE) {
+                return null;
+            }
+            return exp instanceof NotNode ? (v == 0 ? 1 : 0) : -v;
+        }
+        if (exp instanceof BinaryExpNode) {
+            BinaryExpNode bin = (BinaryExpNode)exp;
+            Integer a = constant(bin.myExp1);
+            Integer b = constant(bin.myExp2);
+            if (a != null && b != null) {
+                return InstrSelector.fold(bin, a, b);
+            }
+        }
+        return null;
+    }
+}
@@ -45,11 +45,13 @@ import java.util.concurrent.TransferQueue;
 //       PostDecStmtNode     ExpNode
 //       ReadStmtNode        ExpNode
 //       WriteStmtNode       ExpNode
-//       IfStmtNode          ExpNode, DeclListNode, StmtListNode
-//       IfElseStmtNode      ExpNode, DeclListNode, StmtListNode,
+//       CondStmtNode:
+//         IfStmtNode        ExpNode, DeclListNode, StmtListNode
+//         IfElseStmtNode    ExpNode, DeclListNode, StmtListNode,
 //                                    DeclListNode, StmtListNode
-//       WhileStmtNode       ExpNode, DeclListNode, StmtListNode
-//       RepeatStmtNode      ExpNode, DeclListNode, StmtListNode
+//       LoopStmtNode:
+//         WhileStmtNode     ExpNode, DeclListNode, StmtListNode
+//         RepeatStmtNode    ExpNode, DeclListNode, StmtListNode
 //       CallStmtNode        CallExpNode
 //       ReturnStmtNode      ExpNode
 //
@@ -117,6 +119,42 @@ abstract class ASTnode {
     protected void addIndent(PrintWriter p, int indent) {
         for (int k=0; k<indent; k++) p.print(" ");
     }
+
+    /**
+     * children
+     * Return the statements and expressions below this node, for passes
+     * that walk the whole tree.  Declared names and types are left out, so
+     * every IdNode reached this way is a use of its name.
+     */
+    public List<ASTnode> children() {
+        return kids();
+    }
+
+    protected static List<ASTnode> kids(ASTnode... nodes) {
+        return new ArrayList<ASTnode>(Arrays.asList(nodes));
+    }
+
+    /**
+     * replaceExp
+     * Put exp in the place of old, an expression child of this node whose
+     * value is used.  The nodes that have such children override this.
+     */
+    public void replaceExp(ExpNode old, ExpNode exp) {
+        System.err.println("Unexpected replaceExp in "
+                           + getClass().getName());
+        System.exit(-1);
+    }
+
+    /**
+     * replaceLoc
+     * Put loc in the place of old, the location this node writes.  The
+     * nodes that write a location override this.
+     */
+    public void replaceLoc(ExpNode old, ExpNode loc) {
+        System.err.println("Unexpected replaceLoc in "
+                           + getClass().getName());
+        System.exit(-1);
+    }
 }
 
 // **********************************************************************
@@ -146,7 +184,94 @@ class ProgramNode extends ASTnode {
         myDeclList.typeCheck();
     }
 
+    /**
+     * setCodeGenOrder
+     * Generate the functions in the given order, and summarize the
+     * registers each one changes except the recursive ones (see
+     * RegisterSummaries); the code is still written out in source order.
+     */
+    public void setCodeGenOrder(List<FnDeclNode> order,
+                                Set<FnSym> recursive) {
+        myCodeGenOrder = order;
+        myRecursive = recursive;
+    }
+
+    /**
+     * Return the register summaries made by codeGen, by label (none if
+     * there is no codegen order).
+     */
+    public Map<String, Set<String>> getCallSummaries() {
+        return myCallSummaries;
+    }
+
+    /**
+     * setNeedsStrcmp
+     * Say whether the strcmp helper (used by string == and !=) has to be
+     * generated.
+     */
+    public void setNeedsStrcmp(boolean needed) {
+        myNeedsStrcmp = needed;
+    }
+
+    public DeclListNode declList() {
+        return myDeclList;
+    }
+
     public void codeGen() {
+        if (myCodeGenOrder == null) {
+            if (myNeedsStrcmp) {
+                genStrcmp();
+            }
+            myDeclList.codeGen();
+            return;
+        }
+
+        // generate each function into its own buffer, callees first, and
+        // record what it changes before its callers are generated
+        PrintWriter out = Codegen.p;
+        Map<ASTnode, String> code = new HashMap<ASTnode, String>();
+        String strcmp = "";
+        if (myNeedsStrcmp) {
+            strcmp = buffer(null);
+            RegisterSummaries.summarize(myCallSummaries, null,
+                                        Arrays.asList("strcmp"), strcmp);
+        }
+        for (FnDeclNode fn : myCodeGenOrder) {
+            String text = buffer(fn);
+            if (!myRecursive.contains(fn.sym())) {
+                RegisterSummaries.summarize(myCallSummaries, fn.sym(),
+                                            fn.codeLabels(), text);
+            }
+            code.put(fn, text);
+        }
+
+        Codegen.p = out;
+        Codegen.p.print(strcmp);
+        for (ASTnode decl : myDeclList.children()) {
+            if (code.containsKey(decl)) {
+                Codegen.p.print(code.get(decl));
+            } else {
+                ((DeclNode)decl).codeGen();
+            }
+        }
+    }
+
+    /**
+     * Return the code for fn (or for strcmp, if fn is null).
+     */
+    private static String buffer(FnDeclNode fn) {
+        StringWriter text = new StringWriter();
+        Codegen.p = new PrintWriter(text);
+        if (fn == null) {
+            genStrcmp();
+        } else {
+            fn.codeGen();
+        }
+        Codegen.p.flush();
+        return text.toString();
+    }
+
+    private static void genStrcmp() {
         Codegen.generate(".text");
         Codegen.genLabel("strcmp");
         Codegen.genPop(Codegen.T0);
@@ -169,15 +294,26 @@ class ProgramNode extends ASTnode {
         Codegen.generate("li", Codegen.T0, 1);
         Codegen.genPush(Codegen.T0);
         Codegen.generate("jr", Codegen.RA);
-        myDeclList.codeGen();
     }
     
+    public List<ASTnode> children() {
+        return kids(myDeclList);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myDeclList.unparse(p, indent);
     }
 
     // 1 kid
     private DeclListNode myDeclList;
+
+    // the order to generate the functions in, or null for source order,
+    // and the functions of it that get no register summary
+    private List<FnDeclNode> myCodeGenOrder;
+    private Set<FnSym> myRecursive;
+    private Map<String, Set<String>> myCallSummaries =
+        new HashMap<String, Set<String>>();
+    private boolean myNeedsStrcmp = true;
 }
 
 class DeclListNode extends ASTnode {
@@ -223,7 +359,19 @@ class DeclListNode extends ASTnode {
             node.codeGen();
         }
     }
+
+    /**
+     * removeDecls
+     * Take the given decls out of the list.
+     */
+    public void removeDecls(Collection<? extends DeclNode> decls) {
+        myDecls.removeAll(decls);
+    }
     
+    public List<ASTnode> children() {
+        return new ArrayList<ASTnode>(myDecls);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator it = myDecls.iterator();
         try {
@@ -263,6 +411,17 @@ class FormalsListNode extends ASTnode {
         return typeList;
     }
 
+    /**
+     * Return the symbols of the formals, in order.
+     */
+    public List<Sym> syms() {
+        List<Sym> syms = new ArrayList<Sym>();
+        for (FormalDeclNode node : myFormals) {
+            syms.add(node.sym());
+        }
+        return syms;
+    }
+
     /**
      * Return the number of formals in this list.
      */
@@ -275,6 +434,10 @@ class FormalsListNode extends ASTnode {
 
     }
 
+    public List<ASTnode> children() {
+        return new ArrayList<ASTnode>(myFormals);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator<FormalDeclNode> it = myFormals.iterator();
         if (it.hasNext()) { // if there is at least one element
@@ -314,6 +477,10 @@ class FnBodyNode extends ASTnode {
         myStmtList.typeCheck(retType);
     }    
           
+    public List<ASTnode> children() {
+        return kids(myDeclList, myStmtList);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myDeclList.unparse(p, indent);
         myStmtList.unparse(p, indent);
@@ -367,6 +534,18 @@ class StmtListNode extends ASTnode {
         }
     }
 
+    /**
+     * Return the statements of the list (not a copy), for passes that add
+     * statements.
+     */
+    public List<StmtNode> stmts() {
+        return myStmts;
+    }
+
+    public List<ASTnode> children() {
+        return new ArrayList<ASTnode>(myStmts);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator<StmtNode> it = myStmts.iterator();
         while (it.hasNext()) {
@@ -386,6 +565,10 @@ class ExpListNode extends ASTnode {
     public int size() {
         return myExps.size();
     }
+
+    public List<ExpNode> exps() {
+        return myExps;
+    }
     
     /**
      * nameAnalysis
@@ -428,6 +611,14 @@ class ExpListNode extends ASTnode {
         }
     }
 
+    public List<ASTnode> children() {
+        return new ArrayList<ASTnode>(myExps);
+    }
+
+    public void replaceExp(ExpNode old, ExpNode exp) {
+        myExps.set(myExps.indexOf(old), exp);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator<ExpNode> it = myExps.iterator();
         if (it.hasNext()) { // if there is at least one element
@@ -555,6 +746,14 @@ class VarDeclNode extends DeclNode {
         return sym;
     }
 
+    public String name() {
+        return myId.name();
+    }
+
+    public Sym sym() {
+        return myId.sym();
+    }
+
     @Override
     public void codeGen() {
         if (myId.sym().isGlobal()) {
@@ -592,6 +791,27 @@ class FnDeclNode extends DeclNode {
         myBody = body;
     }
 
+    /**
+     * Return the name of this function.
+     */
+    public String name() {
+        return myId.name();
+    }
+
+    /**
+     * Return the symbol of this function.
+     */
+    public FnSym sym() {
+        return (FnSym)myId.sym();
+    }
+
+    /**
+     * Return the symbols of the formals, in order.
+     */
+    public List<Sym> formalSyms() {
+        return myFormalsList.syms();
+    }
+
     /**
      * nameAnalysis
      * Given a symbol table symTab, do:
@@ -645,7 +865,7 @@ class FnDeclNode extends DeclNode {
         }
         symTab.resetLocalOffset();
         myBody.nameAnalysis(symTab); // process the function body
-        sym.setTotalLocalSize(-symTab.getLocalOffset() - 8);
+        sym.setTotalLocalSize(-symTab.getLowestLocalOffset() - 8);
         symTab.resetLocalOffset();
         
         try {
@@ -669,14 +889,128 @@ class FnDeclNode extends DeclNode {
         myBody.typeCheck(myType.type());
     }
 
+    /**
+     * codeGen
+     * Generate the function, then its specialized copies (see
+     * ConstantPropagation), each with its params' values set in their
+     * symbols while its body is generated.  A memoized function gets its
+     * table lookup as its entry, and its body under another label.
+     */
     public void codeGen() {
+        if (sym().isMemoized()) {
+            genMemoLookup();
+            codeGen(Memoization.bodyLabel(myId.name()));
+        } else {
+            codeGen(myId.name());
+        }
+        List<Sym> formals = myFormalsList.syms();
+        for (Map.Entry<String, Map<Integer, Integer>> spec
+                 : sym().getSpecializations().entrySet()) {
+            for (Map.Entry<Integer, Integer> c : spec.getValue().entrySet()) {
+                formals.get(c.getKey()).setConstValue(c.getValue());
+            }
+            codeGen(spec.getKey());
+            for (int k : spec.getValue().keySet()) {
+                formals.get(k).setConstValue(null);
+            }
+        }
+    }
+
+    /**
+     * codeLabels
+     * Return the labels codeGen puts code under.
+     */
+    public List<String> codeLabels() {
+        List<String> labels = new ArrayList<String>();
+        labels.add(myId.name());
+        if (sym().isMemoized()) {
+            labels.add(Memoization.bodyLabel(myId.name()));
+        }
+        labels.addAll(sym().getSpecializations().keySet());
+        return labels;
+    }
+
+    /**
+     * genMemoLookup
+     * Generate the entry of a memoized function: hash the args to an
+     * entry of the memo table, and return the value there if the entry
+     * is valid and holds the same args; otherwise call the body and store
+     * the args and its value in the entry.  An entry is four words: the
+     * valid flag, the args (the second is 0 for one param) and the value.
+     */
+    private void genMemoLookup() {
+        String name = myId.name();
+        String table = Memoization.tableLabel(name);
+        String miss = Codegen.nextLabel();
+        int n = myFormalsList.syms().size();
+
+        Codegen.generate(".data");
+        Codegen.generate(".align 2");
+        Codegen.genLabel(table);
+        Codegen.generate(".space " + 16 * Memoization.ENTRIES);
+        Codegen.generate(".text");
+        Codegen.genLabel(name);
+
+        // the args in T0 and T1, and the address of their entry in $t2
+        Codegen.generateIndexed("lw", Codegen.T0, Codegen.SP, 4 * n);
+        if (n == 2) {
+            Codegen.generateIndexed("lw", Codegen.T1, Codegen.SP, 4);
+            Codegen.generate("sll", "$t2", Codegen.T0, 5);    // a * 31 + b
+            Codegen.generate("subu", "$t2", "$t2", Codegen.T0);
+            Codegen.generate("addu", "$t2", "$t2", Codegen.T1);
+        } else {
+            Codegen.generate("li", Codegen.T1, 0);
+            Codegen.generate("move", "$t2", Codegen.T0);
+        }
+        Codegen.generate("andi", "$t2", "$t2", Memoization.ENTRIES - 1);
+        Codegen.generate("sll", "$t2", "$t2", 4);
+        Codegen.generate("la", "$t3", table);
+        Codegen.generate("addu", "$t2", "$t2", "$t3");
+
+        // hit: return the value
+        Codegen.generateIndexed("lw", "$t3", "$t2", 0);
+        Codegen.generate("beq", "$t3", "$zero", miss);
+        Codegen.generateIndexed("lw", "$t3", "$t2", 4);
+        Codegen.generate("bne", "$t3", Codegen.T0, miss);
+        Codegen.generateIndexed("lw", "$t3", "$t2", 8);
+        Codegen.generate("bne", "$t3", Codegen.T1, miss);
+        Codegen.generateIndexed("lw", Codegen.V0, "$t2", 12);
+        Codegen.generate("jr", Codegen.RA);
+
+        // miss: call the body with the same args, then fill the entry
+        Codegen.genLabel(miss);
+        Codegen.genPush(Codegen.RA);
+        Codegen.genPush("$t2");
+        Codegen.genPush(Codegen.T0);
+        if (n == 2) {
+            Codegen.genPush(Codegen.T1);
+        }
+        Codegen.generate("jal", Memoization.bodyLabel(name));
+        Codegen.generateIndexed("lw", Codegen.T0, Codegen.SP, 4 * n);
+        if (n == 2) {
+            Codegen.generateIndexed("lw", Codegen.T1, Codegen.SP, 4);
+        } else {
+            Codegen.generate("li", Codegen.T1, 0);
+        }
+        Codegen.generateIndexed("lw", "$t2", Codegen.SP, 4 * n + 4);
+        Codegen.generateIndexed("lw", Codegen.RA, Codegen.SP, 4 * n + 8);
+        Codegen.generate("addu", Codegen.SP, Codegen.SP, 4 * n + 8);
+        Codegen.generate("li", "$t3", 1);
+        Codegen.generateIndexed("sw", "$t3", "$t2", 0);
+        Codegen.generateIndexed("sw", Codegen.T0, "$t2", 4);
+        Codegen.generateIndexed("sw", Codegen.T1, "$t2", 8);
+        Codegen.generateIndexed("sw", Codegen.V0, "$t2", 12);
+        Codegen.generate("jr", Codegen.RA);
+    }
+
+    private void codeGen(String label) {
         // preambles
         Codegen.generate(".text");
         if (myId.name().equals("main")) {
             //Codegen.generate(".globl", "main");
             Codegen.generate(".globl main");
         }
-        Codegen.genLabel(myId.name());
+        Codegen.genLabel(label);
         if (myId.name().equals("main")) {
             Codegen.genLabel("__start");
         }
@@ -690,11 +1024,26 @@ class FnDeclNode extends DeclNode {
         Codegen.generate("subu", Codegen.SP, Codegen.SP, localSize);
         Codegen.generate("addu", Codegen.FP, Codegen.SP, 8 + localSize);
 
+        // the start of the loop a looped function's recursion becomes
+        if (sym().isLooped()) {
+            String accumulator = sym().getAccumulator();
+            if (accumulator != null) {
+                Codegen.generate("li", Codegen.T0,
+                                 accumulator.equals("mul") ? 1 : 0);
+                Codegen.generateIndexed("sw", Codegen.T0, Codegen.FP,
+                                        sym().getAccumulatorOffset());
+            }
+            String restart = Codegen.nextLabel();
+            Codegen.genLabel(restart);
+            sym().setRestartLabel(restart);
+        }
+
         // function body
-        myBody.codeGen(myId.name());
+        myBody.codeGen(label);
+        sym().setRestartLabel(null);
 
         // epilogue
-        Codegen.genLabel("_" + myId.name() + "_Exit");
+        Codegen.genLabel("_" + label + "_Exit");
         Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, 0);
         Codegen.generate("move", Codegen.T0, Codegen.FP);
         Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -4);
@@ -707,6 +1056,10 @@ class FnDeclNode extends DeclNode {
         }
     }
         
+    public List<ASTnode> children() {
+        return kids(myFormalsList, myBody);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndent(p, indent);
         myType.unparse(p, 0);
@@ -784,6 +1137,13 @@ class FormalDeclNode extends DeclNode {
         return sym;
     }
 
+    /**
+     * Return the symbol of this formal.
+     */
+    public Sym sym() {
+        return myId.sym();
+    }
+
     @Override
     public void typeCheck() {
         super.typeCheck();
@@ -986,6 +1346,136 @@ abstract class StmtNode extends ASTnode {
     abstract public void codeGen(String fnName);
 }
 
+// **********************************************************************
+// CondStmtNode (an if statement) and LoopStmtNode (a loop)
+// **********************************************************************
+
+abstract class CondStmtNode extends StmtNode {
+    /**
+     * Return the condition.
+     */
+    abstract public ExpNode exp();
+
+    /**
+     * setKnown
+     * While value is not null, codeGen generates only the part the
+     * condition picks when it has that value, without testing it (see
+     * LoopStmtNode.codeGen).
+     */
+    public void setKnown(Boolean value) {
+        myKnown = value;
+    }
+
+    /**
+     * lowerAsSwitch
+     * Have codeGen generate the if-else chain headed by this node, whose
+     * tests compare subject with distinct constants (cases.get(k) tests
+     * for values.get(k)), as a jump table or a binary search (see
+     * SwitchLowering).
+     */
+    public void lowerAsSwitch(ExpNode subject, List<CondStmtNode> cases,
+                              List<Integer> values) {
+        mySubject = subject;
+        myCases = cases;
+        myValues = values;
+        for (CondStmtNode branch : cases) {
+            branch.myInSwitch = true;
+        }
+    }
+
+    /**
+     * Return true if this node is part of a chain lowered as a switch.
+     */
+    public boolean inSwitch() {
+        return myInSwitch;
+    }
+
+    /**
+     * codeGen
+     * A known condition (or a true or false literal) generates only the
+     * part it picks, the head of a switch generates the whole chain, and
+     * anything else tests the condition (see genTest).
+     */
+    public void codeGen(String fnName) {
+        Boolean known = myKnown;
+        if (known == null && (exp() instanceof TrueNode
+                              || exp() instanceof FalseNode)) {
+            known = exp() instanceof TrueNode;
+        }
+        if (known != null) {
+            if (known) {
+                genThen(fnName);
+            } else {
+                genElse(fnName);
+            }
+        } else if (myCases != null) {
+            SwitchLowering.gen(mySubject, myCases, myValues, fnName);
+        } else {
+            genTest(fnName);
+        }
+    }
+
+    abstract protected void genTest(String fnName);
+    abstract protected void genThen(String fnName);
+    abstract protected void genElse(String fnName);
+
+    protected Boolean myKnown;
+
+    private ExpNode mySubject;
+    private List<CondStmtNode> myCases;
+    private List<Integer> myValues;
+    private boolean myInSwitch;
+}
+
+abstract class LoopStmtNode extends StmtNode {
+    /**
+     * unswitch
+     * Have codeGen test the condition of branch, an if statement in the
+     * body whose condition the loop doesn't change, once before the loop
+     * instead of on every iteration (see LoopUnswitching).
+     */
+    public void unswitch(CondStmtNode branch) {
+        myUnswitched = branch;
+    }
+
+    public CondStmtNode unswitched() {
+        return myUnswitched;
+    }
+
+    /**
+     * codeGen
+     * An unswitched loop is generated twice, once for each value of the
+     * branch's condition, and the condition is tested in front:
+     *
+     *       if !cond goto else
+     *       <the loop, running only the then part of the branch>
+     *       j after
+     * else: <the loop, running only the else part>
+     * after:
+     */
+    public void codeGen(String fnName) {
+        if (myUnswitched == null) {
+            genLoop(fnName);
+            return;
+        }
+        String elseLabel = Codegen.nextLabel();
+        String afterLabel = Codegen.nextLabel();
+        InstrSelector.genBranch(myUnswitched.exp(), false, elseLabel);
+        myUnswitched.setKnown(true);
+        genLoop(fnName);
+        Codegen.generate("j", afterLabel);
+        Codegen.genLabel(elseLabel);
+        myUnswitched.setKnown(false);
+        genLoop(fnName);
+        myUnswitched.setKnown(null);
+        Codegen.genLabel(afterLabel);
+    }
+
+    abstract protected void genLoop(String fnName);
+
+    private CondStmtNode myUnswitched;
+}
+
 class AssignStmtNode extends StmtNode {
     public AssignStmtNode(AssignNode assign) {
         myAssign = assign;
@@ -1011,6 +1501,10 @@ class AssignStmtNode extends StmtNode {
         Codegen.genPop(Codegen.T0);
     }
 
+    public List<ASTnode> children() {
+        return kids(myAssign);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndent(p, indent);
         myAssign.unparse(p, -1); // no parentheses
@@ -1026,6 +1520,13 @@ class PostIncStmtNode extends StmtNode {
         myExp = exp;
     }
     
+    /**
+     * Return the location this statement writes.
+     */
+    public ExpNode exp() {
+        return myExp;
+    }
+
     /**
      * nameAnalysis
      * Given a symbol table symTab, perform name analysis on this node's child
@@ -1047,6 +1548,13 @@ class PostIncStmtNode extends StmtNode {
     }
 
     public void codeGen(String fnName) {
+        String addr = myExp.directAddress();
+        if (addr != null) {
+            Codegen.generate("lw", Codegen.T0, addr);
+            Codegen.generate("addi", Codegen.T0, Codegen.T0, 1);
+            Codegen.generate("sw", Codegen.T0, addr);
+            return;
+        }
         myExp.codeGen(1);
         myExp.codeGen(0);
         Codegen.genPop(Codegen.T0);
@@ -1056,6 +1564,16 @@ class PostIncStmtNode extends StmtNode {
         Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0);
     }
 
+    public void replaceLoc(ExpNode old, ExpNode loc) {
+        if (myExp == old) {
+            myExp = loc;
+        }
+    }
+
+    public List<ASTnode> children() {
+        return kids(myExp);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndent(p, indent);
         myExp.unparse(p, 0);
@@ -1071,6 +1589,13 @@ class PostDecStmtNode extends StmtNode {
         myExp = exp;
     }
 
+    /**
+     * Return the location this statement writes.
+     */
+    public ExpNode exp() {
+        return myExp;
+    }
+
     /**
      * nameAnalysis
      * Given a symbol table symTab, perform name analysis on this node's child
@@ -1092,6 +1617,13 @@ class PostDecStmtNode extends StmtNode {
     }
 
     public void codeGen(String fnName) {
+        String addr = myExp.directAddress();
+        if (addr != null) {
+            Codegen.generate("lw", Codegen.T0, addr);
+            Codegen.generate("addi", Codegen.T0, Codegen.T0, -1);
+            Codegen.generate("sw", Codegen.T0, addr);
+            return;
+        }
         myExp.codeGen(1);
         myExp.codeGen(0);
         Codegen.genPop(Codegen.T0);
@@ -1101,6 +1633,16 @@ class PostDecStmtNode extends StmtNode {
         Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0);
     }
 
+    public void replaceLoc(ExpNode old, ExpNode loc) {
+        if (myExp == old) {
+            myExp = loc;
+        }
+    }
+
+    public List<ASTnode> children() {
+        return kids(myExp);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndent(p, indent);
         myExp.unparse(p, 0);
@@ -1116,6 +1658,13 @@ class ReadStmtNode extends StmtNode {
         myExp = e;
     }
 
+    /**
+     * Return the location this statement writes.
+     */
+    public ExpNode exp() {
+        return myExp;
+    }
+
     /**
      * nameAnalysis
      * Given a symbol table symTab, perform name analysis on this node's child
@@ -1154,6 +1703,16 @@ class ReadStmtNode extends StmtNode {
         Codegen.generateIndexed("sw", Codegen.V0, Codegen.T0, 0);
     }
 
+    public void replaceLoc(ExpNode old, ExpNode loc) {
+        if (myExp == old) {
+            myExp = loc;
+        }
+    }
+
+    public List<ASTnode> children() {
+        return kids(myExp);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndent(p, indent);
         p.print("cin >> ");
@@ -1206,19 +1765,29 @@ class WriteStmtNode extends StmtNode {
     }
 
     public void codeGen(String fnName) {
-        myExp.codeGen(0);
         if (myType.isIntType() || myType.isBoolType()) {
-            Codegen.genPop(Codegen.A0);
+            InstrSelector.gen(myExp, Codegen.A0);
             Codegen.generate("li", Codegen.V0, 1);
             Codegen.generate("syscall");
         }
         if (myType.isStringType()) {
+            myExp.codeGen(0);
             Codegen.genPop(Codegen.A0);
             Codegen.generate("li", Codegen.V0, 4);
             Codegen.generate("syscall");
         }
     }
 
+    public List<ASTnode> children() {
+        return kids(myExp);
+    }
+
+    public void replaceExp(ExpNode old, ExpNode exp) {
+        if (myExp == old) {
+            myExp = exp;
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndent(p, indent);
         p.print("cout << ");
@@ -1232,7 +1801,7 @@ class WriteStmtNode extends StmtNode {
     private Type myType;
 }
 
-class IfStmtNode extends StmtNode {
+class IfStmtNode extends CondStmtNode {
     public IfStmtNode(ExpNode exp, DeclListNode dlist, StmtListNode slist) {
         myDeclList = dlist;
         myExp = exp;
@@ -1275,15 +1844,33 @@ class IfStmtNode extends StmtNode {
         myStmtList.typeCheck(retType);
     }
 
-    public void codeGen(String fnName) {
-        myExp.codeGen(0);
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("li", Codegen.T1, 1);
+    protected void genTest(String fnName) {
         String label = Codegen.nextLabel();
-        Codegen.generate("bne", Codegen.T0, Codegen.T1, label);
+        InstrSelector.genBranch(myExp, false, label);
+        genThen(fnName);
+        Codegen.genLabel(label);
+    }
+
+    protected void genThen(String fnName) {
         myDeclList.codeGen();
         myStmtList.codeGen(fnName);
-        Codegen.genLabel(label);
+    }
+
+    protected void genElse(String fnName) {
+    }
+
+    public ExpNode exp() {
+        return myExp;
+    }
+
+    public List<ASTnode> children() {
+        return kids(myExp, myDeclList, myStmtList);
+    }
+
+    public void replaceExp(ExpNode old, ExpNode exp) {
+        if (myExp == old) {
+            myExp = exp;
+        }
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1303,7 +1890,7 @@ class IfStmtNode extends StmtNode {
     private StmtListNode myStmtList;
 }
 
-class IfElseStmtNode extends StmtNode {
+class IfElseStmtNode extends CondStmtNode {
     public IfElseStmtNode(ExpNode exp, DeclListNode dlist1,
                           StmtListNode slist1, DeclListNode dlist2,
                           StmtListNode slist2) {
@@ -1364,20 +1951,53 @@ class IfElseStmtNode extends StmtNode {
         myElseStmtList.typeCheck(retType);
     }
 
-    public void codeGen(String fnName) {
-        myExp.codeGen(0);
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("li", Codegen.T1, 1);
+    protected void genTest(String fnName) {
         String elseLabel = Codegen.nextLabel();
         String afterLabel = Codegen.nextLabel();
-        Codegen.generate("bne", Codegen.T0, Codegen.T1, elseLabel);
-        myThenDeclList.codeGen();
-        myThenStmtList.codeGen(fnName);
+        InstrSelector.genBranch(myExp, false, elseLabel);
+        genThen(fnName);
         Codegen.generate("j", afterLabel);
         Codegen.genLabel(elseLabel);
+        genElse(fnName);
+        Codegen.genLabel(afterLabel);
+    }
+
+    protected void genThen(String fnName) {
+        myThenDeclList.codeGen();
+        myThenStmtList.codeGen(fnName);
+    }
+
+    protected void genElse(String fnName) {
         myElseDeclList.codeGen();
         myElseStmtList.codeGen(fnName);
-        Codegen.genLabel(afterLabel);
+    }
+
+    public ExpNode exp() {
+        return myExp;
+    }
+
+    /**
+     * Return the if statement that is all of the else part ("else if"),
+     * or null if the else part is anything else.
+     */
+    public CondStmtNode elseIf() {
+        List<ASTnode> stmts = myElseStmtList.children();
+        if (!myElseDeclList.children().isEmpty() || stmts.size() != 1
+            || !(stmts.get(0) instanceof CondStmtNode)) {
+            return null;
+        }
+        return (CondStmtNode)stmts.get(0);
+    }
+
+    public List<ASTnode> children() {
+        return kids(myExp, myThenDeclList, myThenStmtList,
+                    myElseDeclList, myElseStmtList);
+    }
+
+    public void replaceExp(ExpNode old, ExpNode exp) {
+        if (myExp == old) {
+            myExp = exp;
+        }
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1405,7 +2025,7 @@ class IfElseStmtNode extends StmtNode {
     private DeclListNode myElseDeclList;
 }
 
-class WhileStmtNode extends StmtNode {
+class WhileStmtNode extends LoopStmtNode {
     public WhileStmtNode(ExpNode exp, DeclListNode dlist, StmtListNode slist) {
         myExp = exp;
         myDeclList = dlist;
@@ -1433,33 +2053,86 @@ class WhileStmtNode extends StmtNode {
             System.exit(-1);        
         }
     }
-    
+    
+    /**
+     * typeCheck
+     */
+    public void typeCheck(Type retType) {
+        Type type = myExp.typeCheck();
+        
+        if (!type.isErrorType() && !type.isBoolType()) {
+            ErrMsg.fatal(myExp.lineNum(), myExp.charNum(),
+                         "Non-bool expression used as a while condition");        
+        }
+        
+        myStmtList.typeCheck(retType);
+    }
+
+    /**
+     * genLoop
+     * The loop is rotated so the condition is tested at the bottom, with
+     * one backward branch per iteration:
+     *
+     *       if !cond goto after     or          j     test
+     * loop: <body>                        loop: <body>
+     *       if cond goto loop             test: if cond goto loop
+     * after:                              after:
+     *
+     * The first form (which saves the jump into the loop) copies the
+     * test, so it is only used when the test is short.
+     */
+    protected void genLoop(String fnName) {
+        String loopLabel = Codegen.nextLabel();
+        String afterLabel = Codegen.nextLabel();
+
+        // generate the test aside to find out how long it is
+        PrintWriter out = Codegen.p;
+        StringWriter test = new StringWriter();
+        Codegen.p = new PrintWriter(test);
+        InstrSelector.genBranch(myExp, false, afterLabel);
+        Codegen.p.flush();
+        Codegen.p = out;
+
+        String testLabel = null;
+        if (countInstrs(test.toString()) <= MAX_COPIED_TEST) {
+            Codegen.p.print(test.toString());
+        } else {
+            testLabel = Codegen.nextLabel();
+            Codegen.generate("j", testLabel);
+        }
+
+        Codegen.genLabel(loopLabel);
+        myDeclList.codeGen();
+        myStmtList.codeGen(fnName);
+
+        if (testLabel != null) {
+            Codegen.genLabel(testLabel);
+        }
+        InstrSelector.genBranch(myExp, true, loopLabel);
+        Codegen.genLabel(afterLabel);
+    }
+
     /**
-     * typeCheck
+     * Return the number of instructions in the given generated code.
      */
-    public void typeCheck(Type retType) {
-        Type type = myExp.typeCheck();
-        
-        if (!type.isErrorType() && !type.isBoolType()) {
-            ErrMsg.fatal(myExp.lineNum(), myExp.charNum(),
-                         "Non-bool expression used as a while condition");        
+    private static int countInstrs(String code) {
+        int count = 0;
+        for (String line : code.split("\n")) {
+            if (line.startsWith("\t") && !line.startsWith("\t.")) {
+                count++;
+            }
         }
-        
-        myStmtList.typeCheck(retType);
+        return count;
     }
 
-    public void codeGen(String fnName) {
-        myExp.codeGen(0);
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("li", Codegen.T1, 1);
-        String whileLabel = Codegen.nextLabel();
-        String afterLabel = Codegen.nextLabel();
-        Codegen.genLabel(whileLabel);
-        Codegen.generate("bne", Codegen.T0, Codegen.T1, afterLabel);
-        myDeclList.codeGen();
-        myStmtList.codeGen(fnName);
-        Codegen.generate("j", whileLabel);
-        Codegen.genLabel(afterLabel);
+    public List<ASTnode> children() {
+        return kids(myExp, myDeclList, myStmtList);
+    }
+
+    public void replaceExp(ExpNode old, ExpNode exp) {
+        if (myExp == old) {
+            myExp = exp;
+        }
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1477,9 +2150,12 @@ class WhileStmtNode extends StmtNode {
     private ExpNode myExp;
     private DeclListNode myDeclList;
     private StmtListNode myStmtList;
+
+    // the longest test (in instructions) that is copied in front of a loop
+    private static final int MAX_COPIED_TEST = 24;
 }
 
-class RepeatStmtNode extends StmtNode {
+class RepeatStmtNode extends LoopStmtNode {
     public RepeatStmtNode(ExpNode exp, DeclListNode dlist, StmtListNode slist) {
         myExp = exp;
         myDeclList = dlist;
@@ -1489,14 +2165,17 @@ class RepeatStmtNode extends StmtNode {
     /**
      * nameAnalysis
      * Given a symbol table symTab, do:
-     * - process the condition
+     * - process the count
      * - enter a new scope
+     * - take a local slot for the count of iterations left
      * - process the decls and stmts
      * - exit the scope
      */
     public void nameAnalysis(SymTable symTab) {
         myExp.nameAnalysis(symTab);
         symTab.addScope();
+        myCountOffset = symTab.getLocalOffset();
+        symTab.updateLocalOffset();
         myDeclList.nameAnalysis(symTab);
         myStmtList.nameAnalysis(symTab);
         try {
@@ -1522,8 +2201,44 @@ class RepeatStmtNode extends StmtNode {
         myStmtList.typeCheck(retType);
     }
 
-    public void codeGen(String fnName) {
+    /**
+     * genLoop
+     * The count is evaluated once, into the slot taken by nameAnalysis,
+     * and the body runs while what is left of it is positive:
+     *
+     *       left = count
+     *       if left <= 0 goto after
+     * loop: <body>
+     *       left = left - 1
+     *       if left > 0 goto loop
+     * after:
+     */
+    protected void genLoop(String fnName) {
+        String loopLabel = Codegen.nextLabel();
+        String afterLabel = Codegen.nextLabel();
+        String left = myCountOffset + "(" + Codegen.FP + ")";
+
+        InstrSelector.gen(myExp, Codegen.T0);
+        Codegen.generate("sw", Codegen.T0, left);
+        Codegen.generate("blez", Codegen.T0, afterLabel);
+        Codegen.genLabel(loopLabel);
+        myDeclList.codeGen();
+        myStmtList.codeGen(fnName);
+        Codegen.generate("lw", Codegen.T0, left);
+        Codegen.generate("addi", Codegen.T0, Codegen.T0, -1);
+        Codegen.generate("sw", Codegen.T0, left);
+        Codegen.generate("bgtz", Codegen.T0, loopLabel);
+        Codegen.genLabel(afterLabel);
+    }
+
+    public List<ASTnode> children() {
+        return kids(myExp, myDeclList, myStmtList);
+    }
 
+    public void replaceExp(ExpNode old, ExpNode exp) {
+        if (myExp == old) {
+            myExp = exp;
+        }
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1541,6 +2256,8 @@ class RepeatStmtNode extends StmtNode {
     private ExpNode myExp;
     private DeclListNode myDeclList;
     private StmtListNode myStmtList;
+
+    private int myCountOffset;     // of the iterations left, from $fp
 }
 
 
@@ -1569,6 +2286,10 @@ class CallStmtNode extends StmtNode {
         //Codegen.genPop(Codegen.T0);
     }
 
+    public List<ASTnode> children() {
+        return kids(myCall);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndent(p, indent);
         myCall.unparse(p, indent);
@@ -1583,6 +2304,26 @@ class ReturnStmtNode extends StmtNode {
     public ReturnStmtNode(ExpNode exp) {
         myExp = exp;
     }
+
+    /**
+     * Return the returned expression, or null.
+     */
+    public ExpNode exp() {
+        return myExp;
+    }
+
+    /**
+     * accumulate
+     * Mark this as a return of fn, a function whose recursion is made a
+     * loop (see AccumulatorRecursion).  call is the recursive call whose
+     * value this returns, combined with operand (null for a tail call),
+     * or null if this returns some other value.
+     */
+    public void accumulate(FnDeclNode fn, CallExpNode call, ExpNode operand) {
+        myFn = fn;
+        myCall = call;
+        myOperand = operand;
+    }
     
     /**
      * nameAnalysis
@@ -1621,14 +2362,84 @@ class ReturnStmtNode extends StmtNode {
         
     }
 
+    /**
+     * codeGen
+     * In a looped function, a return of a recursive call jumps back to
+     * the start (see genRestart), and any other value is returned folded
+     * into the accumulator.
+     */
     public void codeGen(String fnName) {
+        FnSym fn = myFn == null ? null : myFn.sym();
+        String restart = fn == null ? null : fn.getRestartLabel();
+        if (restart != null && myCall != null && genRestart(restart)) {
+            return;
+        }
         if (myExp != null) {
-            myExp.codeGen(0);
-            Codegen.genPop(Codegen.V0);
+            InstrSelector.gen(myExp, Codegen.V0);
+            if (restart != null && fn.getAccumulator() != null) {
+                Codegen.generateIndexed("lw", Codegen.T0, Codegen.FP,
+                                        fn.getAccumulatorOffset());
+                Codegen.generate(fn.getAccumulator(), Codegen.V0,
+                                 Codegen.T0, Codegen.V0);
+            }
         }
         Codegen.generate("j", "_" + fnName + "_Exit");
     }
 
+    /**
+     * genRestart
+     * Generate the recursive call as a jump to restart: fold the operand
+     * into the accumulator and store the args in the params.  Return
+     * false (and generate nothing) if the code being generated is a
+     * specialized copy whose constant params the call changes.
+     */
+    private boolean genRestart(String restart) {
+        FnSym fn = myFn.sym();
+        List<Sym> params = myFn.formalSyms();
+        List<ExpNode> args = myCall.args();
+        for (int k = 0; k < params.size(); k++) {
+            Integer value = params.get(k).getConstValue();
+            if (value != null
+                && !value.equals(ConstantPropagation.valueOf(args.get(k),
+                                     new HashMap<Sym, Integer>()))) {
+                return false;
+            }
+        }
+
+        if (myOperand != null) {
+            String acc = fn.getAccumulatorOffset() + "(" + Codegen.FP + ")";
+            InstrSelector.gen(myOperand, Codegen.T0);
+            Codegen.generate("lw", Codegen.T1, acc);
+            Codegen.generate(fn.getAccumulator(), Codegen.T1, Codegen.T1,
+                             Codegen.T0);
+            Codegen.generate("sw", Codegen.T1, acc);
+        }
+        for (int k = 0; k < params.size(); k++) {
+            if (params.get(k).getConstValue() == null) {
+                InstrSelector.genPush(args.get(k));
+            }
+        }
+        for (int k = params.size() - 1; k >= 0; k--) {
+            if (params.get(k).getConstValue() == null) {
+                Codegen.genPop(Codegen.T0);
+                Codegen.generateIndexed("sw", Codegen.T0, Codegen.FP,
+                                        params.get(k).getOffset());
+            }
+        }
+        Codegen.generate("j", restart);
+        return true;
+    }
+
+    public List<ASTnode> children() {
+        return myExp == null ? kids() : kids(myExp);
+    }
+
+    public void replaceExp(ExpNode old, ExpNode exp) {
+        if (myExp == old) {
+            myExp = exp;
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndent(p, indent);
         p.print("return");
@@ -1641,6 +2452,11 @@ class ReturnStmtNode extends StmtNode {
 
     // 1 kid
     private ExpNode myExp; // possibly null
+
+    // set by accumulate
+    private FnDeclNode myFn;
+    private CallExpNode myCall;
+    private ExpNode myOperand;
 }
 
 // **********************************************************************
@@ -1660,6 +2476,16 @@ abstract class ExpNode extends ASTnode {
 
     abstract public String codeGen(int flag);
 
+    /**
+     * directAddress
+     * Return the operand that addresses this location directly in a lw or
+     * sw ("offset($fp)" for a local, the label for a global), or null if
+     * its address has to be computed with codeGen(1).
+     */
+    public String directAddress() {
+        return null;
+    }
+
     abstract public Type typeCheck();
     abstract public int lineNum();
     abstract public int charNum();
@@ -1685,6 +2511,13 @@ class IntLitNode extends ExpNode {
     public int charNum() {
         return myCharNum;
     }
+
+    /**
+     * Return the value of this literal.
+     */
+    public int intVal() {
+        return myIntVal;
+    }
         
     /**
      * typeCheck
@@ -1730,6 +2563,13 @@ class StringLitNode extends ExpNode {
         return myCharNum;
     }
     
+    /**
+     * Return the literal as written, with its quotes and escapes.
+     */
+    public String strVal() {
+        return myStrVal;
+    }
+
     /**
      * typeCheck
      */
@@ -1911,18 +2751,19 @@ class IdNode extends ExpNode {
                 Codegen.genPush(Codegen.T0);
             }
         } else {
-            if (mySym.isGlobal()) {
-                Codegen.generate("la", Codegen.T0, myStrVal);
-                Codegen.generateIndexed("lw", Codegen.T0, Codegen.T0, 0);
-                Codegen.genPush(Codegen.T0);
-            } else {
-                Codegen.generateIndexed("lw", Codegen.T0, Codegen.FP, mySym.getOffset());
-                Codegen.genPush(Codegen.T0);
-            }
+            Codegen.generate("lw", Codegen.T0, directAddress());
+            Codegen.genPush(Codegen.T0);
         }
         return null;
     }
 
+    public String directAddress() {
+        if (mySym.isGlobal()) {
+            return myStrVal;
+        }
+        return mySym.getOffset() + "(" + Codegen.FP + ")";
+    }
+
     /**
      * typeCheck
      */
@@ -1967,6 +2808,20 @@ class DotAccessExpNode extends ExpNode {
     public Sym sym() {
         return mySym;
     }    
+
+    /**
+     * Return the struct whose field is accessed.
+     */
+    public ExpNode loc() {
+        return myLoc;
+    }
+
+    /**
+     * Return the name of the field, linked to the field's symbol.
+     */
+    public IdNode field() {
+        return myId;
+    }
     
     /**
      * Return the line number for this dot-access node. 
@@ -2091,6 +2946,10 @@ class DotAccessExpNode extends ExpNode {
         return null;
     }
 
+    public List<ASTnode> children() {
+        return kids(myLoc);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myLoc.unparse(p, 0);
         p.print(".");
@@ -2110,6 +2969,13 @@ class AssignNode extends ExpNode {
         myExp = exp;
     }
     
+    /**
+     * Return the location assigned to.
+     */
+    public ExpNode lhs() {
+        return myLhs;
+    }
+
     /**
      * Return the line number for this assignment node. 
      * The line number is the one corresponding to the left operand.
@@ -2173,16 +3039,38 @@ class AssignNode extends ExpNode {
 
     @Override
     public String codeGen(int flag) {
-        myExp.codeGen(0);
-        myLhs.codeGen(1);
-        Codegen.genPop(Codegen.T1);
-        Codegen.genPop(Codegen.T0);
-        Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0);
+        String addr = myLhs.directAddress();
+        if (addr != null) {
+            InstrSelector.gen(myExp, Codegen.T0);
+            Codegen.generate("sw", Codegen.T0, addr);
+        } else {
+            myExp.codeGen(0);
+            myLhs.codeGen(1);
+            Codegen.genPop(Codegen.T1);
+            Codegen.genPop(Codegen.T0);
+            Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0);
+        }
         Codegen.generate("li", Codegen.T0, 1);
         Codegen.genPush(Codegen.T0);
         return null;
     }
 
+    public List<ASTnode> children() {
+        return kids(myLhs, myExp);
+    }
+
+    public void replaceExp(ExpNode old, ExpNode exp) {
+        if (myExp == old) {
+            myExp = exp;
+        }
+    }
+
+    public void replaceLoc(ExpNode old, ExpNode loc) {
+        if (myLhs == old) {
+            myLhs = loc;
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         if (indent != -1)  p.print("(");
         myLhs.unparse(p, 0);
@@ -2207,6 +3095,27 @@ class CallExpNode extends ExpNode {
         myExpList = new ExpListNode(new LinkedList<ExpNode>());
     }
 
+    /**
+     * Return the name of the called function.
+     */
+    public String fnName() {
+        return myId.name();
+    }
+
+    /**
+     * Return the symbol of the called function.
+     */
+    public FnSym fnSym() {
+        return (FnSym)myId.sym();
+    }
+
+    /**
+     * Return the actual parameters.
+     */
+    public List<ExpNode> args() {
+        return myExpList.exps();
+    }
+
     /**
      * Return the line number for this call node. 
      * The line number is the one corresponding to the function name.
@@ -2265,12 +3174,20 @@ class CallExpNode extends ExpNode {
         if (myExpList != null) {
             myExpList.codeGen();
         }
-        myId.codeGen(2);
+        Codegen.generate("jal", ConstantPropagation.callTarget(this));
+        if (myExpList.size() > 0) {
+            // pop the args
+            Codegen.generate("addu", Codegen.SP, Codegen.SP, 4 * myExpList.size());
+        }
         Codegen.genPush(Codegen.V0);
         return null;
     }
 
     // ** unparse **
+    public List<ASTnode> children() {
+        return kids(myId, myExpList);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myId.unparse(p, 0);
         p.print("(");
@@ -2314,6 +3231,16 @@ abstract class UnaryExpNode extends ExpNode {
         myExp.nameAnalysis(symTab);
     }
     
+    public List<ASTnode> children() {
+        return kids(myExp);
+    }
+
+    public void replaceExp(ExpNode old, ExpNode exp) {
+        if (myExp == old) {
+            myExp = exp;
+        }
+    }
+
     // one child
     protected ExpNode myExp;
 }
@@ -2350,6 +3277,19 @@ abstract class BinaryExpNode extends ExpNode {
         myExp2.nameAnalysis(symTab);
     }
     
+    public List<ASTnode> children() {
+        return kids(myExp1, myExp2);
+    }
+
+    public void replaceExp(ExpNode old, ExpNode exp) {
+        if (myExp1 == old) {
+            myExp1 = exp;
+        }
+        if (myExp2 == old) {
+            myExp2 = exp;
+        }
+    }
+
     // two kids
     protected ExpNode myExp1;
     protected ExpNode myExp2;
@@ -2386,11 +3326,7 @@ class UnaryMinusNode extends UnaryExpNode {
 
     @Override
     public String codeGen(int flag) {
-        myExp.codeGen(0);
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("li", Codegen.T1, 0);
-        Codegen.generate("sub", Codegen.T0, Codegen.T1, Codegen.T0);
-        Codegen.genPush(Codegen.T0);
+        InstrSelector.genPush(this);
         return null;
     }
 
@@ -2428,12 +3364,7 @@ class NotNode extends UnaryExpNode {
 
     @Override
     public String codeGen(int flag) {
-        myExp.codeGen(0);
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("li", Codegen.T1, 1);
-        Codegen.generate("subu", Codegen.T0, Codegen.T1, Codegen.T0);
-        //Codegen.generate("not", Codegen.T0, Codegen.T0);
-        Codegen.genPush(Codegen.T0);
+        InstrSelector.genPush(this);
         return null;
     }
 
@@ -2605,12 +3536,7 @@ class PlusNode extends ArithmeticExpNode {
 
     @Override
     public String codeGen(int flag) {
-        myExp2.codeGen(0);
-        myExp1.codeGen(0);
-        Codegen.genPop(Codegen.T0);
-        Codegen.genPop(Codegen.T1);
-        Codegen.generate("add", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+        InstrSelector.genPush(this);
         return null;
     }
 
@@ -2630,12 +3556,7 @@ class MinusNode extends ArithmeticExpNode {
 
     @Override
     public String codeGen(int flag) {
-        myExp2.codeGen(0);
-        myExp1.codeGen(0);
-        Codegen.genPop(Codegen.T0);
-        Codegen.genPop(Codegen.T1);
-        Codegen.generate("sub", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+        InstrSelector.genPush(this);
         return null;
     }
 
@@ -2655,13 +3576,7 @@ class TimesNode extends ArithmeticExpNode {
 
     @Override
     public String codeGen(int flag) {
-        myExp2.codeGen(0);
-        myExp1.codeGen(0);
-        Codegen.genPop(Codegen.T0);
-        Codegen.genPop(Codegen.T1);
-        Codegen.generate("mult", Codegen.T0, Codegen.T1);
-        Codegen.generate("mflo", Codegen.T0);
-        Codegen.genPush(Codegen.T0);
+        InstrSelector.genPush(this);
         return null;
     }
 
@@ -2679,15 +3594,22 @@ class DivideNode extends ArithmeticExpNode {
         super(exp1, exp2);
     }
 
+    /**
+     * setNonNegative
+     * Record that the dividend is never negative (see ValueRanges), so
+     * that a division by a power of two can be a shift.
+     */
+    public void setNonNegative() {
+        myNonNegative = true;
+    }
+
+    public boolean isNonNegative() {
+        return myNonNegative;
+    }
+
     @Override
     public String codeGen(int flag) {
-        myExp2.codeGen(0);
-        myExp1.codeGen(0);
-        Codegen.genPop(Codegen.T0);
-        Codegen.genPop(Codegen.T1);
-        Codegen.generate("div", Codegen.T0, Codegen.T1);
-        Codegen.generate("mflo", Codegen.T0);
-        Codegen.genPush(Codegen.T0);
+        InstrSelector.genPush(this);
         return null;
     }
 
@@ -2698,6 +3620,8 @@ class DivideNode extends ArithmeticExpNode {
         myExp2.unparse(p, 0);
         p.print(")");
     }
+
+    private boolean myNonNegative;
 }
 
 class AndNode extends LogicalExpNode {
@@ -2707,20 +3631,7 @@ class AndNode extends LogicalExpNode {
 
     @Override
     public String codeGen(int flag) {
-        myExp1.codeGen(0);
-        String shortLabel = Codegen.nextLabel();
-        String afterLabel = Codegen.nextLabel();
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("li", Codegen.T1, 1);
-        Codegen.generate("bne", Codegen.T0, Codegen.T1, shortLabel);
-        myExp2.codeGen(0);
-        Codegen.genPop(Codegen.T1);
-        Codegen.generate("and", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
-        Codegen.generate("j", afterLabel);
-        Codegen.genLabel(shortLabel);
-        Codegen.genPush(Codegen.T0);
-        Codegen.genLabel(afterLabel);
+        InstrSelector.genPush(this);
         return null;
     }
 
@@ -2740,20 +3651,7 @@ class OrNode extends LogicalExpNode {
 
     @Override
     public String codeGen(int flag) {
-        myExp1.codeGen(0);
-        String shortLabel = Codegen.nextLabel();
-        String afterLabel = Codegen.nextLabel();
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("li", Codegen.T1, 0);
-        Codegen.generate("bne", Codegen.T0, Codegen.T1, shortLabel);
-        myExp2.codeGen(0);
-        Codegen.genPop(Codegen.T1);
-        Codegen.generate("or", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
-        Codegen.generate("j", afterLabel);
-        Codegen.genLabel(shortLabel);
-        Codegen.genPush(Codegen.T0);
-        Codegen.genLabel(afterLabel);
+        InstrSelector.genPush(this);
         return null;
     }
 
@@ -2773,6 +3671,11 @@ class EqualsNode extends EqualityExpNode {
 
     @Override
     public String codeGen(int flag) {
+        if (!(myExp1 instanceof StringLitNode)
+            && !(myExp2 instanceof StringLitNode)) {
+            InstrSelector.genPush(this);
+            return null;
+        }
         String s2 = myExp2.codeGen(0);
         String s1 = myExp1.codeGen(0);
         if (s1 != null) {
@@ -2809,6 +3712,11 @@ class NotEqualsNode extends EqualityExpNode {
 
     @Override
     public String codeGen(int flag) {
+        if (!(myExp1 instanceof StringLitNode)
+            && !(myExp2 instanceof StringLitNode)) {
+            InstrSelector.genPush(this);
+            return null;
+        }
         String s2 = myExp2.codeGen(0);
         String s1 = myExp1.codeGen(0);
         if (s1 != null) {
@@ -2850,22 +3758,7 @@ class LessNode extends RelationalExpNode {
 
     @Override
     public String codeGen(int flag) {
-        String s2 = myExp2.codeGen(0);
-        String s1 = myExp1.codeGen(0);
-        Codegen.genPop(Codegen.T0);
-        Codegen.genPop(Codegen.T1);
-        if (s1 != null) {
-            if (s1.compareTo(s2) < 0) {
-                Codegen.generate("li", Codegen.T0, 1);
-                Codegen.genPush(Codegen.T0);
-            } else {
-                Codegen.generate("li", Codegen.T0, 0);
-                Codegen.genPush(Codegen.T0);
-            }
-        } else {
-            Codegen.generate("slt", Codegen.T0, Codegen.T0, Codegen.T1);
-            Codegen.genPush(Codegen.T0);
-        }
+        InstrSelector.genPush(this);
         return null;
     }
 
@@ -2885,22 +3778,7 @@ class GreaterNode extends RelationalExpNode {
 
     @Override
     public String codeGen(int flag) {
-        String s2 = myExp2.codeGen(0);
-        String s1 = myExp1.codeGen(0);
-        Codegen.genPop(Codegen.T0);
-        Codegen.genPop(Codegen.T1);
-        if (s1 != null) {
-            if (s1.compareTo(s2) > 0) {
-                Codegen.generate("li", Codegen.T0, 1);
-                Codegen.genPush(Codegen.T0);
-            } else {
-                Codegen.generate("li", Codegen.T0, 0);
-                Codegen.genPush(Codegen.T0);
-            }
-        } else {
-            Codegen.generate("sgt", Codegen.T0, Codegen.T0, Codegen.T1);
-            Codegen.genPush(Codegen.T0);
-        }
+        InstrSelector.genPush(this);
         return null;
     }
 
@@ -2920,22 +3798,7 @@ class LessEqNode extends RelationalExpNode {
 
     @Override
     public String codeGen(int flag) {
-        String s2 = myExp2.codeGen(0);
-        String s1 = myExp1.codeGen(0);
-        Codegen.genPop(Codegen.T0);
-        Codegen.genPop(Codegen.T1);
-        if (s1 != null) {
-            if (s1.compareTo(s2) <= 0) {
-                Codegen.generate("li", Codegen.T0, 1);
-                Codegen.genPush(Codegen.T0);
-            } else {
-                Codegen.generate("li", Codegen.T0, 0);
-                Codegen.genPush(Codegen.T0);
-            }
-        } else {
-            Codegen.generate("sle", Codegen.T0, Codegen.T0, Codegen.T1);
-            Codegen.genPush(Codegen.T0);
-        }
+        InstrSelector.genPush(this);
         return null;
     }
 
@@ -2955,22 +3818,7 @@ class GreaterEqNode extends RelationalExpNode {
 
     @Override
     public String codeGen(int flag) {
-        String s2 = myExp2.codeGen(0);
-        String s1 = myExp1.codeGen(0);
-        Codegen.genPop(Codegen.T0);
-        Codegen.genPop(Codegen.T1);
-        if (s1 != null) {
-            if (s1.compareTo(s2) >= 0) {
-                Codegen.generate("li", Codegen.T0, 1);
-                Codegen.genPush(Codegen.T0);
-            } else {
-                Codegen.generate("li", Codegen.T0, 0);
-                Codegen.genPush(Codegen.T0);
-            }
-        } else {
-            Codegen.generate("sge", Codegen.T0, Codegen.T0, Codegen.T1);
-            Codegen.genPush(Codegen.T0);
-        }
+        InstrSelector.genPush(this);
         return null;
     }
 